@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.benchmarks;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * The MongoDB instance benchmarks run against: the one given by the <code>mongo.uri</code> system property (e.g. a
+ * local <code>mongod</code>), or a disposable <code>mongo.image</code> container (<code>mongo:4.4</code> by default)
+ * otherwise. The rate-limit repository requires MongoDB 4.2+.
+ *
+ * @author GraviteeSource Team
+ */
+public final class BenchmarkMongo implements AutoCloseable {
+
+    private final MongoDBContainer container;
+
+    private final MongoClient client;
+
+    private final ReactiveMongoOperations mongoOperations;
+
+    private BenchmarkMongo(MongoDBContainer container, String uri) {
+        final ConnectionString connectionString = new ConnectionString(uri);
+        this.container = container;
+        this.client = MongoClients.create(connectionString);
+        this.mongoOperations = new ReactiveMongoTemplate(client,
+                connectionString.getDatabase() == null ? "gravitee-benchmarks" : connectionString.getDatabase());
+    }
+
+    public static BenchmarkMongo start() {
+        final String uri = System.getProperty("mongo.uri");
+        if (uri != null && !uri.isEmpty()) {
+            return new BenchmarkMongo(null, uri);
+        }
+
+        final MongoDBContainer container = new MongoDBContainer(DockerImageName.parse(System.getProperty("mongo.image", "mongo:4.4")));
+        container.start();
+        return new BenchmarkMongo(container, container.getReplicaSetUrl());
+    }
+
+    public ReactiveMongoOperations getMongoOperations() {
+        return mongoOperations;
+    }
+
+    public void drop(String collection) {
+        mongoOperations.dropCollection(collection).block();
+    }
+
+    /**
+     * @return the document count, data size and index size of the given collection.
+     */
+    public Document collStats(String collection) {
+        return mongoOperations.executeCommand(new Document("collStats", collection)).block();
+    }
+
+    /**
+     * @return the server status, including the TTL monitor passes and deleted documents under <code>metrics.ttl</code>.
+     */
+    public Document serverStatus() {
+        return mongoOperations.executeCommand(new Document("serverStatus", 1)).block();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+        if (container != null) {
+            container.stop();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.benchmarks;
+
+import io.gravitee.repository.mongodb.ratelimit.MongoRateLimitRepository;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitAlgorithm;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitKeyEncoding;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency percentiles of {@link MongoRateLimitRepository#incrementAndGet(String, long, java.util.function.Supplier)}.
+ *
+ * Contention is driven by the number of <code>keys</code> the calls are spread over (a single key being the worst case)
+ * and by the number of threads (<code>-t</code>). Allocation rates are reported with <code>-prof gc</code>. The size
+ * of the collection and of its indexes is printed at the end of each trial, e.g. to compare key encodings.
+ *
+ * @author GraviteeSource Team
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class IncrementAndGetBenchmark {
+
+    private final static String COLLECTION = "ratelimit";
+
+    private final static long LIMIT = Long.MAX_VALUE;
+
+    @Param({"1", "1000", "100000"})
+    private int keys;
+
+    @Param({"1", "10"})
+    private long weight;
+
+    @Param({"60000"})
+    private long period;
+
+    @Param({"FIXED", "SLIDING", "GCRA"})
+    private RateLimitAlgorithm algorithm;
+
+    @Param({"PLAIN", "DIGEST"})
+    private RateLimitKeyEncoding keyEncoding;
+
+    private BenchmarkMongo mongo;
+
+    private MongoRateLimitRepository repository;
+
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mongo = BenchmarkMongo.start();
+        mongo.drop(COLLECTION);
+
+        repository = MongoRateLimitRepository.builder(RateLimitRouter.single(mongo.getMongoOperations(), null))
+                .keyEncoding(keyEncoding)
+                .algorithm(algorithm)
+                .build();
+        repository.ensureTTLIndex();
+
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "benchmark:" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            Document stats = mongo.collStats(COLLECTION);
+            System.out.printf("%n%s: %s documents, %s bytes of data, %s bytes of indexes%n", COLLECTION,
+                    stats.get("count"), stats.get("size"), stats.get("totalIndexSize"));
+        } finally {
+            repository.destroy();
+            mongo.close();
+        }
+    }
+
+    @Benchmark
+    public RateLimit incrementAndGet() {
+        final String key = names[ThreadLocalRandom.current().nextInt(names.length)];
+
+        return repository.incrementAndGet(key, weight, () -> {
+            RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setLimit(LIMIT);
+            rateLimit.setResetTime(System.currentTimeMillis() + period);
+            return rateLimit;
+        }).blockingGet();
+    }
+}
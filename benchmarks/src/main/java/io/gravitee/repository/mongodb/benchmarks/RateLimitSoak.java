@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.benchmarks;
+
+import io.gravitee.repository.mongodb.common.metrics.JmxRepositoryMetrics;
+import io.gravitee.repository.mongodb.ratelimit.MongoRateLimitRepository;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitAlgorithm;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitKeyEncoding;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long running load on {@link MongoRateLimitRepository}, to observe how it behaves over hours rather than seconds.
+ *
+ * Keys are drawn from a Zipf popularity distribution and each key keeps the same window period. Calls are issued at a
+ * fixed rate whatever the latency of the store, and latencies are measured from the time each call was due, so that a
+ * slow store is not hidden by a slower load (coordinated omission). Calls exceeding <code>soak.maxInFlight</code> are
+ * rejected and counted.
+ *
+ * Every <code>soak.reportInterval</code>, a tab-separated line reports the latency percentiles of the interval, the
+ * documents deleted by the TTL monitor and the growth of the collection and its indexes. The repository metrics are
+ * also registered in JMX under the <code>soak</code> scope.
+ *
+ * <pre>
+ * java -Dmongo.uri=mongodb://localhost:27017/soak -Dsoak.rate=10000 -Dsoak.duration=480 \
+ *      -cp benchmarks/target/benchmarks.jar io.gravitee.repository.mongodb.benchmarks.RateLimitSoak
+ * </pre>
+ *
+ * @author GraviteeSource Team
+ */
+public final class RateLimitSoak {
+
+    private final static String COLLECTION = "ratelimit";
+
+    private final int keys = Integer.getInteger("soak.keys", 1000000);
+    private final double exponent = Double.parseDouble(System.getProperty("soak.exponent", "1.0"));
+    private final int rate = Integer.getInteger("soak.rate", 5000);
+    private final long duration = TimeUnit.MINUTES.toNanos(Long.getLong("soak.duration", 240L));
+    private final long reportInterval = TimeUnit.SECONDS.toMillis(Long.getLong("soak.reportInterval", 60L));
+    private final int maxInFlight = Integer.getInteger("soak.maxInFlight", 1000);
+    private final long limit = Long.getLong("soak.limit", 1000L);
+    private final long[] periods = Arrays.stream(System.getProperty("soak.periods", "1000,60000,3600000").split(","))
+            .mapToLong(period -> Long.parseLong(period.trim()))
+            .toArray();
+    private final RateLimitAlgorithm algorithm = RateLimitAlgorithm.valueOf(
+            System.getProperty("soak.algorithm", "fixed").toUpperCase());
+    private final RateLimitKeyEncoding keyEncoding = RateLimitKeyEncoding.valueOf(
+            System.getProperty("soak.keyEncoding", "plain").toUpperCase());
+
+    private final Recorder latencies = new Recorder(3);
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private long ttlDeleted = -1;
+
+    public static void main(String[] args) throws Exception {
+        new RateLimitSoak().run();
+    }
+
+    private void run() throws Exception {
+        final ZipfDistribution popularity = new ZipfDistribution(keys, exponent);
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final Random random = new Random();
+
+        final JmxRepositoryMetrics metrics = new JmxRepositoryMetrics("soak");
+        metrics.afterPropertiesSet();
+
+        try (BenchmarkMongo mongo = BenchmarkMongo.start()) {
+            mongo.drop(COLLECTION);
+
+            final MongoRateLimitRepository repository = MongoRateLimitRepository
+                    .builder(RateLimitRouter.single(mongo.getMongoOperations(), metrics))
+                    .keyEncoding(keyEncoding)
+                    .algorithm(algorithm)
+                    .metrics(metrics)
+                    .build();
+            repository.ensureTTLIndex();
+
+            final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            System.out.println("elapsed_s\tcalls\terrors\trejected\tp50_ms\tp90_ms\tp99_ms\tp999_ms\tmax_ms\t" +
+                    "ttl_deleted\tdocuments\tdata_bytes\tstorage_bytes\tindex_bytes");
+            final long start = System.nanoTime();
+            reporter.scheduleAtFixedRate(() -> report(mongo, start), reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+
+            try {
+                for (long n = 0; ; n++) {
+                    final long due = start + (long) (n * (1e9 / rate));
+                    if (due - start >= duration) {
+                        break;
+                    }
+
+                    long delay;
+                    while ((delay = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+
+                    if (!inFlight.tryAcquire()) {
+                        rejected.increment();
+                        continue;
+                    }
+
+                    final int rank = popularity.sample(random);
+                    final String key = "soak:" + rank;
+                    final long period = periods[rank % periods.length];
+
+                    repository.incrementAndGet(key, weight(random), () -> {
+                        RateLimit rateLimit = new RateLimit(key);
+                        rateLimit.setLimit(limit);
+                        rateLimit.setResetTime(System.currentTimeMillis() + period);
+                        return rateLimit;
+                    }).subscribe((rateLimit, error) -> {
+                        latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+                        calls.increment();
+                        if (error != null) {
+                            errors.increment();
+                        }
+                        inFlight.release();
+                    });
+                }
+
+                inFlight.acquire(maxInFlight);
+            } finally {
+                reporter.shutdown();
+                reporter.awaitTermination(1, TimeUnit.MINUTES);
+                report(mongo, start);
+                repository.destroy();
+                metrics.destroy();
+            }
+        }
+    }
+
+    /**
+     * Most calls weigh 1, one out of ten weighs between 1 and 10 (e.g. quotas counted on payload size).
+     */
+    private static long weight(Random random) {
+        return random.nextInt(10) == 0 ? 1 + random.nextInt(10) : 1;
+    }
+
+    private synchronized void report(BenchmarkMongo mongo, long start) {
+        final Histogram interval = latencies.getIntervalHistogram();
+
+        long deleted = -1;
+        Document stats = new Document();
+        try {
+            final Document ttl = (Document) ((Document) mongo.serverStatus().get("metrics")).get("ttl");
+            deleted = ((Number) ttl.get("deletedDocuments")).longValue();
+            stats = mongo.collStats(COLLECTION);
+        } catch (Exception e) {
+            System.err.println("Unable to read the server statistics: " + e);
+        }
+
+        System.out.println(String.join("\t",
+                Long.toString(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)),
+                Long.toString(calls.sumThenReset()),
+                Long.toString(errors.sumThenReset()),
+                Long.toString(rejected.sumThenReset()),
+                millis(interval.getValueAtPercentile(50)),
+                millis(interval.getValueAtPercentile(90)),
+                millis(interval.getValueAtPercentile(99)),
+                millis(interval.getValueAtPercentile(99.9)),
+                millis(interval.getMaxValue()),
+                Long.toString(ttlDeleted < 0 || deleted < 0 ? 0 : deleted - ttlDeleted),
+                String.valueOf(stats.get("count")),
+                String.valueOf(stats.get("size")),
+                String.valueOf(stats.get("storageSize")),
+                String.valueOf(stats.get("totalIndexSize"))));
+        ttlDeleted = deleted;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+}
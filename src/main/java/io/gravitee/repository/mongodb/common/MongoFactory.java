@@ -18,6 +18,9 @@ package io.gravitee.repository.mongodb.common;
 import com.mongodb.*;
 import com.mongodb.connection.*;
 import com.mongodb.reactivestreams.client.MongoClients;
+import io.gravitee.repository.mongodb.common.metrics.MetricsCommandListener;
+import io.gravitee.repository.mongodb.common.metrics.MetricsConnectionPoolListener;
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.PojoCodecProvider;
 import org.apache.commons.lang3.StringUtils;
@@ -61,13 +64,23 @@ public class MongoFactory implements FactoryBean<Mongo> {
     public MongoFactory(String propertyPrefix) {
         this.propertyPrefix = propertyPrefix + ".mongodb.";
     }
+
+    private MongoFactory(Environment environment, String propertyPrefix) {
+        this.environment = environment;
+        this.propertyPrefix = propertyPrefix;
+    }
+
+    /**
+     * Create a factory reading its settings from the properties starting with the given prefix, for instance
+     * <code>ratelimit.mongodb.backends[0].</code>
+     */
+    public static MongoFactory withPropertyPrefix(Environment environment, String propertyPrefix) {
+        return new MongoFactory(environment, propertyPrefix);
+    }
     
     private MongoClientOptions.Builder builder() {
         MongoClientOptions.Builder builder = MongoClientOptions.builder();
 
-        String writeConcern = readPropertyValue(propertyPrefix + "writeConcern", String.class, "1");
-        Boolean journal = readPropertyValue(propertyPrefix + "journal", Boolean.class);
-        Integer wtimeout = readPropertyValue(propertyPrefix + "wtimeout", Integer.class, 0);
         Integer connectionsPerHost = readPropertyValue(propertyPrefix + "connectionsPerHost", Integer.class);
         Integer connectTimeout = readPropertyValue(propertyPrefix + "connectTimeout", Integer.class, 1000);
         Integer maxWaitTime = readPropertyValue(propertyPrefix + "maxWaitTime", Integer.class);
@@ -92,9 +105,6 @@ public class MongoFactory implements FactoryBean<Mongo> {
         Integer threadsAllowedToBlockForConnectionMultiplier = readPropertyValue(propertyPrefix + "threadsAllowedToBlockForConnectionMultiplier", Integer.class);
         Boolean cursorFinalizerEnabled = readPropertyValue(propertyPrefix + "cursorFinalizerEnabled", Boolean.class);
 
-        String readPreference = readPropertyValue(propertyPrefix + "readPreference", String.class);
-        String readPreferenceTags = readPropertyValue(propertyPrefix + "readPreferenceTags", String.class);
-
         if (connectionsPerHost != null)
             builder.connectionsPerHost(connectionsPerHost);
         if (maxWaitTime != null)
@@ -146,29 +156,52 @@ public class MongoFactory implements FactoryBean<Mongo> {
         if (serverSelectionTimeout != null)
             builder.serverSelectionTimeout(serverSelectionTimeout);
 
-        if (readPreference != null)  {
-            TagSet tagSet = null;
-            ReadPreference readPrefObj = null;
+        ReadPreference readPreference = readPreference();
+        if (readPreference != null)
+            builder.readPreference(readPreference);
+        builder.writeConcern(writeConcern());
 
-            if(readPreferenceTags != null) {
-                tagSet = buildTagSet(readPreferenceTags);
-            }
+        return builder;
+    }
 
-            switch (readPreference) {
-                case "nearest":
-                    readPrefObj = tagSet != null ? ReadPreference.nearest(tagSet) : ReadPreference.nearest(); break;
-                case "primary":
-                    readPrefObj = ReadPreference.primary(); break;
-                case "primaryPreferred":
-                    readPrefObj = ReadPreference.primaryPreferred(); break;
-                case "secondary":
-                    readPrefObj = tagSet != null ? ReadPreference.secondary(tagSet) : ReadPreference.secondary(); break;
-                case "secondaryPreferred":
-                    readPrefObj = tagSet != null ? ReadPreference.secondaryPreferred(tagSet) : ReadPreference.secondaryPreferred(); break;
-            }
+    private ReadPreference readPreference() {
+        String readPreference = readPropertyValue(propertyPrefix + "readPreference", String.class);
+        String readPreferenceTags = readPropertyValue(propertyPrefix + "readPreferenceTags", String.class);
+
+        if (readPreference == null) {
+            return null;
+        }
 
-            builder.readPreference(readPrefObj);
+        TagSet tagSet = null;
+        ReadPreference readPrefObj = null;
+
+        if(readPreferenceTags != null) {
+            tagSet = buildTagSet(readPreferenceTags);
+        }
+
+        switch (readPreference) {
+            case "nearest":
+                readPrefObj = tagSet != null ? ReadPreference.nearest(tagSet) : ReadPreference.nearest(); break;
+            case "primary":
+                readPrefObj = ReadPreference.primary(); break;
+            case "primaryPreferred":
+                readPrefObj = ReadPreference.primaryPreferred(); break;
+            case "secondary":
+                readPrefObj = tagSet != null ? ReadPreference.secondary(tagSet) : ReadPreference.secondary(); break;
+            case "secondaryPreferred":
+                readPrefObj = tagSet != null ? ReadPreference.secondaryPreferred(tagSet) : ReadPreference.secondaryPreferred(); break;
+            default:
+                throw new IllegalArgumentException("Unknown readPreference " + readPreference);
         }
+
+        return readPrefObj;
+    }
+
+    private WriteConcern writeConcern() {
+        String writeConcern = readPropertyValue(propertyPrefix + "writeConcern", String.class, "1");
+        Boolean journal = readPropertyValue(propertyPrefix + "journal", Boolean.class);
+        Integer wtimeout = readPropertyValue(propertyPrefix + "wtimeout", Integer.class, 0);
+
         WriteConcern wc;
         if (StringUtils.isNumeric(writeConcern)) {
             wc = new WriteConcern(Integer.valueOf(writeConcern));
@@ -176,9 +209,7 @@ public class MongoFactory implements FactoryBean<Mongo> {
             Assert.isTrue(writeConcern.equals("majority"), "writeConcern must be numeric or equals to 'majority'");
             wc = new WriteConcern(writeConcern);
         }
-        builder.writeConcern(wc.withJournal(journal).withWTimeout(wtimeout, TimeUnit.MILLISECONDS));
-
-        return builder;
+        return wc.withJournal(journal).withWTimeout(wtimeout, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -234,90 +265,124 @@ public class MongoFactory implements FactoryBean<Mongo> {
     }
 
     public com.mongodb.reactivestreams.client.MongoClient getReactiveClient() throws Exception {
-        // Trying to get the MongoClientURI if uri property is defined
-        String uri = readPropertyValue(propertyPrefix + "uri");
+        return getReactiveClient(null, "");
+    }
 
-        if (uri != null && ! uri.isEmpty()) {
-            MongoClientOptions.Builder builder = builder();
+    /**
+     * Creates a reactive client reporting its command round trips and connection pool wait times to the given metrics,
+     * under names starting with the given prefix.
+     */
+    public com.mongodb.reactivestreams.client.MongoClient getReactiveClient(RepositoryMetrics metrics, String metricsPrefix) throws Exception {
+        return getReactiveClient(metrics, metricsPrefix, null);
+    }
 
-            // codec configuration for pojo mapping
-            CodecRegistry pojoCodecRegistry = fromRegistries(MongoClients.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().automatic(true).build()));
-            builder.codecRegistry(pojoCodecRegistry);
+    /**
+     * All the options of the scope apply whether or not <code>uri</code> is set, the options specified in the URI
+     * string taking precedence.
+     *
+     * @param streamFactoryFactory the transport of the client, or <code>null</code> for the driver's default one.
+     */
+    public com.mongodb.reactivestreams.client.MongoClient getReactiveClient(RepositoryMetrics metrics, String metricsPrefix,
+                                                                            StreamFactoryFactory streamFactoryFactory) throws Exception {
+        MongoClientSettings.Builder builder = MongoClientSettings.builder();
+
+        // codec configuration for pojo mapping
+        CodecRegistry pojoCodecRegistry = fromRegistries(MongoClients.getDefaultCodecRegistry(),
+                fromProviders(PojoCodecProvider.builder().automatic(true).build()));
+        builder.codecRegistry(pojoCodecRegistry);
+
+        // Advanced configuration
+        SocketSettings.Builder socketBuilder = SocketSettings.builder();
+        ClusterSettings.Builder clusterBuilder = ClusterSettings.builder();
+        ConnectionPoolSettings.Builder connectionPoolBuilder = ConnectionPoolSettings.builder();
+        ServerSettings.Builder serverBuilder = ServerSettings.builder();
+        SslSettings.Builder sslBuilder = SslSettings.builder();
 
-            return MongoClients.create(new ConnectionString(uri));
-        } else {
-            MongoClientSettings.Builder builder = MongoClientSettings.builder();
-
-            // Advanced configuration
-            SocketSettings.Builder socketBuilder = SocketSettings.builder();
-            ClusterSettings.Builder clusterBuilder = ClusterSettings.builder();
-            ConnectionPoolSettings.Builder connectionPoolBuilder = ConnectionPoolSettings.builder();
-            ServerSettings.Builder serverBuilder = ServerSettings.builder();
-            SslSettings.Builder sslBuilder = SslSettings.builder();
-
-            Integer connectTimeout = readPropertyValue(propertyPrefix + "connectTimeout", Integer.class, 1000);
-            Integer maxWaitTime = readPropertyValue(propertyPrefix + "maxWaitTime", Integer.class);
-            Integer socketTimeout = readPropertyValue(propertyPrefix + "socketTimeout", Integer.class, 1000);
-            Boolean socketKeepAlive = readPropertyValue(propertyPrefix + "socketKeepAlive", Boolean.class, true);
-            Integer maxConnectionLifeTime = readPropertyValue(propertyPrefix + "maxConnectionLifeTime", Integer.class);
-            Integer maxConnectionIdleTime = readPropertyValue(propertyPrefix + "maxConnectionIdleTime", Integer.class);
-
-            // We do not want to wait for a server
-            Integer serverSelectionTimeout = readPropertyValue(propertyPrefix + "serverSelectionTimeout", Integer.class, 1000);
-            Integer minHeartbeatFrequency = readPropertyValue(propertyPrefix + "minHeartbeatFrequency", Integer.class);
-            String description = readPropertyValue(propertyPrefix + "description", String.class, "gravitee.io");
-            Integer heartbeatFrequency = readPropertyValue(propertyPrefix + "heartbeatFrequency", Integer.class);
-            Boolean sslEnabled = readPropertyValue(propertyPrefix + "sslEnabled", Boolean.class);
-            String keystore = readPropertyValue(propertyPrefix + "keystore", String.class);
-            String keystorePassword = readPropertyValue(propertyPrefix + "keystorePassword", String.class);
-            String keyPassword = readPropertyValue(propertyPrefix + "keyPassword", String.class);
-
-            if (maxWaitTime != null)
-                connectionPoolBuilder.maxWaitTime(maxWaitTime, TimeUnit.MILLISECONDS);
-            if (connectTimeout != null)
-                socketBuilder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
-            if (socketTimeout != null)
-                socketBuilder.readTimeout(socketTimeout, TimeUnit.MILLISECONDS);
-            if (socketKeepAlive != null)
-                socketBuilder.keepAlive(socketKeepAlive);
-            if (maxConnectionLifeTime != null)
-                connectionPoolBuilder.maxConnectionLifeTime(maxConnectionLifeTime, TimeUnit.MILLISECONDS);
-            if (maxConnectionIdleTime != null)
-                connectionPoolBuilder.maxConnectionIdleTime(maxConnectionIdleTime, TimeUnit.MILLISECONDS);
-            if (minHeartbeatFrequency != null)
-                serverBuilder.minHeartbeatFrequency(minHeartbeatFrequency, TimeUnit.MILLISECONDS);
-            if (description != null)
-                clusterBuilder.description(description);
-            if (heartbeatFrequency != null)
-                serverBuilder.heartbeatFrequency(heartbeatFrequency, TimeUnit.MILLISECONDS);
-            if (sslEnabled != null)
-                sslBuilder.enabled(sslEnabled);
-            if (keystore != null) {
-                try {
-                    SSLContext ctx = SSLContext.getInstance("TLS");
-                    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                    KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-                    ks.load(new FileInputStream(keystore), keystorePassword.toCharArray());
-                    keyManagerFactory.init(ks, keyPassword.toCharArray());
-                    ctx.init(keyManagerFactory.getKeyManagers(), null, null);
-                    sslBuilder.context(ctx);
-                } catch (Exception e) {
-                    logger.error(e.getCause().toString());
-                    throw new IllegalStateException("Error creating the keystore for mongodb", e);
-                }
+        Integer connectionsPerHost = readPropertyValue(propertyPrefix + "connectionsPerHost", Integer.class);
+        Integer minConnectionsPerHost = readPropertyValue(propertyPrefix + "minConnectionsPerHost", Integer.class);
+        Integer threadsAllowedToBlockForConnectionMultiplier = readPropertyValue(propertyPrefix + "threadsAllowedToBlockForConnectionMultiplier", Integer.class);
+        Integer maxWaitQueueSize = readPropertyValue(propertyPrefix + "maxWaitQueueSize", Integer.class);
+        Integer connectTimeout = readPropertyValue(propertyPrefix + "connectTimeout", Integer.class, 1000);
+        Integer maxWaitTime = readPropertyValue(propertyPrefix + "maxWaitTime", Integer.class);
+        Integer socketTimeout = readPropertyValue(propertyPrefix + "socketTimeout", Integer.class, 1000);
+        Boolean socketKeepAlive = readPropertyValue(propertyPrefix + "socketKeepAlive", Boolean.class, true);
+        Integer maxConnectionLifeTime = readPropertyValue(propertyPrefix + "maxConnectionLifeTime", Integer.class);
+        Integer maxConnectionIdleTime = readPropertyValue(propertyPrefix + "maxConnectionIdleTime", Integer.class);
+
+        // We do not want to wait for a server
+        Integer serverSelectionTimeout = readPropertyValue(propertyPrefix + "serverSelectionTimeout", Integer.class, 1000);
+        Integer minHeartbeatFrequency = readPropertyValue(propertyPrefix + "minHeartbeatFrequency", Integer.class);
+        String description = readPropertyValue(propertyPrefix + "description", String.class, "gravitee.io");
+        Integer heartbeatFrequency = readPropertyValue(propertyPrefix + "heartbeatFrequency", Integer.class);
+        Integer localThreshold = readPropertyValue(propertyPrefix + "localThreshold", Integer.class);
+        Boolean sslEnabled = readPropertyValue(propertyPrefix + "sslEnabled", Boolean.class);
+        String keystore = readPropertyValue(propertyPrefix + "keystore", String.class);
+        String keystorePassword = readPropertyValue(propertyPrefix + "keystorePassword", String.class);
+        String keyPassword = readPropertyValue(propertyPrefix + "keyPassword", String.class);
+
+        if (connectionsPerHost != null)
+            connectionPoolBuilder.maxSize(connectionsPerHost);
+        if (minConnectionsPerHost != null)
+            connectionPoolBuilder.minSize(minConnectionsPerHost);
+        if (maxWaitQueueSize != null)
+            connectionPoolBuilder.maxWaitQueueSize(maxWaitQueueSize);
+        else if (threadsAllowedToBlockForConnectionMultiplier != null)
+            connectionPoolBuilder.maxWaitQueueSize(threadsAllowedToBlockForConnectionMultiplier * connectionPoolBuilder.build().getMaxSize());
+        if (maxWaitTime != null)
+            connectionPoolBuilder.maxWaitTime(maxWaitTime, TimeUnit.MILLISECONDS);
+        if (connectTimeout != null)
+            socketBuilder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        if (socketTimeout != null)
+            socketBuilder.readTimeout(socketTimeout, TimeUnit.MILLISECONDS);
+        if (socketKeepAlive != null)
+            socketBuilder.keepAlive(socketKeepAlive);
+        if (maxConnectionLifeTime != null)
+            connectionPoolBuilder.maxConnectionLifeTime(maxConnectionLifeTime, TimeUnit.MILLISECONDS);
+        if (maxConnectionIdleTime != null)
+            connectionPoolBuilder.maxConnectionIdleTime(maxConnectionIdleTime, TimeUnit.MILLISECONDS);
+        if (minHeartbeatFrequency != null)
+            serverBuilder.minHeartbeatFrequency(minHeartbeatFrequency, TimeUnit.MILLISECONDS);
+        if (description != null)
+            clusterBuilder.description(description);
+        if (heartbeatFrequency != null)
+            serverBuilder.heartbeatFrequency(heartbeatFrequency, TimeUnit.MILLISECONDS);
+        if (localThreshold != null)
+            clusterBuilder.localThreshold(localThreshold, TimeUnit.MILLISECONDS);
+        if (sslEnabled != null)
+            sslBuilder.enabled(sslEnabled);
+        if (keystore != null) {
+            try {
+                SSLContext ctx = SSLContext.getInstance("TLS");
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+                ks.load(new FileInputStream(keystore), keystorePassword.toCharArray());
+                keyManagerFactory.init(ks, keyPassword.toCharArray());
+                ctx.init(keyManagerFactory.getKeyManagers(), null, null);
+                sslBuilder.context(ctx);
+            } catch (Exception e) {
+                logger.error(e.getCause().toString());
+                throw new IllegalStateException("Error creating the keystore for mongodb", e);
             }
-            if (serverSelectionTimeout != null)
-                clusterBuilder.serverSelectionTimeout(serverSelectionTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (serverSelectionTimeout != null)
+            clusterBuilder.serverSelectionTimeout(serverSelectionTimeout, TimeUnit.MILLISECONDS);
+
+        ReadPreference readPreference = readPreference();
+        if (readPreference != null)
+            builder.readPreference(readPreference);
+        builder.writeConcern(writeConcern());
+
+        // Trying to get the MongoClientURI if uri property is defined
+        String uri = readPropertyValue(propertyPrefix + "uri");
+        boolean hasUri = uri != null && !uri.isEmpty();
 
+        if (!hasUri) {
             // credentials option
             String username = readPropertyValue(propertyPrefix + "username");
             String password = readPropertyValue(propertyPrefix + "password");
-            MongoCredential credentials = null;
             if (username != null || password != null) {
                 String authSource = readPropertyValue(propertyPrefix + "authSource", String.class, "gravitee");
-                credentials = MongoCredential.createCredential(username, authSource, password.toCharArray());
-                builder.credential(credentials);
+                builder.credential(MongoCredential.createCredential(username, authSource, password.toCharArray()));
             }
 
             // clustering option
@@ -334,22 +399,38 @@ public class MongoFactory implements FactoryBean<Mongo> {
                 }
             }
             clusterBuilder.hosts(seeds);
+        }
 
-            SocketSettings socketSettings = socketBuilder.build();
-            ClusterSettings clusterSettings = clusterBuilder.build();
-            ConnectionPoolSettings connectionPoolSettings = connectionPoolBuilder.build();
-            ServerSettings serverSettings = serverBuilder.build();
-            SslSettings sslSettings = sslBuilder.build();
-            MongoClientSettings settings = builder
-                    .applyToClusterSettings(builder1 -> builder1.applySettings(clusterSettings))
-                    .applyToSocketSettings(builder1 -> builder1.applySettings(socketSettings))
-                    .applyToConnectionPoolSettings(builder1 -> builder1.applySettings(connectionPoolSettings))
-                    .applyToServerSettings(builder1 -> builder1.applySettings(serverSettings))
-                    .applyToSslSettings(builder1 -> builder1.applySettings(sslSettings))
-                    .build();
-
-            return MongoClients.create(settings);
+        SocketSettings socketSettings = socketBuilder.build();
+        ClusterSettings clusterSettings = clusterBuilder.build();
+        ConnectionPoolSettings connectionPoolSettings = connectionPoolBuilder.build();
+        ServerSettings serverSettings = serverBuilder.build();
+        SslSettings sslSettings = sslBuilder.build();
+        builder
+                .applyToClusterSettings(builder1 -> builder1.applySettings(clusterSettings))
+                .applyToSocketSettings(builder1 -> builder1.applySettings(socketSettings))
+                .applyToConnectionPoolSettings(builder1 -> builder1.applySettings(connectionPoolSettings))
+                .applyToServerSettings(builder1 -> builder1.applySettings(serverSettings))
+                .applyToSslSettings(builder1 -> builder1.applySettings(sslSettings));
+
+        if (hasUri) {
+            // Only the options specified in the URI string are overridden, the hosts and credentials included
+            builder.applyConnectionString(new ConnectionString(uri));
         }
+        if (metrics != null) {
+            applyMetrics(builder, metrics, metricsPrefix);
+        }
+        if (streamFactoryFactory != null) {
+            builder.streamFactoryFactory(streamFactoryFactory);
+        }
+
+        return MongoClients.create(builder.build());
+    }
+
+    private static void applyMetrics(MongoClientSettings.Builder builder, RepositoryMetrics metrics, String metricsPrefix) {
+        MetricsConnectionPoolListener poolListener = new MetricsConnectionPoolListener(metrics, metricsPrefix);
+        builder.addCommandListener(new MetricsCommandListener(metrics, metricsPrefix))
+                .applyToConnectionPoolSettings(builder1 -> builder1.addConnectionPoolListener(poolListener));
     }
 
     private int getServersCount() {
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of positive values, in the spirit of HdrHistogram: values below 64 are counted exactly, then each
+ * power of two is split into 32 sub-buckets. Any value is recorded with a relative error below 1/32 (about 3%), in a
+ * fixed footprint and without locking.
+ *
+ * @author GraviteeSource Team
+ */
+final class Histogram {
+
+    private static final int PRECISION = 5;
+
+    private static final int SUB_BUCKETS = 1 << PRECISION;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - PRECISION) * SUB_BUCKETS);
+
+    void record(long value) {
+        counts.incrementAndGet(index(Math.max(value, 0)));
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the highest value equivalent to the given percentile, or 0 if nothing has been recorded.
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long target = Math.max((long) Math.ceil(total * percentile / 100), 1);
+        long cumulated = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulated += counts.get(i);
+            if (cumulated >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return highestEquivalentValue(counts.length() - 1);
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Default in-memory {@link RepositoryMetrics} registered in the platform MBean server under
+ * <code>io.gravitee.repository.mongodb:type=Metrics,scope=&lt;scope&gt;</code>.
+ *
+ * Timer counts and means are cumulative, while their max and percentiles describe the last complete interval: each
+ * timer records into one histogram and reports another, and the two are swapped by the first read once the interval has
+ * elapsed. A slow request at startup therefore stops showing up after an interval instead of weighing on the
+ * percentiles forever.
+ *
+ * @author GraviteeSource Team
+ */
+public class JmxRepositoryMetrics implements RepositoryMetrics, RepositoryMetricsMXBean, InitializingBean, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(JmxRepositoryMetrics.class);
+
+    static final long DEFAULT_INTERVAL = 60_000;
+
+    private final String scope;
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final long interval;
+
+    private ObjectName objectName;
+
+    public JmxRepositoryMetrics(String scope) {
+        this(scope, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param interval interval, in milliseconds, the timer max and percentiles are computed over.
+     */
+    public JmxRepositoryMetrics(String scope, long interval) {
+        this.scope = scope;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    @Override
+    public void increment(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    @Override
+    public void record(String name, long duration, TimeUnit unit) {
+        timers.computeIfAbsent(name, k -> new Timer(System.nanoTime())).record(unit.toNanos(duration));
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getTimers() {
+        final long now = System.nanoTime();
+        Map<String, Long> values = new TreeMap<>();
+        timers.forEach((name, timer) -> {
+            long count = timer.count.sum();
+            Timer.Snapshot snapshot = timer.snapshot(now, interval);
+            values.put(name + ".count", count);
+            values.put(name + ".mean", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(timer.total.sum() / count));
+            values.put(name + ".max", TimeUnit.NANOSECONDS.toMicros(snapshot.max));
+            values.put(name + ".p50", TimeUnit.NANOSECONDS.toMicros(snapshot.histogram.percentile(50)));
+            values.put(name + ".p90", TimeUnit.NANOSECONDS.toMicros(snapshot.histogram.percentile(90)));
+            values.put(name + ".p99", TimeUnit.NANOSECONDS.toMicros(snapshot.histogram.percentile(99)));
+            values.put(name + ".p999", TimeUnit.NANOSECONDS.toMicros(snapshot.histogram.percentile(99.9)));
+        });
+        return values;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("io.gravitee.repository.mongodb:type=Metrics,scope=" + scope);
+            if (server.isRegistered(name)) {
+                logger.warn("MongoDB repository metrics for scope {} are already registered", scope);
+            } else {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to register MongoDB repository metrics for scope {}", scope, e);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.debug("Unable to unregister MongoDB repository metrics for scope {}", scope, e);
+            }
+        }
+    }
+
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+        private volatile Histogram recording = new Histogram();
+        private volatile Snapshot snapshot = new Snapshot(new Histogram(), 0);
+        private long swappedAt;
+
+        Timer(long now) {
+            this.swappedAt = now;
+        }
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+            recording.record(nanos);
+        }
+
+        /**
+         * Swaps the recording histogram with the reported one if the interval has elapsed, the histogram of the
+         * previous interval being reset and reused to record the next one. A recording racing with the swap may land
+         * in either interval.
+         */
+        synchronized Snapshot snapshot(long now, long interval) {
+            if (now - swappedAt >= interval) {
+                Histogram recorded = recording;
+                Histogram next = snapshot.histogram;
+                next.reset();
+                recording = next;
+                snapshot = new Snapshot(recorded, max.getThenReset());
+                swappedAt = now;
+            }
+            return snapshot;
+        }
+
+        private static class Snapshot {
+            private final Histogram histogram;
+            private final long max;
+
+            Snapshot(Histogram histogram, long max) {
+                this.histogram = histogram;
+                this.max = max;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the round trip of every command sent by a client, as measured by the driver, under
+ * <code>command.&lt;name&gt;</code> (e.g. <code>command.findAndModify</code>). Failed commands are counted under
+ * <code>command.&lt;name&gt;.errors</code>. All the names are prefixed by the given prefix, if any, to tell clients apart.
+ *
+ * @author GraviteeSource Team
+ */
+public class MetricsCommandListener implements CommandListener {
+
+    private final RepositoryMetrics metrics;
+
+    private final String prefix;
+
+    public MetricsCommandListener(RepositoryMetrics metrics, String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix + "command.";
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        metrics.record(prefix + event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        metrics.record(prefix + event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        metrics.increment(prefix + event.getCommandName() + ".errors");
+    }
+}
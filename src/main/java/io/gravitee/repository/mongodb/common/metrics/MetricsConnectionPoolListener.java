@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records how long requests wait for a pooled connection under <code>pool.wait</code>, the number of requests currently
+ * waiting under the <code>pool.waiting</code> gauge, and check-out failures (e.g. wait queue full or timed out) under
+ * <code>pool.errors</code>. All the names are prefixed by the given prefix, if any, to tell clients apart.
+ *
+ * The driver does not correlate the start of a check-out with its outcome, so waiters are matched in FIFO order per
+ * server, which is the order the pool serves them in.
+ *
+ * @author GraviteeSource Team
+ */
+public class MetricsConnectionPoolListener extends ConnectionPoolListenerAdapter {
+
+    private final RepositoryMetrics metrics;
+
+    private final String prefix;
+
+    private final ConcurrentMap<ServerId, Queue<Long>> waiters = new ConcurrentHashMap<>();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public MetricsConnectionPoolListener(RepositoryMetrics metrics, String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix + "pool.";
+        metrics.gauge(this.prefix + "waiting", waiting::get);
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        waiters.computeIfAbsent(event.getServerId(), id -> new ConcurrentLinkedQueue<>()).offer(System.nanoTime());
+        waiting.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        Long start = poll(event.getConnectionId().getServerId());
+        if (start != null) {
+            metrics.record(prefix + "wait", System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        poll(event.getServerId());
+        metrics.increment(prefix + "errors");
+    }
+
+    private Long poll(ServerId serverId) {
+        Queue<Long> queue = waiters.get(serverId);
+        Long start = queue == null ? null : queue.poll();
+        if (start != null) {
+            waiting.decrementAndGet();
+        }
+        return start;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry used by the repository to report its internal metrics (counters, gauges and timings).
+ *
+ * @author GraviteeSource Team
+ */
+public interface RepositoryMetrics {
+
+    void increment(String name, long delta);
+
+    default void increment(String name) {
+        increment(name, 1L);
+    }
+
+    void gauge(String name, LongSupplier supplier);
+
+    void record(String name, long duration, TimeUnit unit);
+}
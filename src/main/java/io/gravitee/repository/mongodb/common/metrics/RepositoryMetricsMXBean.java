@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link RepositoryMetrics}.
+ *
+ * @author GraviteeSource Team
+ */
+public interface RepositoryMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    /**
+     * Timings, in microseconds, flattened as <code>name.count</code>, <code>name.mean</code>, <code>name.max</code> and
+     * the <code>name.p50</code>, <code>name.p90</code>, <code>name.p99</code> and <code>name.p999</code> percentiles.
+     * Counts and means are computed since startup, while the max and percentiles describe the last complete interval
+     * (one minute by default), within 3% of the recorded values. They are 0 until the first interval has elapsed.
+     */
+    Map<String, Long> getTimers();
+}
@@ -20,12 +20,18 @@ import com.mongodb.MongoClient;
 import io.gravitee.repository.Scope;
 import io.gravitee.repository.mongodb.common.AbstractRepositoryConfiguration;
 import io.gravitee.repository.mongodb.common.MongoFactory;
+import io.gravitee.repository.mongodb.common.metrics.JmxRepositoryMetrics;
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.mongodb.management.internal.event.EventCompactor;
+import io.gravitee.repository.mongodb.management.internal.event.EventPayloadStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
@@ -44,6 +50,9 @@ public class ManagementRepositoryConfiguration extends AbstractRepositoryConfigu
 	@Qualifier("managementMongo")
 	private MongoFactory mongoFactory;
 
+	@Autowired
+	private Environment environment;
+
 	@Bean(name = "managementMongo")
 	public MongoFactory mongoFactory() {
 		return new MongoFactory(Scope.MANAGEMENT.getName());
@@ -66,4 +75,31 @@ public class ManagementRepositoryConfiguration extends AbstractRepositoryConfigu
 			throw new IllegalStateException(e);
 		}
 	}
+
+	@Bean(name = "managementMetrics")
+	public JmxRepositoryMetrics managementMetrics() {
+		return new JmxRepositoryMetrics(Scope.MANAGEMENT.getName());
+	}
+
+	/**
+	 * Only created with <code>management.mongodb.events.compaction.enabled</code>.
+	 */
+	@Bean(destroyMethod = "close")
+	@Conditional(EventCompactionCondition.class)
+	public EventCompactor eventCompactor(@Qualifier("managementMongoTemplate") MongoOperations mongoOperations,
+										 EventPayloadStore payloadStore,
+										 @Qualifier("managementMetrics") RepositoryMetrics metrics) {
+		final String compaction = "management.mongodb.events.compaction.";
+
+		EventCompactor compactor = new EventCompactor(mongoOperations, payloadStore,
+				environment.getProperty(compaction + "keep", Integer.class, 10),
+				environment.getProperty(compaction + "batchSize", Integer.class, 500),
+				environment.getProperty(compaction + "throttle", Long.class, 100L),
+				environment.getProperty(compaction + "orphanPayloads", Boolean.class, false),
+				metrics);
+
+		compactor.start(environment.getProperty(compaction + "interval", Long.class, 3600000L));
+
+		return compactor;
+	}
 }
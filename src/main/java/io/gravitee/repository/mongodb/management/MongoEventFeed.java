@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.gravitee.repository.management.api.search.EventCriteria;
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.mongodb.management.internal.event.EventPayloadStore;
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import io.gravitee.repository.mongodb.management.mapper.GraviteeMapper;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Push-based feed of the {@code events} collection, meant to replace the periodic
+ * {@link MongoEventRepository#search(EventCriteria)} done by gateways to discover new deployments.
+ *
+ * Events are read from a change stream and the resume token of each consumer is persisted in the
+ * {@code event_feeds} collection, so that a restarted consumer picks up where it stopped. When change streams are
+ * not available (standalone server, MongoDB < 3.6) or the token has fallen off the oplog, the feed polls
+ * {@code updatedAt} instead. Delivery is at-least-once.
+ *
+ * Each subscription reads the feed on its own daemon thread, named {@code gio-event-feed-<consumerId>}, which blocks on
+ * the change stream (or sleeps between polls) and is interrupted when the subscription is cancelled. The next event is
+ * only read once the subscriber requested it, so nothing is buffered beyond the outstanding demand, and a position is
+ * only persisted once its events have been handed to the subscriber.
+ *
+ * @author GraviteeSource Team
+ */
+@Component
+public class MongoEventFeed {
+
+    static final String FEEDS_COLLECTION = "event_feeds";
+
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_RESUME_TOKEN = "resumeToken";
+    private static final String FIELD_LAST_UPDATED_AT = "lastUpdatedAt";
+    private static final String FIELD_LAST_IDS = "lastIds";
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+
+    private static final String FULL_DOCUMENT = "fullDocument.";
+
+    /**
+     * $changeStream is only supported on replica sets / unrecognized pipeline stage.
+     */
+    private static final Set<Integer> UNSUPPORTED = new HashSet<>(Arrays.asList(40573, 40324));
+
+    /**
+     * InvalidResumeToken / ChangeStreamFatalError / ChangeStreamHistoryLost.
+     */
+    private static final Set<Integer> HISTORY_LOST = new HashSet<>(Arrays.asList(260, 280, 286));
+
+    private static final long TOKEN_SAVE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int POLL_BATCH_SIZE = 100;
+
+    private static final long DEMAND_WAIT = 10;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${management.mongodb.prefix:}")
+    private String tablePrefix;
+
+    @Value("${management.mongodb.events.feed.changeStreams:true}")
+    private boolean changeStreams;
+
+    @Value("${management.mongodb.events.feed.pollInterval:5000}")
+    private long pollInterval;
+
+    @Value("${management.mongodb.events.feed.catchUpMargin:60000}")
+    private long catchUpMargin;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GraviteeMapper mapper;
+
+    @Autowired
+    private EventPayloadStore payloadStore;
+
+    /**
+     * Streams the events matching the types, environments and properties of the given criteria. The date range of
+     * the criteria is ignored: the feed starts where the consumer stopped, or now for a new consumer.
+     *
+     * The flowable never completes: it runs until cancelled, and only fails if its thread is interrupted or on
+     * unexpected errors, MongoDB errors being retried every {@code pollInterval} ms.
+     *
+     * @param consumerId identifies the consumer whose position is persisted, typically the gateway node id.
+     * @param criteria the event filter.
+     */
+    public Flowable<Event> events(String consumerId, EventCriteria criteria) {
+        // Events are only emitted on demand, emitting more is a bug
+        return Flowable.create(emitter -> {
+            Thread thread = new Thread(new Feed(consumerId, criteria, emitter)::run, "gio-event-feed-" + consumerId);
+            thread.setDaemon(true);
+            emitter.setCancellable(thread::interrupt);
+            thread.start();
+        }, BackpressureStrategy.ERROR);
+    }
+
+    private Bson filter(EventCriteria criteria, String prefix) {
+        List<Bson> filters = new ArrayList<>();
+
+        if (criteria.getTypes() != null && !criteria.getTypes().isEmpty()) {
+            filters.add(Filters.in(prefix + "type", criteria.getTypes().stream()
+                    .map(Object::toString).collect(Collectors.toList())));
+        }
+
+        if (criteria.getProperties() != null && !criteria.getProperties().isEmpty()) {
+            criteria.getProperties().forEach((k, v) -> {
+                if (v instanceof Collection) {
+                    filters.add(Filters.in(prefix + "properties." + k, (Collection<?>) v));
+                } else {
+                    filters.add(Filters.eq(prefix + "properties." + k, v));
+                }
+            });
+        }
+
+        if (criteria.getEnvironments() != null && !criteria.getEnvironments().isEmpty()) {
+            filters.add(Filters.in(prefix + "environments", criteria.getEnvironments()));
+        }
+
+        return filters.isEmpty() ? new Document() : Filters.and(filters);
+    }
+
+    private final class Feed {
+
+        private final String consumerId;
+        private final EventCriteria criteria;
+        private final FlowableEmitter<Event> emitter;
+        private final MongoCollection<Document> events;
+        private final MongoCollection<Document> feeds;
+
+        private BsonDocument resumeToken;
+        private Date lastUpdatedAt;
+        private Set<String> lastIds = new HashSet<>();
+        private Date savedAt;
+        private long lastSave;
+
+        private Feed(String consumerId, EventCriteria criteria, FlowableEmitter<Event> emitter) {
+            this.consumerId = consumerId;
+            this.criteria = criteria;
+            this.emitter = emitter;
+            this.events = mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventMongo.class));
+            this.feeds = mongoTemplate.getCollection(tablePrefix + FEEDS_COLLECTION);
+        }
+
+        private void run() {
+            try {
+                load();
+
+                boolean watch = changeStreams;
+                while (running()) {
+                    try {
+                        if (watch) {
+                            watch();
+                        } else {
+                            poll();
+                            sleep();
+                        }
+                    } catch (MongoServerException mse) {
+                        if (watch && UNSUPPORTED.contains(mse.getCode())) {
+                            logger.info("Change streams are not available, event feed [{}] polls every {} ms",
+                                    consumerId, pollInterval);
+                            watch = false;
+                        } else if (watch && HISTORY_LOST.contains(mse.getCode())) {
+                            resumeToken = null;
+                            if (lastUpdatedAt == null) {
+                                // No event delivered yet, the token was saved about when the consumer stopped
+                                lastUpdatedAt = savedAt == null ? new Date(0) :
+                                        new Date(savedAt.getTime() - catchUpMargin);
+                            }
+                            logger.warn("Resume token of event feed [{}] is no longer valid, catching up from {}",
+                                    consumerId, lastUpdatedAt);
+                        } else {
+                            failed(mse);
+                        }
+                    } catch (MongoException me) {
+                        failed(me);
+                    }
+                }
+            } catch (RuntimeException re) {
+                logger.error("Event feed [{}] stopped on an unexpected error", consumerId, re);
+                emitter.tryOnError(re);
+                return;
+            }
+
+            if (!emitter.isCancelled()) {
+                emitter.onError(new InterruptedException("Event feed [" + consumerId + "] has been interrupted"));
+            }
+        }
+
+        private boolean running() {
+            return !emitter.isCancelled() && !Thread.currentThread().isInterrupted();
+        }
+
+        private void watch() {
+            List<Bson> pipeline = Collections.singletonList(Aggregates.match(Filters.and(
+                    Filters.in("operationType", "insert", "update", "replace"),
+                    filter(criteria, FULL_DOCUMENT))));
+
+            ChangeStreamIterable<Document> stream = events.watch(pipeline)
+                    .fullDocument(FullDocument.UPDATE_LOOKUP)
+                    .maxAwaitTime(pollInterval, TimeUnit.MILLISECONDS);
+
+            boolean catchUp = resumeToken == null && lastUpdatedAt != null;
+            if (resumeToken != null) {
+                stream = stream.resumeAfter(resumeToken);
+            }
+
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+                // The stream is opened before catching up so that no event falls in between.
+                if (catchUp) {
+                    poll();
+                }
+
+                while (running()) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    boolean emitted = change != null && change.getFullDocument() != null
+                            && emit(change.getFullDocument());
+
+                    // Stopped while waiting for demand: the change may not have been emitted
+                    if (!running()) {
+                        break;
+                    }
+
+                    BsonDocument token = cursor.getResumeToken();
+                    if (token != null && !token.equals(resumeToken)) {
+                        resumeToken = token;
+                        if (emitted || System.currentTimeMillis() - lastSave >= TOKEN_SAVE_INTERVAL) {
+                            save();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void poll() {
+            boolean dirty = lastSave == 0;
+            if (lastUpdatedAt == null) {
+                lastUpdatedAt = new Date();
+            }
+
+            for (Document document : events
+                    .find(Filters.and(filter(criteria, ""), Filters.gte(FIELD_UPDATED_AT, lastUpdatedAt)))
+                    .sort(Sorts.ascending(FIELD_UPDATED_AT, FIELD_ID))
+                    .batchSize(POLL_BATCH_SIZE)) {
+                if (!running()) {
+                    break;
+                }
+                dirty |= emit(document);
+            }
+
+            if (dirty) {
+                save();
+            }
+        }
+
+        private boolean emit(Document document) {
+            EventMongo eventMongo = mongoTemplate.getConverter().read(EventMongo.class, document);
+            Date updatedAt = eventMongo.getUpdatedAt();
+
+            // Already delivered, either by the previous poll or by the catch-up
+            if (updatedAt != null && updatedAt.equals(lastUpdatedAt) && lastIds.contains(eventMongo.getId())) {
+                return false;
+            }
+
+            if (!awaitDemand()) {
+                return false;
+            }
+
+            payloadStore.resolve(eventMongo);
+            emitter.onNext(mapper.map(eventMongo, Event.class));
+
+            if (updatedAt != null) {
+                if (lastUpdatedAt == null || updatedAt.after(lastUpdatedAt)) {
+                    lastUpdatedAt = updatedAt;
+                    lastIds = new HashSet<>();
+                }
+                if (updatedAt.equals(lastUpdatedAt)) {
+                    lastIds.add(eventMongo.getId());
+                }
+            }
+
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void load() {
+            Document state = feeds.find(Filters.eq(FIELD_ID, consumerId)).first();
+            if (state != null) {
+                Document token = state.get(FIELD_RESUME_TOKEN, Document.class);
+                if (token != null) {
+                    resumeToken = token.toBsonDocument(BsonDocument.class, feeds.getCodecRegistry());
+                }
+                lastUpdatedAt = state.getDate(FIELD_LAST_UPDATED_AT);
+                savedAt = state.getDate(FIELD_UPDATED_AT);
+                List<String> ids = state.get(FIELD_LAST_IDS, List.class);
+                if (ids != null) {
+                    lastIds = new HashSet<>(ids);
+                }
+            }
+        }
+
+        private void save() {
+            Date now = new Date();
+            feeds.replaceOne(Filters.eq(FIELD_ID, consumerId),
+                    new Document(FIELD_ID, consumerId)
+                            .append(FIELD_RESUME_TOKEN, resumeToken)
+                            .append(FIELD_LAST_UPDATED_AT, lastUpdatedAt)
+                            .append(FIELD_LAST_IDS, new ArrayList<>(lastIds))
+                            .append(FIELD_UPDATED_AT, now),
+                    new ReplaceOptions().upsert(true));
+            savedAt = now;
+            lastSave = now.getTime();
+        }
+
+        private void failed(MongoException me) {
+            if (me instanceof MongoInterruptedException) {
+                // The driver does not always keep the interruption status
+                Thread.currentThread().interrupt();
+            } else if (running()) {
+                logger.error("An error occurs while reading event feed [{}], retrying in {} ms", consumerId,
+                        pollInterval, me);
+                sleep();
+            }
+        }
+
+        /**
+         * @return whether the subscriber requested more events, <code>false</code> if the feed stopped meanwhile.
+         */
+        private boolean awaitDemand() {
+            while (emitter.requested() == 0) {
+                if (!running()) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(DEMAND_WAIT);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void sleep() {
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import io.gravitee.repository.management.api.search.Pageable;
 import io.gravitee.repository.management.model.Event;
 import io.gravitee.repository.management.model.EventType;
 import io.gravitee.repository.mongodb.management.internal.event.EventMongoRepository;
+import io.gravitee.repository.mongodb.management.internal.event.EventPayloadStore;
 import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
 import io.gravitee.repository.mongodb.management.mapper.GraviteeMapper;
 import org.slf4j.Logger;
@@ -30,7 +31,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -48,11 +53,15 @@ public class MongoEventRepository implements EventRepository {
     @Autowired
     private GraviteeMapper mapper;
 
+    @Autowired
+    private EventPayloadStore payloadStore;
+
     @Override
     public Optional<Event> findById(String id) throws TechnicalException {
         logger.debug("Find event by ID [{}]", id);
 
         EventMongo event = internalEventRepo.findById(id).orElse(null);
+        payloadStore.resolve(event);
         Event res = mapEvent(event);
 
         logger.debug("Find event by ID [{}] - Done", id);
@@ -64,7 +73,9 @@ public class MongoEventRepository implements EventRepository {
         logger.debug("Create event [{}]", event.getId());
 
         EventMongo eventMongo = mapEvent(event);
+        payloadStore.externalize(eventMongo);
         EventMongo createdEventMongo = internalEventRepo.insert(eventMongo);
+        payloadStore.resolve(createdEventMongo);
 
         Event res = mapEvent(createdEventMongo);
 
@@ -85,6 +96,7 @@ public class MongoEventRepository implements EventRepository {
         }
 
         try {
+            final String previousDigest = eventMongo.getPayloadDigest();
             eventMongo.setProperties(event.getProperties());
             eventMongo.setType(event.getType().toString());
             eventMongo.setPayload(event.getPayload());
@@ -92,7 +104,12 @@ public class MongoEventRepository implements EventRepository {
             eventMongo.setCreatedAt(event.getUpdatedAt());
             eventMongo.setUpdatedAt(event.getUpdatedAt());
             eventMongo.setEnvironments(event.getEnvironments());
+            payloadStore.externalize(eventMongo);
             EventMongo eventMongoUpdated = internalEventRepo.save(eventMongo);
+            if (previousDigest != null && !previousDigest.equals(eventMongoUpdated.getPayloadDigest())) {
+                payloadStore.release(Collections.singleton(previousDigest));
+            }
+            payloadStore.resolve(eventMongoUpdated);
             return mapEvent(eventMongoUpdated);
         } catch (Exception e) {
             logger.error("An error occured when updating event", e);
@@ -103,7 +120,10 @@ public class MongoEventRepository implements EventRepository {
     @Override
     public void delete(String id) throws TechnicalException {
         try {
-            internalEventRepo.deleteById(id);
+            EventMongo deleted = internalEventRepo.findAndDeleteById(id);
+            if (deleted != null) {
+                payloadStore.release(Collections.singleton(deleted.getPayloadDigest()));
+            }
         } catch (Exception e) {
             logger.error("An error occured when deleting event [{}]", id, e);
             throw new TechnicalException("An error occured when deleting event");
@@ -113,6 +133,7 @@ public class MongoEventRepository implements EventRepository {
     @Override
     public Page<Event> search(EventCriteria filter, Pageable pageable) {
         Page<EventMongo> eventsMongo = internalEventRepo.search(filter, pageable);
+        payloadStore.resolve(eventsMongo.getContent());
 
         List<Event> content = mapper.collection2list(eventsMongo.getContent(), EventMongo.class, Event.class);
         return new Page<>(content, eventsMongo.getPageNumber(), (int) eventsMongo.getPageElements(), eventsMongo.getTotalElements());
@@ -121,10 +142,65 @@ public class MongoEventRepository implements EventRepository {
     @Override
     public List<Event> search(EventCriteria filter) {
         Page<EventMongo> eventsMongo = internalEventRepo.search(filter, null);
+        payloadStore.resolve(eventsMongo.getContent());
+
+        return mapper.collection2list(eventsMongo.getContent(), EventMongo.class, Event.class);
+    }
+
+    /**
+     * Same as {@link #search(EventCriteria, Pageable)} without the payloads, which hold the whole API definition:
+     * callers only needing ids, types, properties and dates fetch the payloads they act upon with
+     * {@link #findPayloadById(String)} or {@link #findPayloadsByIds(Collection)}.
+     */
+    public Page<Event> searchWithoutPayload(EventCriteria filter, Pageable pageable) {
+        Page<EventMongo> eventsMongo = internalEventRepo.search(filter, pageable, false);
+
+        List<Event> content = mapper.collection2list(eventsMongo.getContent(), EventMongo.class, Event.class);
+        return new Page<>(content, eventsMongo.getPageNumber(), (int) eventsMongo.getPageElements(), eventsMongo.getTotalElements());
+    }
+
+    public List<Event> searchWithoutPayload(EventCriteria filter) {
+        Page<EventMongo> eventsMongo = internalEventRepo.search(filter, null, false);
 
         return mapper.collection2list(eventsMongo.getContent(), EventMongo.class, Event.class);
     }
 
+    public Optional<String> findPayloadById(String id) {
+        logger.debug("Find event payload by ID [{}]", id);
+
+        Optional<String> payload = Optional.ofNullable(findPayloadsByIds(Collections.singleton(id)).get(id));
+
+        logger.debug("Find event payload by ID [{}] - Done", id);
+        return payload;
+    }
+
+    public Map<String, String> findPayloadsByIds(Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        List<EventMongo> eventsMongo = internalEventRepo.findPayloadsByIds(ids);
+        payloadStore.resolve(eventsMongo);
+
+        Map<String, String> payloads = new HashMap<>();
+        eventsMongo.forEach(event -> payloads.put(event.getId(), event.getPayload()));
+        return payloads;
+    }
+
+    /**
+     * Returns only the most recent event of each API matching the filter (typically PUBLISH_API, UNPUBLISH_API,
+     * START_API and STOP_API), so that gateway synchronization does not have to deduplicate the whole history.
+     */
+    public List<Event> findLatestByApi(EventCriteria filter) {
+        logger.debug("Find latest events by API [{}]", filter);
+
+        List<EventMongo> eventsMongo = internalEventRepo.findLatestByApi(filter);
+        payloadStore.resolve(eventsMongo);
+
+        logger.debug("Find latest events by API [{}] - Done", filter);
+        return mapper.collection2list(eventsMongo, EventMongo.class, Event.class);
+    }
+
     private EventMongo mapEvent(Event event) {
         if (event == null) {
             return null;
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management.internal.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import io.gravitee.repository.mongodb.management.internal.model.EventPayloadMongo;
+
+/**
+ * Background compaction of the {@code events} collection: only the newest events of each API
+ * ({@code properties.api_id}) and type are kept, older ones are deleted by batches of ids, pausing between batches
+ * so that compaction does not compete with the regular traffic.
+ *
+ * The stored payloads of the deleted events are released through the {@link EventPayloadStore}, i.e. deleted once no
+ * longer referenced. Optionally, the whole {@code event_payloads} collection is also scanned for payloads no longer
+ * referenced by any event, e.g. left over by previous versions.
+ *
+ * @author GraviteeSource Team
+ */
+public class EventCompactor {
+
+    static final String METRIC_RUNS = "events.compaction.runs";
+    static final String METRIC_ERRORS = "events.compaction.errors";
+    static final String METRIC_DURATION = "events.compaction.duration";
+    static final String METRIC_GROUPS = "events.compaction.groups";
+    static final String METRIC_DELETED = "events.compaction.deleted";
+    static final String METRIC_BATCH = "events.compaction.batch";
+    static final String METRIC_PAYLOADS_DELETED = "events.compaction.payloads.deleted";
+    static final String METRIC_LAST_RUN = "events.compaction.lastRun";
+
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_API_ID = "properties.api_id";
+    private static final String FIELD_TYPE = "type";
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+    private static final String FIELD_PAYLOAD_DIGEST = "payloadDigest";
+    private static final String FIELD_LAST_REFERENCED_AT = "lastReferencedAt";
+    private static final String FIELD_COUNT = "count";
+    private static final String GROUP_API = "api";
+    private static final String GROUP_TYPE = "type";
+
+    /**
+     * Payloads referenced more recently are never considered as orphans, which covers an event being created with
+     * a payload that the cleanup is looking at.
+     */
+    private static final long ORPHAN_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    private final Logger logger = LoggerFactory.getLogger(EventCompactor.class);
+
+    private final MongoOperations mongoOperations;
+
+    private final int keep;
+
+    private final int batchSize;
+
+    private final long throttle;
+
+    private final boolean orphanPayloads;
+
+    private final EventPayloadStore payloadStore;
+
+    private final RepositoryMetrics metrics;
+
+    private final AtomicLong lastRun = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param keep how many events are kept for each API and type.
+     * @param batchSize how many events are deleted by a single <code>deleteMany</code>.
+     * @param throttle pause (ms) between two batches.
+     * @param orphanPayloads whether all the payloads no longer referenced by any event are deleted, and not only the
+     *                       ones of the compacted events.
+     */
+    public EventCompactor(MongoOperations mongoOperations, EventPayloadStore payloadStore, int keep, int batchSize,
+                          long throttle, boolean orphanPayloads, RepositoryMetrics metrics) {
+        if (keep < 1) {
+            throw new IllegalArgumentException("Event compaction must keep at least one event per API");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Event compaction batch size must be positive");
+        }
+
+        this.mongoOperations = mongoOperations;
+        this.keep = keep;
+        this.batchSize = batchSize;
+        this.throttle = throttle;
+        this.orphanPayloads = orphanPayloads;
+        this.payloadStore = payloadStore;
+        this.metrics = metrics;
+
+        metrics.gauge(METRIC_LAST_RUN, lastRun::get);
+    }
+
+    public void start(long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-events-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void compact() {
+        final long start = System.nanoTime();
+        try {
+            long deleted = compactEvents();
+            long payloads = orphanPayloads ? deleteOrphanPayloads() : 0;
+
+            metrics.increment(METRIC_RUNS);
+            logger.info("Events compacted: {} events and {} orphan payloads deleted in {} ms", deleted, payloads,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            metrics.increment(METRIC_ERRORS);
+            logger.error("Unexpected error while compacting events", e);
+        } finally {
+            metrics.record(METRIC_DURATION, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            lastRun.set(System.currentTimeMillis());
+        }
+    }
+
+    private long compactEvents() throws InterruptedException {
+        MongoCollection<Document> events = collection(EventMongo.class);
+
+        // Groups are few (APIs x types), fetch them all rather than keeping a cursor open while deleting
+        List<Document> groups = events.aggregate(Arrays.asList(
+                Aggregates.match(Filters.exists(FIELD_API_ID)),
+                Aggregates.group(
+                        new Document(GROUP_API, "$" + FIELD_API_ID).append(GROUP_TYPE, "$" + FIELD_TYPE),
+                        Accumulators.sum(FIELD_COUNT, 1)),
+                Aggregates.match(Filters.gt(FIELD_COUNT, keep))))
+                .allowDiskUse(true)
+                .into(new ArrayList<>());
+
+        long deleted = 0;
+        for (Document group : groups) {
+            Document id = group.get(FIELD_ID, Document.class);
+            deleted += compactGroup(events, id.get(GROUP_API), id.get(GROUP_TYPE));
+            metrics.increment(METRIC_GROUPS);
+        }
+
+        return deleted;
+    }
+
+    private long compactGroup(MongoCollection<Document> events, Object api, Object type) throws InterruptedException {
+        // Ids to delete are fetched before deleting any, so that the cursor does not walk an index being modified
+        List<Document> compacted = events
+                .find(Filters.and(Filters.eq(FIELD_API_ID, api), Filters.eq(FIELD_TYPE, type)))
+                .projection(Projections.include(FIELD_ID, FIELD_PAYLOAD_DIGEST))
+                .sort(Sorts.descending(FIELD_UPDATED_AT))
+                .skip(keep)
+                .batchSize(batchSize)
+                .into(new ArrayList<>());
+
+        long deleted = 0;
+        for (int from = 0; from < compacted.size(); from += batchSize) {
+            List<Document> batch = compacted.subList(from, Math.min(from + batchSize, compacted.size()));
+            List<Object> ids = batch.stream().map(event -> event.get(FIELD_ID)).collect(Collectors.toList());
+            Set<String> digests = batch.stream()
+                    .map(event -> event.getString(FIELD_PAYLOAD_DIGEST))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+
+            deleted += delete(events, Filters.in(FIELD_ID, ids), METRIC_DELETED);
+            metrics.increment(METRIC_PAYLOADS_DELETED, payloadStore.release(digests));
+        }
+
+        return deleted;
+    }
+
+    private long deleteOrphanPayloads() throws InterruptedException {
+        MongoCollection<Document> events = collection(EventMongo.class);
+        MongoCollection<Document> payloads = collection(EventPayloadMongo.class);
+        Bson unreferenced = Filters.lt(FIELD_LAST_REFERENCED_AT,
+                new Date(System.currentTimeMillis() - ORPHAN_GRACE_PERIOD));
+
+        List<String> digests = new ArrayList<>(batchSize);
+        long deleted = 0;
+
+        for (Document payload : payloads
+                .find(unreferenced)
+                .projection(Projections.include(FIELD_ID))
+                .batchSize(batchSize)) {
+            digests.add(payload.getString(FIELD_ID));
+            if (digests.size() == batchSize) {
+                deleted += deleteOrphanPayloads(events, payloads, digests, unreferenced);
+                digests.clear();
+            }
+        }
+
+        if (!digests.isEmpty()) {
+            deleted += deleteOrphanPayloads(events, payloads, digests, unreferenced);
+        }
+
+        return deleted;
+    }
+
+    private long deleteOrphanPayloads(MongoCollection<Document> events, MongoCollection<Document> payloads,
+                                      List<String> digests, Bson unreferenced) throws InterruptedException {
+        Set<String> referenced = events
+                .distinct(FIELD_PAYLOAD_DIGEST, Filters.in(FIELD_PAYLOAD_DIGEST, digests), String.class)
+                .into(new HashSet<>());
+
+        List<String> orphans = new ArrayList<>(digests);
+        orphans.removeAll(referenced);
+        if (orphans.isEmpty()) {
+            return 0;
+        }
+
+        // Checked again on delete, in case a payload got referenced in between
+        return delete(payloads, Filters.and(Filters.in(FIELD_ID, orphans), unreferenced), METRIC_PAYLOADS_DELETED);
+    }
+
+    private long delete(MongoCollection<Document> collection, Bson filter, String metric) throws InterruptedException {
+        final long start = System.nanoTime();
+        long deleted = collection.deleteMany(filter).getDeletedCount();
+
+        metrics.record(METRIC_BATCH, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        metrics.increment(metric, deleted);
+
+        if (throttle > 0) {
+            Thread.sleep(throttle);
+        }
+
+        return deleted;
+    }
+
+    private MongoCollection<Document> collection(Class<?> entityClass) {
+        return mongoOperations.getCollection(mongoOperations.getCollectionName(entityClass));
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
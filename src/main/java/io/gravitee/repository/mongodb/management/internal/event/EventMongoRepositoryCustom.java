@@ -15,6 +15,9 @@
  */
 package io.gravitee.repository.mongodb.management.internal.event;
 
+import java.util.Collection;
+import java.util.List;
+
 import io.gravitee.common.data.domain.Page;
 import io.gravitee.repository.management.api.search.EventCriteria;
 import io.gravitee.repository.management.api.search.Pageable;
@@ -28,4 +31,25 @@ import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
 public interface EventMongoRepositoryCustom {
 
     Page<EventMongo> search(EventCriteria filter, Pageable pageable);
+
+    /**
+     * Same as {@link #search(EventCriteria, Pageable)}, leaving the payload out server-side when
+     * {@code withPayload} is false.
+     */
+    Page<EventMongo> search(EventCriteria filter, Pageable pageable, boolean withPayload);
+
+    /**
+     * Returns the given events with only their payload, or the digest of their stored payload.
+     */
+    List<EventMongo> findPayloadsByIds(Collection<String> ids);
+
+    /**
+     * Returns the most recent event of each API (by {@code properties.api_id}) matching the filter.
+     */
+    List<EventMongo> findLatestByApi(EventCriteria filter);
+
+    /**
+     * Deletes the given event, returning it with only the digest of its stored payload, if any.
+     */
+    EventMongo findAndDeleteById(String id);
 }
@@ -15,6 +15,7 @@
  */
 package io.gravitee.repository.mongodb.management.internal.event;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -23,6 +24,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
@@ -38,50 +40,108 @@ import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
  */
 public class EventMongoRepositoryImpl implements EventMongoRepositoryCustom {
 
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_PAYLOAD = "payload";
+    private static final String FIELD_PAYLOAD_DIGEST = "payloadDigest";
+    private static final String FIELD_API_ID = "properties.api_id";
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+    private static final String FIELD_EVENT = "event";
+
     @Autowired
     private MongoTemplate mongoTemplate;
 
     @Override
     public Page<EventMongo> search(EventCriteria filter, Pageable pageable) {
+        return search(filter, pageable, true);
+    }
+
+    @Override
+    public Page<EventMongo> search(EventCriteria filter, Pageable pageable, boolean withPayload) {
         Query query = new Query();
+        criteria(filter).forEach(query::addCriteria);
+
+        if (!withPayload) {
+            query.fields().exclude(FIELD_PAYLOAD);
+        }
+
+        // set sort by updated at
+        query.with(new Sort(Sort.Direction.DESC, FIELD_UPDATED_AT));
+
+        // set pageable
+        if (pageable != null) {
+            query.with(new PageRequest(pageable.pageNumber(), pageable.pageSize()));
+        }
+
+        List<EventMongo> events = mongoTemplate.find(query, EventMongo.class);
+        long total = mongoTemplate.count(query, EventMongo.class);
+
+        return new Page<>(
+                events, (pageable != null) ? pageable.pageNumber() : 0,
+                events.size(), total);
+    }
+
+    @Override
+    public List<EventMongo> findLatestByApi(EventCriteria filter) {
+        List<Criteria> criteria = criteria(filter);
+        criteria.add(Criteria.where(FIELD_API_ID).exists(true));
+
+        // Sorting on {properties.api_id, updatedAt} lets the $group stage pick the first event of each API
+        // straight from the index
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(new Criteria().andOperator(criteria.toArray(new Criteria[0]))),
+                Aggregation.sort(Sort.Direction.ASC, FIELD_API_ID).and(Sort.Direction.DESC, FIELD_UPDATED_AT),
+                Aggregation.group(FIELD_API_ID).first(Aggregation.ROOT).as(FIELD_EVENT),
+                Aggregation.replaceRoot(FIELD_EVENT),
+                Aggregation.sort(Sort.Direction.DESC, FIELD_UPDATED_AT))
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+
+        return mongoTemplate.aggregate(aggregation, mongoTemplate.getCollectionName(EventMongo.class), EventMongo.class)
+                .getMappedResults();
+    }
+
+    @Override
+    public List<EventMongo> findPayloadsByIds(Collection<String> ids) {
+        Query query = new Query(Criteria.where(FIELD_ID).in(ids));
+        query.fields().include(FIELD_PAYLOAD).include(FIELD_PAYLOAD_DIGEST);
+
+        return mongoTemplate.find(query, EventMongo.class);
+    }
+
+    @Override
+    public EventMongo findAndDeleteById(String id) {
+        Query query = new Query(Criteria.where(FIELD_ID).is(id));
+        query.fields().include(FIELD_PAYLOAD_DIGEST);
+
+        return mongoTemplate.findAndRemove(query, EventMongo.class);
+    }
+
+    private List<Criteria> criteria(EventCriteria filter) {
+        List<Criteria> criteria = new ArrayList<>();
 
         if (filter.getTypes() != null && !filter.getTypes().isEmpty()) {
-            query.addCriteria(Criteria.where("type").in(filter.getTypes()));
+            criteria.add(Criteria.where("type").in(filter.getTypes()));
         }
 
         if (filter.getProperties() != null && !filter.getProperties().isEmpty()) {
             // set criteria query
             filter.getProperties().forEach((k, v) -> {
                 if (v instanceof Collection) {
-                    query.addCriteria(Criteria.where("properties." + k).in((Collection) v));
+                    criteria.add(Criteria.where("properties." + k).in((Collection) v));
                 } else {
-                    query.addCriteria(Criteria.where("properties." + k).is(v));
+                    criteria.add(Criteria.where("properties." + k).is(v));
                 }
             });
         }
 
         // set range query
         if (filter.getFrom() != 0 && filter.getTo() != 0) {
-            query.addCriteria(Criteria.where("updatedAt").gte(new Date(filter.getFrom())).lt(new Date(filter.getTo())));
+            criteria.add(Criteria.where(FIELD_UPDATED_AT).gte(new Date(filter.getFrom())).lt(new Date(filter.getTo())));
         }
 
         if (filter.getEnvironments() != null && !filter.getEnvironments().isEmpty()) {
-            query.addCriteria(Criteria.where("environments").in(filter.getEnvironments()));
+            criteria.add(Criteria.where("environments").in(filter.getEnvironments()));
         }
-        
-        // set sort by updated at
-        query.with(new Sort(Sort.Direction.DESC, "updatedAt"));
 
-        // set pageable
-        if (pageable != null) {
-            query.with(new PageRequest(pageable.pageNumber(), pageable.pageSize()));
-        }
-
-        List<EventMongo> events = mongoTemplate.find(query, EventMongo.class);
-        long total = mongoTemplate.count(query, EventMongo.class);
-
-        return new Page<>(
-                events, (pageable != null) ? pageable.pageNumber() : 0,
-                events.size(), total);
+        return criteria;
     }
 }
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management.internal.event;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import io.gravitee.repository.mongodb.management.internal.model.EventPayloadMongo;
+
+/**
+ * Content-addressed store of event payloads: a payload is stored once in {@code event_payloads} under the SHA-256
+ * digest of its content, whatever the number of events referencing it. Payloads never change for a given digest, so
+ * they are served from a bounded LRU cache once read.
+ *
+ * Disabled by default: nodes of a previous version read the inline payload only, so the store must only be enabled
+ * once every node reading events has been upgraded. Payloads are resolved and released whatever the setting, so that
+ * events written while it was enabled stay readable.
+ *
+ * @author GraviteeSource Team
+ */
+@Component
+public class EventPayloadStore {
+
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_PAYLOAD = "payload";
+    private static final String FIELD_CREATED_AT = "createdAt";
+    private static final String FIELD_LAST_REFERENCED_AT = "lastReferencedAt";
+    private static final String FIELD_PAYLOAD_DIGEST = "payloadDigest";
+
+    /**
+     * Payloads stored more recently are never released: the event referencing them may not be written yet.
+     */
+    static final long RELEASE_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Value("${management.mongodb.events.payloads.enabled:false}")
+    private boolean enabled;
+
+    @Value("${management.mongodb.events.payloads.cacheSize:100}")
+    private int cacheSize;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Moves the payload of the event to the store, leaving its digest in the event. Does nothing but clear a
+     * stale digest when the store is disabled or the event has no payload.
+     */
+    public void externalize(EventMongo event) {
+        if (enabled && event.getPayload() != null) {
+            event.setPayloadDigest(store(event.getPayload()));
+            event.setPayload(null);
+        } else {
+            event.setPayloadDigest(null);
+        }
+    }
+
+    /**
+     * Sets back the payload of the events referencing the store, with a single query for the digests not cached.
+     */
+    public void resolve(Collection<EventMongo> events) {
+        Set<String> digests = events.stream()
+                .filter(event -> event.getPayload() == null && event.getPayloadDigest() != null)
+                .map(EventMongo::getPayloadDigest)
+                .collect(Collectors.toSet());
+
+        if (digests.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> payloads = find(digests);
+        events.forEach(event -> {
+            if (event.getPayload() == null && event.getPayloadDigest() != null) {
+                event.setPayload(payloads.get(event.getPayloadDigest()));
+            }
+        });
+    }
+
+    public void resolve(EventMongo event) {
+        if (event != null) {
+            resolve(Collections.singletonList(event));
+        }
+    }
+
+    /**
+     * Deletes the payloads of the given digests which are no longer referenced by any event, typically the ones of
+     * deleted events. Payloads stored within the last minute are kept, and left to the orphan cleanup of the
+     * compaction.
+     *
+     * @return the number of payloads deleted.
+     */
+    public long release(Collection<String> digests) {
+        Set<String> candidates = digests.stream().filter(Objects::nonNull).collect(Collectors.toSet());
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        candidates.removeAll(mongoTemplate.findDistinct(
+                new Query(Criteria.where(FIELD_PAYLOAD_DIGEST).in(candidates)),
+                FIELD_PAYLOAD_DIGEST, EventMongo.class, String.class));
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        return mongoTemplate.remove(
+                new Query(Criteria.where(FIELD_ID).in(candidates)
+                        .and(FIELD_LAST_REFERENCED_AT).lt(new Date(System.currentTimeMillis() - RELEASE_GRACE_PERIOD))),
+                EventPayloadMongo.class).getDeletedCount();
+    }
+
+    private String store(String payload) {
+        String digest = digest(payload);
+
+        Date now = new Date();
+        try {
+            // lastReferencedAt keeps a payload being referenced again from the orphan cleanup
+            mongoTemplate.upsert(
+                    new Query(Criteria.where(FIELD_ID).is(digest)),
+                    new Update()
+                            .setOnInsert(FIELD_PAYLOAD, payload)
+                            .setOnInsert(FIELD_CREATED_AT, now)
+                            .set(FIELD_LAST_REFERENCED_AT, now),
+                    EventPayloadMongo.class);
+        } catch (DuplicateKeyException dke) {
+            // Same payload stored concurrently
+        }
+
+        synchronized (cache) {
+            cache.put(digest, payload);
+        }
+
+        return digest;
+    }
+
+    private Map<String, String> find(Collection<String> digests) {
+        Map<String, String> payloads = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        synchronized (cache) {
+            for (String digest : digests) {
+                String payload = cache.get(digest);
+                if (payload != null) {
+                    payloads.put(digest, payload);
+                } else {
+                    missing.add(digest);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            List<EventPayloadMongo> stored = mongoTemplate.find(
+                    new Query(Criteria.where(FIELD_ID).in(missing)), EventPayloadMongo.class);
+
+            synchronized (cache) {
+                stored.forEach(payload -> {
+                    payloads.put(payload.getId(), payload.getPayload());
+                    cache.put(payload.getId(), payload.getPayload());
+                });
+            }
+        }
+
+        return payloads;
+    }
+
+    static String digest(String payload) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(payload.getBytes(StandardCharsets.UTF_8));
+
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
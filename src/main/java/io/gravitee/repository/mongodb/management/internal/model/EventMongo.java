@@ -34,6 +34,7 @@ public class EventMongo extends Auditable {
     private Set<String> environments;
     private String type;
     private String payload;
+    private String payloadDigest;
     private String parentId;
     private Map<String, String> properties;
 
@@ -69,6 +70,17 @@ public class EventMongo extends Auditable {
         this.payload = payload;
     }
 
+    /**
+     * SHA-256 digest of the payload stored in {@code event_payloads}, when the payload is not inlined.
+     */
+    public String getPayloadDigest() {
+        return payloadDigest;
+    }
+
+    public void setPayloadDigest(String payloadDigest) {
+        this.payloadDigest = payloadDigest;
+    }
+
     public String getParentId() {
         return parentId;
     }
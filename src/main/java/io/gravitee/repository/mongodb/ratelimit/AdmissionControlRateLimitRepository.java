@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Bound the number of rate-limit operations in flight, so that a slow MongoDB does not make calls pile up in memory.
+ *
+ * At most <code>maxInFlight</code> operations run at the same time, a batch counting as one operation. The next
+ * <code>maxQueued</code> ones wait, in order, for at most <code>queueTimeout</code> ms. Operations which cannot be
+ * queued or time out in the queue are shed: they resolve right away, within the limit when <code>failOpen</code> is
+ * set, over the limit otherwise.
+ *
+ * @author GraviteeSource Team
+ */
+public class AdmissionControlRateLimitRepository extends DelegatingRateLimitRepository {
+
+    private final RepositoryMetrics metrics;
+
+    private final int maxInFlight;
+
+    private final int maxQueued;
+
+    private final long queueTimeout;
+
+    private final boolean failOpen;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Queue<Pending<?>> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Drain requests not handled yet: only one thread drains at a time, the others leave it to drain once more.
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    public AdmissionControlRateLimitRepository(RateLimitRepository<RateLimit> delegate, RepositoryMetrics metrics,
+                                               int maxInFlight, int maxQueued, long queueTimeout, boolean failOpen) {
+        super(delegate);
+        this.metrics = metrics;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.maxQueued = Math.max(maxQueued, 0);
+        this.queueTimeout = queueTimeout;
+        this.failOpen = failOpen;
+
+        metrics.gauge("admission.inflight", inFlight::get);
+        metrics.gauge("admission.queued", queued::get);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        return admit(() -> delegate.incrementAndGet(key, weight, supplier), () -> shed(supplier));
+    }
+
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        // Without batch support, the increments of an admitted batch must not go through admission again
+        return admit(() -> delegate instanceof BatchRateLimitRepository ? super.incrementAndGet(increments) : Single
+                .concat(increments
+                        .stream()
+                        .map(increment -> delegate.incrementAndGet(increment.getKey(), increment.getWeight(), increment.getSupplier()))
+                        .collect(Collectors.toList()))
+                .toList(), () -> increments
+                .stream()
+                .map(increment -> shed(increment.getSupplier()))
+                .collect(Collectors.toList()));
+    }
+
+    private <T> Single<T> admit(Supplier<Single<T>> operation, Supplier<T> fallback) {
+        return Single.defer(() -> {
+            // Queued operations go first
+            if (queued.get() == 0 && tryAcquire()) {
+                return operation.get().doFinally(this::release);
+            }
+
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                metrics.increment("admission.shed.full");
+                return Single.just(fallback.get());
+            }
+
+            return Single.<T>create(emitter -> {
+                final Pending<T> pending = new Pending<>(operation, fallback, emitter);
+                // Set up before queuing: once started, the operation replaces the cancellation of the emitter
+                emitter.setCancellable(() -> {
+                    if (pending.claim()) {
+                        dequeued(pending);
+                    }
+                });
+                pending.timer = Schedulers.computation().scheduleDirect(() -> expire(pending), queueTimeout, TimeUnit.MILLISECONDS);
+                queue.offer(pending);
+
+                // A permit may have been released before the operation was queued
+                drain();
+            });
+        });
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * Start the queued operations, in order, as long as permits are available. An operation completing synchronously
+     * releases its permit from within this loop: the loop then runs once more instead of draining recursively.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            while (!queue.isEmpty() && tryAcquire()) {
+                final Pending<?> pending = queue.poll();
+                if (pending != null && pending.claim()) {
+                    queued.decrementAndGet();
+                    pending.timer.dispose();
+                    metrics.record("admission.queue.wait", System.nanoTime() - pending.queuedAt, TimeUnit.NANOSECONDS);
+                    pending.start();
+                } else {
+                    // Already expired or cancelled, give the permit back to the next one
+                    inFlight.decrementAndGet();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void expire(Pending<?> pending) {
+        if (pending.claim()) {
+            dequeued(pending);
+            metrics.increment("admission.shed.timeout");
+            pending.shed();
+        }
+    }
+
+    private void dequeued(Pending<?> pending) {
+        queued.decrementAndGet();
+        queue.remove(pending);
+    }
+
+    private RateLimit shed(Supplier<RateLimit> supplier) {
+        final RateLimit rateLimit = supplier.get();
+        rateLimit.setCounter(failOpen ? 0 : (rateLimit.getLimit() == Long.MAX_VALUE ? Long.MAX_VALUE : rateLimit.getLimit() + 1));
+        return rateLimit;
+    }
+
+    private final class Pending<T> {
+
+        private final Supplier<Single<T>> operation;
+
+        private final Supplier<T> fallback;
+
+        private final SingleEmitter<T> emitter;
+
+        private final long queuedAt = System.nanoTime();
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private volatile Disposable timer;
+
+        private Pending(Supplier<Single<T>> operation, Supplier<T> fallback, SingleEmitter<T> emitter) {
+            this.operation = operation;
+            this.fallback = fallback;
+            this.emitter = emitter;
+        }
+
+        /**
+         * @return whether the caller is the first one to take this operation out of the queue.
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void start() {
+            emitter.setDisposable(operation.get()
+                    .doFinally(AdmissionControlRateLimitRepository.this::release)
+                    .subscribe(emitter::onSuccess, emitter::onError));
+        }
+
+        void shed() {
+            emitter.onSuccess(fallback.get());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+
+import java.util.List;
+
+/**
+ * A {@link RateLimitRepository} able to apply several increments at once, typically all the rate-limit and quota
+ * checks of a single API call.
+ *
+ * @author GraviteeSource Team
+ */
+public interface BatchRateLimitRepository extends RateLimitRepository<RateLimit> {
+
+    /**
+     * Apply all the given increments and return the resulting rate-limits, in the same order.
+     */
+    Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments);
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A BSON document encoded once, in which only a few values (the slots) are written each time it is rendered.
+ *
+ * Rendering copies the encoded bytes around the slots and patches the length of the enclosing documents and arrays:
+ * no intermediate {@link org.bson.Document} is built and nothing goes through the codec registry.
+ *
+ * @author GraviteeSource Team
+ */
+final class BsonTemplate {
+
+    private enum Kind {
+        INT64, DOUBLE, DATE, VALUE
+    }
+
+    /**
+     * A placeholder for a value, read from the given index of the numbers (int64, double and date slots) or of the
+     * values (string, binary or null) given at rendering. Doubles are given as their raw long bits.
+     */
+    static final class Slot {
+
+        private final Kind kind;
+
+        private final int index;
+
+        private Slot(Kind kind, int index) {
+            this.kind = kind;
+            this.index = index;
+        }
+    }
+
+    static Slot int64(int index) {
+        return new Slot(Kind.INT64, index);
+    }
+
+    static Slot float64(int index) {
+        return new Slot(Kind.DOUBLE, index);
+    }
+
+    static Slot date(int index) {
+        return new Slot(Kind.DATE, index);
+    }
+
+    static Slot value(int index) {
+        return new Slot(Kind.VALUE, index);
+    }
+
+    /**
+     * A slot positioned in the encoded template: its type byte is at <code>typeOffset</code> and its value is inserted
+     * at <code>offset</code>.
+     */
+    private static final class Hole {
+
+        private final Slot slot;
+
+        private final int typeOffset;
+
+        private final int offset;
+
+        private Hole(Slot slot, int typeOffset, int offset) {
+            this.slot = slot;
+            this.typeOffset = typeOffset;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A document or an array of the template, which contains the holes <code>first</code> (inclusive) to
+     * <code>last</code> (exclusive).
+     */
+    private static final class Container {
+
+        private final int offset;
+
+        private final int first;
+
+        private int length;
+
+        private int last;
+
+        private Container(int offset, int first) {
+            this.offset = offset;
+            this.first = first;
+        }
+    }
+
+    private final byte[] bytes;
+
+    private final Hole[] holes;
+
+    private final Container[] containers;
+
+    BsonTemplate(Map<String, ?> document) {
+        final Encoder encoder = new Encoder();
+        encoder.writeDocument(document);
+
+        this.bytes = encoder.buffer.toByteArray();
+        this.holes = encoder.holes.toArray(new Hole[0]);
+        this.containers = encoder.containers.toArray(new Container[0]);
+    }
+
+    RawBsonDocument render(long[] numbers, Object[] values) {
+        // shifts[i] is the number of bytes inserted before the i-th hole
+        final int[] shifts = new int[holes.length + 1];
+        for (int i = 0; i < holes.length; i++) {
+            shifts[i + 1] = shifts[i] + size(holes[i].slot, values);
+        }
+
+        final byte[] rendered = new byte[bytes.length + shifts[holes.length]];
+        int from = 0;
+        for (int i = 0; i < holes.length; i++) {
+            final Hole hole = holes[i];
+            System.arraycopy(bytes, from, rendered, from + shifts[i], hole.offset - from);
+            rendered[hole.typeOffset + shifts[i]] = type(hole.slot, values).getValue();
+            write(hole.slot, numbers, values, rendered, hole.offset + shifts[i]);
+            from = hole.offset;
+        }
+        System.arraycopy(bytes, from, rendered, from + shifts[holes.length], bytes.length - from);
+
+        for (Container container : containers) {
+            writeInt32(rendered, container.offset + shifts[container.first],
+                    container.length + shifts[container.last] - shifts[container.first]);
+        }
+
+        return new RawBsonDocument(rendered);
+    }
+
+    private static BsonType type(Slot slot, Object[] values) {
+        switch (slot.kind) {
+            case INT64:
+                return BsonType.INT64;
+            case DOUBLE:
+                return BsonType.DOUBLE;
+            case DATE:
+                return BsonType.DATE_TIME;
+            default:
+                final Object value = values[slot.index];
+                if (value == null) {
+                    return BsonType.NULL;
+                } else if (value instanceof String) {
+                    return BsonType.STRING;
+                } else if (value instanceof Binary) {
+                    return BsonType.BINARY;
+                }
+                throw new IllegalArgumentException("Unsupported template value: " + value.getClass());
+        }
+    }
+
+    private static int size(Slot slot, Object[] values) {
+        if (slot.kind != Kind.VALUE) {
+            return 8;
+        }
+
+        final Object value = values[slot.index];
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 4 + utf8Length((String) value) + 1;
+        } else if (value instanceof Binary) {
+            return 4 + 1 + ((Binary) value).length();
+        }
+        throw new IllegalArgumentException("Unsupported template value: " + value.getClass());
+    }
+
+    private static void write(Slot slot, long[] numbers, Object[] values, byte[] bytes, int offset) {
+        if (slot.kind != Kind.VALUE) {
+            writeInt64(bytes, offset, numbers[slot.index]);
+            return;
+        }
+
+        final Object value = values[slot.index];
+        if (value instanceof String) {
+            final String string = (String) value;
+            final int end = writeUtf8(string, bytes, offset + 4);
+            bytes[end] = 0;
+            writeInt32(bytes, offset, end + 1 - (offset + 4));
+        } else if (value instanceof Binary) {
+            final Binary binary = (Binary) value;
+            writeInt32(bytes, offset, binary.length());
+            bytes[offset + 4] = binary.getType();
+            System.arraycopy(binary.getData(), 0, bytes, offset + 5, binary.length());
+        }
+    }
+
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int writeUtf8(String string, byte[] bytes, int offset) {
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[offset++] = (byte) (0xC0 | (c >> 6));
+                bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                bytes[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced by '?', as String.getBytes does
+                bytes[offset++] = '?';
+            } else {
+                bytes[offset++] = (byte) (0xE0 | (c >> 12));
+                bytes[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    private static void writeInt32(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void writeInt64(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    /**
+     * Encode the template once, keeping track of the holes and of the containers to patch at rendering.
+     */
+    private static final class Encoder {
+
+        private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+
+        private final List<Hole> holes = new ArrayList<>();
+
+        private final List<Container> containers = new ArrayList<>();
+
+        private void writeDocument(Map<String, ?> document) {
+            final Container container = start();
+            document.forEach(this::writeElement);
+            end(container);
+        }
+
+        private void writeArray(List<?> array) {
+            final Container container = start();
+            for (int i = 0; i < array.size(); i++) {
+                writeElement(Integer.toString(i), array.get(i));
+            }
+            end(container);
+        }
+
+        private Container start() {
+            final Container container = new Container(buffer.getPosition(), holes.size());
+            containers.add(container);
+            buffer.writeInt32(0);
+            return container;
+        }
+
+        private void end(Container container) {
+            buffer.writeByte(0);
+            container.length = buffer.getPosition() - container.offset;
+            container.last = holes.size();
+            buffer.writeInt32(container.offset, container.length);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeElement(String name, Object value) {
+            final int typeOffset = buffer.getPosition();
+
+            if (value instanceof Slot) {
+                // The actual type is written at rendering
+                buffer.writeByte(BsonType.NULL.getValue());
+                buffer.writeCString(name);
+                holes.add(new Hole((Slot) value, typeOffset, buffer.getPosition()));
+            } else if (value instanceof Map) {
+                buffer.writeByte(BsonType.DOCUMENT.getValue());
+                buffer.writeCString(name);
+                writeDocument((Map<String, ?>) value);
+            } else if (value instanceof List) {
+                buffer.writeByte(BsonType.ARRAY.getValue());
+                buffer.writeCString(name);
+                writeArray((List<?>) value);
+            } else if (value instanceof String) {
+                buffer.writeByte(BsonType.STRING.getValue());
+                buffer.writeCString(name);
+                buffer.writeString((String) value);
+            } else if (value instanceof Long) {
+                buffer.writeByte(BsonType.INT64.getValue());
+                buffer.writeCString(name);
+                buffer.writeInt64((Long) value);
+            } else if (value instanceof Double) {
+                buffer.writeByte(BsonType.DOUBLE.getValue());
+                buffer.writeCString(name);
+                buffer.writeDouble((Double) value);
+            } else if (value instanceof Integer) {
+                buffer.writeByte(BsonType.INT32.getValue());
+                buffer.writeCString(name);
+                buffer.writeInt32((Integer) value);
+            } else if (value instanceof Boolean) {
+                buffer.writeByte(BsonType.BOOLEAN.getValue());
+                buffer.writeCString(name);
+                buffer.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Date) {
+                buffer.writeByte(BsonType.DATE_TIME.getValue());
+                buffer.writeCString(name);
+                buffer.writeInt64(((Date) value).getTime());
+            } else if (value == null) {
+                buffer.writeByte(BsonType.NULL.getValue());
+                buffer.writeCString(name);
+            } else {
+                throw new IllegalArgumentException("Unsupported template value: " + value.getClass());
+            }
+        }
+    }
+}
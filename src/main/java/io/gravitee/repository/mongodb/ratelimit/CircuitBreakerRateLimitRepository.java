@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keep rate-limiting when MongoDB is unavailable or too slow, instead of holding the gateway traffic until the driver
+ * timeouts fire.
+ *
+ * A call which fails or does not complete within <code>timeout</code> ms is counted in memory. After
+ * <code>failureThreshold</code> consecutive failures the breaker opens: MongoDB is not called anymore and every key is
+ * counted by a local limiter, which allows each of the <code>nodes</code> gateways its share (limit / nodes) of the
+ * quota. MongoDB is probed every <code>probeInterval</code> ms; once it answers again in time the breaker closes and the
+ * weight counted locally while it was open, for windows still running, is written back to MongoDB through the
+ * delegate.
+ *
+ * The weight of a call which failed or timed out while the breaker was closed is not written back: the write may have
+ * reached MongoDB anyway, and writing it back could count it twice. Such calls are undercounted when their write was
+ * actually lost. Local counters only implement fixed windows.
+ *
+ * @author GraviteeSource Team
+ */
+public class CircuitBreakerRateLimitRepository extends DelegatingRateLimitRepository {
+
+    private final Logger logger = LoggerFactory.getLogger(CircuitBreakerRateLimitRepository.class);
+
+    private final BatchRateLimitRepository batchDelegate;
+
+    private final RateLimitStore store;
+
+    private final RepositoryMetrics metrics;
+
+    private final long timeout;
+
+    private final int failureThreshold;
+
+    private final int nodes;
+
+    private final ConcurrentMap<String, LocalCounter> counters = new ConcurrentHashMap<>();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean open;
+
+    private volatile long openedAt;
+
+    public CircuitBreakerRateLimitRepository(BatchRateLimitRepository delegate, RateLimitStore store,
+                                             RepositoryMetrics metrics, long timeout, int failureThreshold, int nodes,
+                                             long probeInterval) {
+        super(delegate);
+        this.batchDelegate = delegate;
+        this.store = store;
+        this.metrics = metrics;
+        this.timeout = timeout;
+        this.failureThreshold = failureThreshold;
+        this.nodes = Math.max(nodes, 1);
+
+        metrics.gauge("breaker.open", () -> open ? 1 : 0);
+        metrics.gauge("breaker.local.keys", counters::size);
+        metrics.gauge("breaker.degraded.current", () ->
+                open ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAt) : 0);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-breaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::check, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        if (open) {
+            metrics.increment("breaker.calls.local");
+            return Single.just(local(key, weight, supplier, true));
+        }
+
+        return delegate
+                .incrementAndGet(key, weight, supplier)
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .doOnSuccess(rateLimit -> succeeded())
+                .onErrorReturn(throwable -> {
+                    failed(throwable);
+                    return local(key, weight, supplier, false);
+                });
+    }
+
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        if (open) {
+            metrics.increment("breaker.calls.local", increments.size());
+            return Single.just(local(increments, true));
+        }
+
+        return batchDelegate.incrementAndGet(increments)
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .doOnSuccess(rateLimits -> succeeded())
+                .onErrorReturn(throwable -> {
+                    failed(throwable);
+                    return local(increments, false);
+                });
+    }
+
+    private void succeeded() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    private void failed(Throwable throwable) {
+        metrics.increment("breaker.failures");
+        if (failures.incrementAndGet() >= failureThreshold && !open) {
+            synchronized (this) {
+                if (!open) {
+                    openedAt = System.nanoTime();
+                    open = true;
+                    metrics.increment("breaker.opened");
+                    logger.warn("Rate-limit repository is not responding, switching to local rate-limiting", throwable);
+                }
+            }
+        }
+    }
+
+    private List<RateLimit> local(List<RateLimitIncrement> increments, boolean reconcile) {
+        return increments
+                .stream()
+                .map(increment -> local(increment.getKey(), increment.getWeight(), increment.getSupplier(), reconcile))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param reconcile whether the weight has to be written back once the breaker closes, that is whether it has not
+     *                  been sent to MongoDB at all.
+     */
+    private RateLimit local(String key, long weight, Supplier<RateLimit> supplier, boolean reconcile) {
+        while (true) {
+            final RateLimit rateLimit = counters
+                    .computeIfAbsent(key, LocalCounter::new)
+                    .add(weight, System.currentTimeMillis(), supplier, reconcile);
+            if (rateLimit != null) {
+                return rateLimit;
+            }
+            // The counter has just been written back to MongoDB, start over with a new one
+        }
+    }
+
+    /**
+     * Probe MongoDB while the breaker is open, and write back the weight counted locally once it is closed.
+     */
+    void check() {
+        try {
+            if (open) {
+                probe();
+            }
+            if (!open && !counters.isEmpty()) {
+                reconcile();
+            }
+        } catch (Exception e) {
+            logger.error("Unexpected error while checking the rate-limit repository", e);
+        }
+    }
+
+    private void probe() {
+        try {
+            store.ping().block(Duration.ofMillis(timeout));
+        } catch (Exception e) {
+            logger.debug("Rate-limit repository is still not responding", e);
+            return;
+        }
+
+        synchronized (this) {
+            failures.set(0);
+            open = false;
+            metrics.increment("breaker.closed");
+            metrics.record("breaker.degraded", System.nanoTime() - openedAt, TimeUnit.NANOSECONDS);
+            logger.info("Rate-limit repository is responding again, switching back to distributed rate-limiting");
+        }
+    }
+
+    private void reconcile() {
+        final long now = System.currentTimeMillis();
+        final List<LocalCounter> drained = new ArrayList<>();
+        final List<RateLimitIncrement> increments = new ArrayList<>();
+
+        counters.forEach((key, counter) -> {
+            counters.remove(key, counter);
+            final RateLimitIncrement increment = counter.drain(now);
+            drained.add(counter);
+            if (increment != null) {
+                increments.add(increment);
+            }
+        });
+
+        if (increments.isEmpty()) {
+            return;
+        }
+
+        try {
+            batchDelegate.incrementAndGet(increments).timeout(timeout, TimeUnit.MILLISECONDS).blockingGet();
+            metrics.increment("breaker.reconciled.keys", increments.size());
+            metrics.increment("breaker.reconciled.weight", increments.stream().mapToLong(RateLimitIncrement::getWeight).sum());
+        } catch (Exception e) {
+            if (e.getCause() instanceof TimeoutException) {
+                // As for the calls, a write back which timed out may have been applied: it is not retried
+                metrics.increment("breaker.reconciled.timeouts");
+                logger.warn("Writing back the locally counted rate-limits timed out, they may be undercounted", e);
+                return;
+            }
+            metrics.increment("breaker.reconciled.errors");
+            logger.warn("Unable to write back the locally counted rate-limits, retrying later", e);
+            drained.forEach(counter -> counters.merge(counter.key, counter.restore(), LocalCounter::merge));
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        super.destroy();
+    }
+
+    private final class LocalCounter {
+
+        private final String key;
+
+        /** Weight counted locally in the current window */
+        private long counter;
+
+        /** Weight not written back to MongoDB yet */
+        private long pending;
+
+        private long limit;
+
+        private long resetTime;
+
+        private String subscription;
+
+        private boolean drained;
+
+        private LocalCounter(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the counter as seen by the gateway, or <code>null</code> if this counter has been drained.
+         */
+        synchronized RateLimit add(long weight, long now, Supplier<RateLimit> supplier, boolean reconcile) {
+            if (drained) {
+                return null;
+            }
+
+            if (resetTime <= now) {
+                final RateLimit rateLimit = supplier.get();
+                counter = 0;
+                pending = 0;
+                limit = rateLimit.getLimit();
+                resetTime = rateLimit.getResetTime();
+                subscription = rateLimit.getSubscription();
+            }
+
+            counter += weight;
+            if (reconcile) {
+                pending += weight;
+            }
+
+            // This node only owns its share of the quota: scale the counter up instead of the limit down, so that the
+            // gateway decides against the configured limit.
+            final RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setCounter(counter * nodes);
+            rateLimit.setLimit(limit);
+            rateLimit.setResetTime(resetTime);
+            rateLimit.setSubscription(subscription);
+            return rateLimit;
+        }
+
+        synchronized RateLimitIncrement drain(long now) {
+            drained = true;
+            if (resetTime <= now || pending <= 0) {
+                return null;
+            }
+
+            final RateLimit template = new RateLimit(key);
+            template.setLimit(limit);
+            template.setResetTime(resetTime);
+            template.setSubscription(subscription);
+            return new RateLimitIncrement(key, pending, () -> template);
+        }
+
+        /**
+         * Make a drained counter usable again, after its weight could not be written back.
+         */
+        synchronized LocalCounter restore() {
+            drained = false;
+            return this;
+        }
+
+        synchronized LocalCounter merge(LocalCounter other) {
+            synchronized (other) {
+                if (other.resetTime == resetTime) {
+                    counter += other.counter;
+                    pending += other.pending;
+                } else if (other.resetTime > resetTime) {
+                    counter = other.counter;
+                    pending = other.pending;
+                    limit = other.limit;
+                    resetTime = other.resetTime;
+                    subscription = other.subscription;
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce the increments of hot keys locally and flush them periodically to MongoDB with a single batch, instead of
+ * running one <code>findAndModify</code> per call.
+ *
+ * The first call for a key (or for a new window) always goes to MongoDB. Subsequent calls are answered from the
+ * locally projected counter (last value read from MongoDB + local increments not flushed yet) as long as:
+ * <ul>
+ *     <li>the local increments not flushed yet stay under <code>maxPendingWeight</code></li>
+ *     <li>the projected counter stays under <code>limitRatio</code> of the limit, so that the decisions taken around
+ *     the limit are based on the actual counter</li>
+ * </ul>
+ * Otherwise the call goes straight to MongoDB. Calls made less than one flush interval before the end of a window also
+ * go straight to MongoDB, so that the local increments of a window are flushed before it ends: only increments whose
+ * flush failed until the end of their window are discarded.
+ *
+ * Flushes go through the delegate as a single batch, so that the layers below (such as striping) also apply to them,
+ * and the counters returned by the batch take the increments of the other gateways into account.
+ *
+ * @author GraviteeSource Team
+ */
+public class CoalescingRateLimitRepository extends DelegatingRateLimitRepository {
+
+    private final Logger logger = LoggerFactory.getLogger(CoalescingRateLimitRepository.class);
+
+    private final static Duration FLUSH_TIMEOUT = Duration.ofSeconds(5);
+
+    private final BatchRateLimitRepository batchDelegate;
+
+    private final RepositoryMetrics metrics;
+
+    private final long interval;
+
+    private final long maxPendingWeight;
+
+    private final double limitRatio;
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor;
+
+    public CoalescingRateLimitRepository(BatchRateLimitRepository delegate, RepositoryMetrics metrics, long interval,
+                                         long maxPendingWeight, double limitRatio) {
+        super(delegate);
+        this.batchDelegate = delegate;
+        this.metrics = metrics;
+        this.interval = interval;
+        this.maxPendingWeight = maxPendingWeight;
+        this.limitRatio = limitRatio;
+
+        metrics.gauge("coalescing.keys", counters::size);
+        metrics.gauge("coalescing.pending", () -> counters.values().stream().mapToLong(Counter::pending).sum());
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-coalescing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        final Counter counter = counters.get(key);
+        if (counter != null) {
+            final RateLimit projection = counter.add(weight, supplier, System.currentTimeMillis());
+            if (projection != null) {
+                metrics.increment("coalescing.calls.coalesced");
+                return Single.just(projection);
+            }
+        }
+
+        metrics.increment("coalescing.calls.direct");
+        return delegate
+                .incrementAndGet(key, weight, supplier)
+                .map(rateLimit -> counters.computeIfAbsent(key, Counter::new).merge(rateLimit, supplier));
+    }
+
+    void flush() {
+        try {
+            final long now = System.currentTimeMillis();
+            final Map<String, Long> flushed = new HashMap<>();
+            final List<RateLimitIncrement> increments = new ArrayList<>();
+
+            counters.forEach((key, counter) -> {
+                long delta = counter.drain(now);
+                if (delta > 0) {
+                    flushed.put(key, delta);
+                    increments.add(new RateLimitIncrement(key, delta, counter.supplier()));
+                } else if (counter.evict(now)) {
+                    counters.remove(key, counter);
+                }
+            });
+
+            if (increments.isEmpty()) {
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final List<RateLimit> rateLimits;
+            try {
+                rateLimits = batchDelegate.incrementAndGet(increments)
+                        .timeout(FLUSH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                        .blockingGet();
+            } catch (Exception e) {
+                logger.warn("Unable to flush {} rate-limit counters, they will be retried", increments.size(), e);
+                metrics.increment("coalescing.flush.errors");
+                flushed.forEach((key, delta) -> {
+                    Counter counter = counters.get(key);
+                    if (counter != null) {
+                        counter.failed(delta);
+                    }
+                });
+                return;
+            }
+
+            // The returned counters include the increments of the other gateways
+            for (int i = 0; i < increments.size(); i++) {
+                final RateLimitIncrement increment = increments.get(i);
+                final Counter counter = counters.get(increment.getKey());
+                if (counter != null) {
+                    counter.flushed(increment.getWeight(), i < rateLimits.size() ? rateLimits.get(i) : null);
+                }
+            }
+
+            metrics.record("coalescing.flush", System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            metrics.increment("coalescing.flush.keys", increments.size());
+            metrics.increment("coalescing.flush.weight", flushed.values().stream().mapToLong(Long::longValue).sum());
+        } catch (Exception e) {
+            logger.error("Unexpected error while flushing rate-limit counters", e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        if (executor.awaitTermination(5, TimeUnit.SECONDS)) {
+            flush();
+        }
+        super.destroy();
+    }
+
+    private final class Counter {
+
+        private final String key;
+
+        private Supplier<RateLimit> supplier;
+
+        /** Last counter value read from MongoDB */
+        private long base;
+
+        /** Local increments not flushed yet */
+        private long pending;
+
+        /** Local increments being flushed */
+        private long inflight;
+
+        private long limit;
+
+        private long resetTime;
+
+        private String subscription;
+
+        private boolean evicted;
+
+        private Counter(String key) {
+            this.key = key;
+        }
+
+        synchronized RateLimit add(long weight, Supplier<RateLimit> supplier, long now) {
+            // Close to the end of the window, local increments may not be flushed in time
+            if (evicted || resetTime - now <= interval) {
+                return null;
+            }
+
+            long projected = base + inflight + pending + weight;
+            if (pending + weight > maxPendingWeight || projected >= limit * limitRatio) {
+                return null;
+            }
+
+            this.pending += weight;
+            this.supplier = supplier;
+            return snapshot(projected);
+        }
+
+        synchronized RateLimit merge(RateLimit rateLimit, Supplier<RateLimit> supplier) {
+            this.supplier = supplier;
+            if (rateLimit.getResetTime() != resetTime) {
+                // A new window has started, local increments belong to the previous one
+                reset(rateLimit);
+                return rateLimit;
+            }
+
+            base = Math.max(base, rateLimit.getCounter());
+            rateLimit.setCounter(rateLimit.getCounter() + pending);
+            return rateLimit;
+        }
+
+        synchronized long drain(long now) {
+            if (resetTime <= now) {
+                // Only left when the last flushes of the window failed
+                if (pending > 0) {
+                    metrics.increment("coalescing.discarded", pending);
+                    pending = 0;
+                }
+                return 0;
+            }
+
+            long delta = pending;
+            inflight += delta;
+            pending = 0;
+            return delta;
+        }
+
+        synchronized void flushed(long delta, RateLimit rateLimit) {
+            inflight -= delta;
+            if (rateLimit == null) {
+                base += delta;
+            } else if (rateLimit.getResetTime() == resetTime) {
+                base = rateLimit.getCounter();
+            } else {
+                reset(rateLimit);
+            }
+        }
+
+        synchronized void failed(long delta) {
+            inflight -= delta;
+            pending += delta;
+        }
+
+        synchronized boolean evict(long now) {
+            evicted = pending == 0 && inflight == 0 && resetTime <= now;
+            return evicted;
+        }
+
+        synchronized long pending() {
+            return pending;
+        }
+
+        synchronized Supplier<RateLimit> supplier() {
+            return supplier;
+        }
+
+        private void reset(RateLimit rateLimit) {
+            base = rateLimit.getCounter();
+            pending = 0;
+            limit = rateLimit.getLimit();
+            resetTime = rateLimit.getResetTime();
+            subscription = rateLimit.getSubscription();
+        }
+
+        private RateLimit snapshot(long counter) {
+            RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setCounter(counter);
+            rateLimit.setLimit(limit);
+            rateLimit.setResetTime(resetTime);
+            rateLimit.setSubscription(subscription);
+            return rateLimit;
+        }
+    }
+}
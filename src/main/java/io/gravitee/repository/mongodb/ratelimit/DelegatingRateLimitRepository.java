@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Base class for the optional layers stacked in front of the {@link MongoRateLimitRepository}.
+ * Batches, peeks and usage reports are forwarded as-is to the delegate when it supports them. Destroying a layer also destroys the one
+ * it delegates to.
+ *
+ * @author GraviteeSource Team
+ */
+public abstract class DelegatingRateLimitRepository implements BatchRateLimitRepository, PeekableRateLimitRepository,
+        UsageRateLimitRepository, DisposableBean {
+
+    protected final RateLimitRepository<RateLimit> delegate;
+
+    protected DelegatingRateLimitRepository(RateLimitRepository<RateLimit> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        return delegate.incrementAndGet(key, weight, supplier);
+    }
+
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        if (delegate instanceof BatchRateLimitRepository) {
+            return ((BatchRateLimitRepository) delegate).incrementAndGet(increments);
+        }
+
+        return Single
+                .concat(increments
+                        .stream()
+                        .map(increment -> incrementAndGet(increment.getKey(), increment.getWeight(), increment.getSupplier()))
+                        .collect(Collectors.toList()))
+                .toList();
+    }
+
+    @Override
+    public Maybe<RateLimit> peek(String key) {
+        if (delegate instanceof PeekableRateLimitRepository) {
+            return ((PeekableRateLimitRepository) delegate).peek(key);
+        }
+
+        return Maybe.error(new UnsupportedOperationException("Rate-limit repository does not support peeking"));
+    }
+
+    @Override
+    public Flowable<RateLimitUsage> usage(Collection<String> subscriptions, boolean byPlan) {
+        if (delegate instanceof UsageRateLimitRepository) {
+            return ((UsageRateLimitRepository) delegate).usage(subscriptions, byPlan);
+        }
+
+        return Flowable.error(new UnsupportedOperationException("Rate-limit repository does not support usage reports"));
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (delegate instanceof DisposableBean) {
+            ((DisposableBean) delegate).destroy();
+        }
+    }
+}
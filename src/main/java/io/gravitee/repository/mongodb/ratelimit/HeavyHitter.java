@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A rate-limit key among the heaviest ones of an interval.
+ *
+ * @author GraviteeSource Team
+ */
+public class HeavyHitter {
+
+    private final String key;
+
+    private final long weight;
+
+    private final double rate;
+
+    private final long limitedCalls;
+
+    private final boolean limited;
+
+    @ConstructorProperties({"key", "weight", "rate", "limitedCalls", "limited"})
+    public HeavyHitter(String key, long weight, double rate, long limitedCalls, boolean limited) {
+        this.key = key;
+        this.weight = weight;
+        this.rate = rate;
+        this.limitedCalls = limitedCalls;
+        this.limited = limited;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Estimated weight received during the interval. It may be over-estimated, never under-estimated.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Estimated weight received per second.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Calls exceeding the limit, since the key became one of the heaviest of the interval.
+     */
+    public long getLimitedCalls() {
+        return limitedCalls;
+    }
+
+    /**
+     * Whether the last call of the interval exceeded the limit.
+     */
+    public boolean isLimited() {
+        return limited;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keep track of the rate-limit keys receiving the most traffic, to spot abusive consumers and hot documents.
+ *
+ * Every <code>interval</code> ms, the heaviest keys of the interval (with their estimated rate and whether they are
+ * limited) are published under <code>io.gravitee.repository.mongodb:type=HeavyHitters,scope=&lt;scope&gt;</code>.
+ *
+ * @author GraviteeSource Team
+ */
+public class HeavyHitterRateLimitRepository extends DelegatingRateLimitRepository implements HeavyHittersMXBean {
+
+    private final Logger logger = LoggerFactory.getLogger(HeavyHitterRateLimitRepository.class);
+
+    private final HeavyHitters heavyHitters;
+
+    private final long interval;
+
+    private final ScheduledExecutorService executor;
+
+    private volatile List<HeavyHitter> published = Collections.emptyList();
+
+    private ObjectName objectName;
+
+    public HeavyHitterRateLimitRepository(RateLimitRepository<RateLimit> delegate, String scope, int depth, int width,
+                                          int size, long interval) {
+        super(delegate);
+        this.heavyHitters = new HeavyHitters(depth, width, size);
+        this.interval = interval;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-heavy-hitters");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleAtFixedRate(this::rotate, interval, interval, TimeUnit.MILLISECONDS);
+
+        register(scope);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        return delegate
+                .incrementAndGet(key, weight, supplier)
+                .doOnSuccess(rateLimit -> heavyHitters.record(key, weight, rateLimit.getCounter() > rateLimit.getLimit()));
+    }
+
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        return super
+                .incrementAndGet(increments)
+                .doOnSuccess(rateLimits -> {
+                    for (int i = 0; i < rateLimits.size(); i++) {
+                        final RateLimit rateLimit = rateLimits.get(i);
+                        heavyHitters.record(increments.get(i).getKey(), increments.get(i).getWeight(),
+                                rateLimit.getCounter() > rateLimit.getLimit());
+                    }
+                });
+    }
+
+    void rotate() {
+        try {
+            published = Collections.unmodifiableList(heavyHitters.rotate(interval));
+        } catch (Exception e) {
+            logger.error("Unexpected error while publishing rate-limit heavy hitters", e);
+        }
+    }
+
+    @Override
+    public List<HeavyHitter> getHeavyHitters() {
+        return published;
+    }
+
+    @Override
+    public long getInterval() {
+        return interval;
+    }
+
+    private void register(String scope) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("io.gravitee.repository.mongodb:type=HeavyHitters,scope=" + scope);
+            if (server.isRegistered(name)) {
+                logger.warn("Heavy hitters for scope {} are already registered", scope);
+            } else {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to register heavy hitters for scope {}", scope, e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.debug("Unable to unregister heavy hitters", e);
+            }
+        }
+        super.destroy();
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Track the heaviest keys of an interval, in bounded memory: a count-min sketch estimates the weight of every key and
+ * the keys whose estimate is among the <code>size</code> highest are kept aside.
+ *
+ * Recording a call costs <code>depth</code> atomic additions. The tracked keys are only locked when a new key enters
+ * them, which happens less and less often as the interval goes on.
+ *
+ * @author GraviteeSource Team
+ */
+final class HeavyHitters {
+
+    private final int depth;
+
+    private final int mask;
+
+    private final int size;
+
+    private final AtomicLongArray sketch;
+
+    private final ConcurrentMap<String, Tracked> tracked = new ConcurrentHashMap<>();
+
+    /** Lowest estimate of the tracked keys, once there are <code>size</code> of them */
+    private volatile long threshold;
+
+    /**
+     * @param width number of counters per row, rounded up to a power of two.
+     */
+    HeavyHitters(int depth, int width, int size) {
+        this.depth = depth;
+        this.mask = Integer.highestOneBit(Math.max(width - 1, 1)) * 2 - 1;
+        this.size = size;
+        this.sketch = new AtomicLongArray(depth * (mask + 1));
+    }
+
+    void record(String key, long weight, boolean limited) {
+        final long hash = RateLimitRouter.hash(key);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            final int index = i * (mask + 1) + ((h1 + i * h2) & mask);
+            estimate = Math.min(estimate, sketch.addAndGet(index, weight));
+        }
+
+        final Tracked current = tracked.get(key);
+        if (current != null) {
+            current.update(estimate, limited);
+        } else if (estimate > threshold) {
+            track(key, estimate, limited);
+        }
+    }
+
+    private synchronized void track(String key, long estimate, boolean limited) {
+        if (tracked.containsKey(key)) {
+            return;
+        }
+
+        if (tracked.size() >= size) {
+            final Tracked lightest = tracked.values().stream().min(Comparator.comparingLong(Tracked::estimate)).orElse(null);
+            if (lightest == null || lightest.estimate() >= estimate) {
+                threshold = lightest == null ? 0 : lightest.estimate();
+                return;
+            }
+            tracked.remove(lightest.key);
+        }
+
+        final Tracked added = new Tracked(key);
+        added.update(estimate, limited);
+        tracked.put(key, added);
+
+        if (tracked.size() >= size) {
+            threshold = tracked.values().stream().mapToLong(Tracked::estimate).min().orElse(0);
+        }
+    }
+
+    /**
+     * Return the heaviest keys, heaviest first, and start a new interval.
+     */
+    synchronized List<HeavyHitter> rotate(long interval) {
+        final List<HeavyHitter> heavyHitters = new ArrayList<>(tracked.size());
+        tracked.values().forEach(current -> heavyHitters.add(new HeavyHitter(current.key, current.estimate(),
+                current.estimate() * 1000d / interval, current.limitedCalls.sum(), current.limited)));
+        heavyHitters.sort(Comparator.comparingLong(HeavyHitter::getWeight).reversed());
+
+        tracked.clear();
+        threshold = 0;
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.set(i, 0);
+        }
+
+        return heavyHitters;
+    }
+
+    private static final class Tracked {
+
+        private final String key;
+
+        private final LongAdder limitedCalls = new LongAdder();
+
+        private volatile long estimate;
+
+        private volatile boolean limited;
+
+        private Tracked(String key) {
+            this.key = key;
+        }
+
+        void update(long estimate, boolean limited) {
+            if (estimate > this.estimate) {
+                this.estimate = estimate;
+            }
+            this.limited = limited;
+            if (limited) {
+                limitedCalls.increment();
+            }
+        }
+
+        long estimate() {
+            return estimate;
+        }
+    }
+}
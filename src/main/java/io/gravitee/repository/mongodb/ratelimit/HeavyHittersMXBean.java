@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import java.util.List;
+
+/**
+ * JMX view of the rate-limit keys receiving the most traffic.
+ *
+ * @author GraviteeSource Team
+ */
+public interface HeavyHittersMXBean {
+
+    /**
+     * The heaviest keys of the last complete interval, heaviest first.
+     */
+    List<HeavyHitter> getHeavyHitters();
+
+    /**
+     * Length of an interval, in ms.
+     */
+    long getInterval();
+}
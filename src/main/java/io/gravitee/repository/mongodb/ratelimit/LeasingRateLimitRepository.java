@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Reserve a chunk (a lease) of a key's quota from MongoDB with a single increment, then serve the next hits of this
+ * key from memory until the lease is exhausted.
+ *
+ * Leasing only applies to keys whose limit is at least <code>minLimit</code>. The lease size follows the throughput
+ * observed for the key (about <code>target</code> ms of traffic), bounded by <code>minSize</code> and by
+ * <code>maxRatio</code> of the limit so that a single node never reserves the whole quota. The part of a lease not
+ * used after <code>idleTimeout</code> ms is given back, as long as its window is still the current one. Leases are
+ * acquired on the key's own document and given back to it, so leasing cannot be stacked over striping or coalescing.
+ *
+ * @author GraviteeSource Team
+ */
+public class LeasingRateLimitRepository extends DelegatingRateLimitRepository {
+
+    private final Logger logger = LoggerFactory.getLogger(LeasingRateLimitRepository.class);
+
+    private final RateLimitStore store;
+
+    private final RepositoryMetrics metrics;
+
+    private final long minLimit;
+
+    private final long minSize;
+
+    private final double maxRatio;
+
+    private final long target;
+
+    private final long idleTimeout;
+
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor;
+
+    public LeasingRateLimitRepository(RateLimitRepository<RateLimit> delegate, RateLimitStore store,
+                                      RepositoryMetrics metrics, long minLimit, long minSize, double maxRatio,
+                                      long target, long idleTimeout) {
+        super(delegate);
+        this.store = store;
+        this.metrics = metrics;
+        this.minLimit = minLimit;
+        this.minSize = minSize;
+        this.maxRatio = maxRatio;
+        this.target = target;
+        this.idleTimeout = idleTimeout;
+
+        metrics.gauge("leasing.keys", leases::size);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-leasing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeout / 2, 100);
+        this.executor.scheduleWithFixedDelay(this::releaseIdleLeases, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            final RateLimit rateLimit = supplier.get();
+            if (rateLimit.getLimit() < minLimit) {
+                metrics.increment("leasing.calls.direct");
+                return delegate.incrementAndGet(key, weight, () -> rateLimit);
+            }
+            lease = leases.computeIfAbsent(key, Lease::new);
+        }
+
+        final RateLimit leased = lease.take(weight, System.currentTimeMillis());
+        if (leased != null) {
+            metrics.increment("leasing.calls.leased");
+            return Single.just(leased);
+        }
+
+        if (lease.isClosed()) {
+            // The lease has just been released, start over with a new one
+            leases.remove(key, lease);
+            return incrementAndGet(key, weight, supplier);
+        }
+
+        final Lease current = lease;
+        return current
+                .acquire(weight, supplier)
+                .flatMap(ignore -> {
+                    RateLimit rateLimit = current.take(weight, System.currentTimeMillis());
+                    if (rateLimit != null) {
+                        metrics.increment("leasing.calls.leased");
+                        return Single.just(rateLimit);
+                    }
+
+                    // The new lease has already been consumed by concurrent calls
+                    metrics.increment("leasing.calls.direct");
+                    return delegate.incrementAndGet(key, weight, supplier);
+                });
+    }
+
+    void releaseIdleLeases() {
+        try {
+            final long now = System.currentTimeMillis();
+            leases.forEach((key, lease) -> {
+                if (lease.isIdle(now)) {
+                    leases.remove(key, lease);
+                    release(key, lease.close(now));
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Unexpected error while releasing rate-limit leases", e);
+        }
+    }
+
+    private void release(String key, Remainder remainder) {
+        if (remainder == null || remainder.weight <= 0) {
+            return;
+        }
+
+        store.decrement(key, remainder.weight, remainder.resetTime)
+                .subscribe(
+                        result -> metrics.increment("leasing.released.weight", remainder.weight),
+                        throwable -> logger.debug("Unable to release rate-limit lease for key {}", key, throwable));
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        final long now = System.currentTimeMillis();
+        leases.forEach((key, lease) -> release(key, lease.close(now)));
+        leases.clear();
+        super.destroy();
+    }
+
+    private static final class Remainder {
+
+        private final long weight;
+
+        private final long resetTime;
+
+        private Remainder(long weight, long resetTime) {
+            this.weight = weight;
+            this.resetTime = resetTime;
+        }
+    }
+
+    private final class Lease {
+
+        private final String key;
+
+        /** Next counter value to hand out */
+        private long next;
+
+        /** Last counter value of the lease */
+        private long end = -1;
+
+        /** Last counter value read from MongoDB */
+        private long counter;
+
+        private long limit;
+
+        private long resetTime;
+
+        private String subscription;
+
+        /** Weight served since the last acquisition, used to size the next lease */
+        private long served;
+
+        private long acquiredAt = System.currentTimeMillis();
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private Single<RateLimit> acquisition;
+
+        private boolean closed;
+
+        private Lease(String key) {
+            this.key = key;
+        }
+
+        synchronized RateLimit take(long weight, long now) {
+            lastUsed = now;
+            if (closed || resetTime <= now || next + weight - 1 > end) {
+                return null;
+            }
+
+            long value = next + weight - 1;
+            next += weight;
+            served += weight;
+            return snapshot(value);
+        }
+
+        synchronized Single<RateLimit> acquire(long weight, Supplier<RateLimit> supplier) {
+            if (acquisition == null) {
+                final long size = nextSize(weight, System.currentTimeMillis());
+                acquisition = delegate
+                        .incrementAndGet(key, size, supplier)
+                        .map(rateLimit -> granted(rateLimit, size))
+                        .doOnError(throwable -> acquisitionFailed())
+                        .cache();
+            }
+            return acquisition;
+        }
+
+        private synchronized RateLimit granted(RateLimit rateLimit, long size) {
+            if (rateLimit.getResetTime() == resetTime) {
+                // Give back what is left from the previous lease
+                Remainder remainder = remainder(System.currentTimeMillis());
+                if (remainder != null) {
+                    release(key, remainder);
+                }
+            }
+
+            counter = rateLimit.getCounter();
+            next = counter - size + 1;
+            end = counter;
+            limit = rateLimit.getLimit();
+            resetTime = rateLimit.getResetTime();
+            subscription = rateLimit.getSubscription();
+            served = 0;
+            acquiredAt = System.currentTimeMillis();
+            acquisition = null;
+
+            metrics.increment("leasing.acquired");
+            metrics.increment("leasing.acquired.weight", size);
+            return rateLimit;
+        }
+
+        private synchronized void acquisitionFailed() {
+            acquisition = null;
+        }
+
+        private long nextSize(long weight, long now) {
+            long size = minSize;
+            long elapsed = now - acquiredAt;
+            if (elapsed > 0 && served > 0) {
+                size = Math.max(size, served * target / elapsed);
+            }
+
+            size = Math.min(size, (long) (limit > 0 ? limit * maxRatio : minLimit * maxRatio));
+            if (resetTime > now) {
+                // Do not reserve more than what remains in the current window
+                size = Math.min(size, Math.max(limit - counter, 0));
+            }
+            return Math.max(size, weight);
+        }
+
+        synchronized boolean isIdle(long now) {
+            return acquisition == null && (resetTime <= now || lastUsed + idleTimeout <= now);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized Remainder close(long now) {
+            closed = true;
+            return remainder(now);
+        }
+
+        private Remainder remainder(long now) {
+            long unused = end - next + 1;
+            return (resetTime > now && unused > 0) ? new Remainder(unused, resetTime) : null;
+        }
+
+        private RateLimit snapshot(long value) {
+            RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setCounter(value);
+            rateLimit.setLimit(limit);
+            rateLimit.setResetTime(resetTime);
+            rateLimit.setSubscription(subscription);
+            return rateLimit;
+        }
+    }
+}
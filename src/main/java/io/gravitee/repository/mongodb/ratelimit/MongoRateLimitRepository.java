@@ -15,42 +15,93 @@
  */
 package io.gravitee.repository.mongodb.ratelimit;
 
-import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import com.mongodb.MongoServerException;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.mongodb.ratelimit.BsonTemplate.Slot;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter.Backend;
 import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
 import io.reactivex.Single;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBoolean;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.beans.factory.annotation.Value;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.data.domain.Sort;
-import org.springframework.data.mongodb.core.FindAndModifyOptions;
-import org.springframework.data.mongodb.core.ReactiveMongoOperations;
 import org.springframework.data.mongodb.core.index.Index;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
-import org.springframework.stereotype.Component;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
 import reactor.adapter.rxjava.RxJava2Adapter;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
-import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.function.Function;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * @author David BRASSELY (david.brassely at graviteesource.com)
  * @author GraviteeSource Team
  */
-@Component
-public class MongoRateLimitRepository implements RateLimitRepository<RateLimit> {
+public class MongoRateLimitRepository implements BatchRateLimitRepository, PeekableRateLimitRepository,
+        UsageRateLimitRepository, RateLimitStore, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(MongoRateLimitRepository.class);
+
+    private final RateLimitRouter router;
+
+    private final String prefix;
+
+    private final RateLimitPartitions partitions;
+
+    private final RateLimitKeyEncoding keyEncoding;
+
+    private final boolean verifyKeys;
+
+    private final RateLimitAlgorithm algorithm;
 
-    @Autowired
-    @Qualifier("rateLimitMongoTemplate")
-    private ReactiveMongoOperations mongoOperations;
+    private final BsonTemplate filterTemplate;
 
-    @Value("${ratelimit.mongodb.prefix:}")
-    private String prefix;
+    private final List<BsonTemplate> incrementTemplates;
+
+    private final List<BsonTemplate> carriedTemplates;
+
+    private final ReadPreference peekReadPreference;
+
+    private final long peekCacheTtl;
+
+    private final int peekCacheSize;
+
+    private final ConcurrentMap<String, Peek> peeks = new ConcurrentHashMap<>();
+
+    private final RepositoryMetrics metrics;
 
     private final static String RATE_LIMIT_COLLECTION = "ratelimit";
 
@@ -59,76 +110,1029 @@ public class MongoRateLimitRepository implements RateLimitRepository<RateLimit>
     private final static String FIELD_RESET_TIME = "reset_time";
     private final static String FIELD_LIMIT = "limit";
     private final static String FIELD_SUBSCRIPTION = "subscription";
+    private final static String FIELD_CARRIED = "carried";
+    private final static String FIELD_ORIGINAL_KEY = "key";
+    private final static String FIELD_PREVIOUS = "previous";
+    private final static String FIELD_PERIOD = "period";
+    private final static String FIELD_EXPIRE_AT = "expire_at";
+    private final static String FIELD_TAT = "tat";
+    private final static String FIELD_NEXT_TAT = "next_tat";
+    private final static String FIELD_RESETS = "resets";
+    private final static String FIELD_PLAN = "plan";
+    private final static String FIELD_RATE_LIMITS = "rate_limits";
+    private final static String FIELD_STRIPES = "stripes";
+
+    private final static String METRIC_INCREMENT = "store.increment";
+    private final static String METRIC_FIND_AND_MODIFY = "store.findAndModify";
+    private final static String METRIC_CARRY = "store.carry";
+    private final static String METRIC_WINDOWS_INSERTED = "store.windows.inserted";
+    private final static String METRIC_WINDOWS_RESET = "store.windows.reset";
+    private final static String METRIC_COLLISIONS = "store.collisions";
+
+    private final static int DUPLICATE_KEY = 11000;
 
-    private final FindAndModifyOptions INC_AND_GET_OPTIONS = new FindAndModifyOptions().returnNew(true).upsert(true);
+    // Indexes of the numbers and values written in the templates
+    private final static int SLOT_WEIGHT = 0;
+    private final static int SLOT_NOW = 1;
+    private final static int SLOT_RESET_TIME = 2;
+    private final static int SLOT_LIMIT = 3;
+    private final static int SLOT_PERIOD = 4;
+    private final static int SLOT_NOW_MILLIS = 5;
+    private final static int SLOT_INCREMENT = 6;
+    private final static int SLOT_EMISSION_INTERVAL = 7;
+    private final static int SLOT_ID = 0;
+    private final static int SLOT_KEY = 1;
+    private final static int SLOT_SUBSCRIPTION = 2;
+
+    private final static long[] NO_NUMBERS = new long[0];
+
+    private final static DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private final static int USAGE_BATCH_SIZE = 1000;
+
+    /**
+     * The order of the groups sorted by the server: by subscription, then by plan, <code>null</code> first, strings
+     * being compared by code points like the server does without collation.
+     */
+    private final static Comparator<RateLimitUsage> USAGE_ORDER = Comparator
+            .comparing(RateLimitUsage::getSubscription, MongoRateLimitRepository::compareCodePoints)
+            .thenComparing(RateLimitUsage::getPlan, Comparator.nullsFirst(MongoRateLimitRepository::compareCodePoints));
+
+    private final static FindOneAndUpdateOptions INC_AND_GET_OPTIONS = new FindOneAndUpdateOptions()
+            .upsert(true)
+            .returnDocument(ReturnDocument.AFTER);
+
+    private final static FindOneAndUpdateOptions CARRY_OPTIONS = new FindOneAndUpdateOptions()
+            .returnDocument(ReturnDocument.AFTER);
+
+    private MongoRateLimitRepository(Builder builder) {
+        if (builder.partitions != null && builder.algorithm != RateLimitAlgorithm.FIXED) {
+            throw new IllegalArgumentException("Partitioned rate-limit storage only supports fixed windows");
+        }
+        if (builder.router.hasActivations() && builder.algorithm != RateLimitAlgorithm.FIXED) {
+            throw new IllegalArgumentException("Rate-limit backends activated after the others only support fixed windows");
+        }
+
+        this.router = builder.router;
+        this.prefix = builder.prefix == null ? "" : builder.prefix;
+        this.partitions = builder.partitions;
+        this.keyEncoding = builder.keyEncoding;
+        this.verifyKeys = builder.verifyKeys && keyEncoding != RateLimitKeyEncoding.PLAIN;
+        this.algorithm = builder.algorithm;
+        this.filterTemplate = new BsonTemplate(filterDocument());
+        this.incrementTemplates = templates(incrementStages(partitions != null));
+        // Windows of the keys which moved to another backend have to be carried over as well
+        this.carriedTemplates = router.hasActivations() ? templates(incrementStages(true)) : incrementTemplates;
+        this.peekReadPreference = builder.peekReadPreference;
+        this.peekCacheTtl = builder.peekCacheTtl;
+        this.peekCacheSize = builder.peekCacheSize;
+        this.metrics = builder.metrics;
+    }
+
+    public static Builder builder(RateLimitRouter router) {
+        return new Builder(router);
+    }
+
+    private String getRateLimitCollectionName() {
+        return prefix + RATE_LIMIT_COLLECTION;
+    }
 
-    @PostConstruct
     public void ensureTTLIndex() {
-        mongoOperations.indexOps(getRateLimitCollectionName()).ensureIndex(
-                new Index(FIELD_RESET_TIME, Sort.Direction.ASC).expire(0L))
-                .subscribe();
+        if (partitions != null) {
+            // Expired partitions are dropped as a whole
+            return;
+        }
+
+        // Sliding windows need the counter of the previous window, one more period after its reset time
+        final String expiration = algorithm == RateLimitAlgorithm.SLIDING ? FIELD_EXPIRE_AT : FIELD_RESET_TIME;
+
+        router.getBackends().forEach(backend -> backend.getMongoOperations()
+                .indexOps(getRateLimitCollectionName())
+                .ensureIndex(new Index(expiration, Sort.Direction.ASC).expire(0L))
+                .subscribe());
+    }
+
+    /**
+     * Index the subscription of the counters, for {@link #usage(Collection, boolean)}. Documents without subscription
+     * are left out of the index.
+     */
+    public void ensureSubscriptionIndex() {
+        if (partitions != null) {
+            return;
+        }
+
+        router.getBackends().forEach(backend -> backend.getMongoOperations()
+                .indexOps(getRateLimitCollectionName())
+                .ensureIndex(new Index(FIELD_SUBSCRIPTION, Sort.Direction.ASC)
+                        .partial(PartialIndexFilter.of(subscriptionFilter())))
+                .subscribe());
     }
 
     @Override
     public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        return RxJava2Adapter.monoToSingle(incrementAndGet(key, weight, supplier.get(), new Date()));
+    }
+
+    private Mono<RateLimit> incrementAndGet(String key, long weight, RateLimit rateLimit, Date now) {
+        final Backend backend = router.route(key, now.getTime());
+        final long start = System.nanoTime();
+
+        Mono<RateLimit> updated = increment(backend, keyEncoding.encode(key), key, weight, rateLimit, now);
+        if (verifyKeys) {
+            updated = updated.onErrorResume(MongoRateLimitRepository::isDuplicateKey,
+                    error -> incrementVerified(backend, key, weight, rateLimit, now));
+        }
+
+        return updated
+                .doFinally(signal -> {
+                    router.record(backend, start, signal);
+                    record(METRIC_INCREMENT, start, signal);
+                });
+    }
+
+    /**
+     * The filter and the update are rendered from pre-encoded templates and the updated document is decoded straight
+     * from its raw bytes, without going through intermediate documents.
+     */
+    private Mono<RateLimit> increment(Backend backend, Object id, String key, long weight, RateLimit rateLimit, Date now) {
+        final Backend previousOwner = router.previous(key, now.getTime());
+        final boolean carrying = partitions != null || previousOwner != null;
+        final long start = System.nanoTime();
+        final Mono<RawBsonDocument> document = Mono.from(backend
+                .getRawCollection(getRateLimitCollectionName(now.getTime()))
+                .findOneAndUpdate(
+                        filter(id, key),
+                        incrementPipeline(key, weight, rateLimit, now, carrying ? carriedTemplates : incrementTemplates),
+                        INC_AND_GET_OPTIONS))
+                .doFinally(signal -> record(METRIC_FIND_AND_MODIFY, start, signal));
+
+        if (!carrying) {
+            return document.map(updated -> decode(updated, key, weight, now.getTime()));
+        }
+
+        return document.flatMap(updated -> updated.getBoolean(FIELD_CARRIED, BsonBoolean.TRUE).getValue() ?
+                Mono.just(decode(updated, key, weight, now.getTime())) :
+                carry(backend, previousOwner, id, key, now).map(carried -> convert(carried, key, now.getTime())));
+    }
+
+    /**
+     * Retry an increment which failed on a duplicate key. Two gateways upserting the same new key at the same time is
+     * the usual cause, and retrying is enough. If the key still cannot be written, its encoded identifier is owned by
+     * another key and its counter is stored under its plain identifier instead.
+     */
+    private Mono<RateLimit> incrementVerified(Backend backend, String key, long weight, RateLimit rateLimit, Date now) {
+        return increment(backend, keyEncoding.encode(key), key, weight, rateLimit, now)
+                .onErrorResume(MongoRateLimitRepository::isDuplicateKey, error -> {
+                    logger.warn("Rate-limit key {} collides with another key, its counter is stored under its plain key", key);
+                    if (metrics != null) {
+                        metrics.increment(METRIC_COLLISIONS);
+                    }
+                    return increment(backend, key, key, weight, rateLimit, now);
+                });
+    }
+
+    private static boolean isDuplicateKey(Throwable throwable) {
+        return throwable instanceof MongoServerException && ((MongoServerException) throwable).getCode() == DUPLICATE_KEY;
+    }
+
+    /**
+     * All the increments are sent at once, each of them as the atomic update of
+     * {@link #incrementAndGet(String, long, Supplier)}: the whole batch costs a single round trip, and each increment
+     * gets the counter resulting from its own update.
+     */
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        if (increments.isEmpty()) {
+            return Single.just(Collections.emptyList());
+        }
+
         final Date now = new Date();
-        RateLimit rateLimit = supplier.get();
-        return RxJava2Adapter
-                .monoToSingle(
-                        Mono
-                                .just(rateLimit)
-                                .flatMap(new Function<RateLimit, Mono<Document>>() {
-                                    @Override
-                                    public Mono<Document> apply(RateLimit rateLimit) {
-                                        return mongoOperations
-                                                .findAndModify(
-                                                        new Query(Criteria.where(FIELD_KEY).is(key)),
-                                                        new Update()
-                                                                .inc(FIELD_COUNTER, weight)
-                                                                .setOnInsert(FIELD_RESET_TIME, new Date(rateLimit.getResetTime()))
-                                                                .setOnInsert(FIELD_LIMIT, rateLimit.getLimit())
-                                                                .setOnInsert(FIELD_SUBSCRIPTION, rateLimit.getSubscription()),
-                                                        INC_AND_GET_OPTIONS,
-                                                        Document.class,
-                                                        getRateLimitCollectionName());
-                                    }
-                                }).flatMap(new Function<Document, Mono<Document>>() {
-                                    @Override
-                                    public Mono<Document> apply(Document document) {
-                                        if (document.getDate(FIELD_RESET_TIME).before(now)) {
-                                            return mongoOperations
-                                                    .findAndModify(
-                                                            new Query(Criteria.where(FIELD_KEY).is(key)),
-                                                            new Update()
-                                                                    .set(FIELD_COUNTER, weight)
-                                                                    .set(FIELD_RESET_TIME, new Date(rateLimit.getResetTime()))
-                                                                    .set(FIELD_LIMIT, rateLimit.getLimit())
-                                                                    .set(FIELD_SUBSCRIPTION, rateLimit.getSubscription()),
-                                                            INC_AND_GET_OPTIONS,
-                                                            Document.class,
-                                                            getRateLimitCollectionName());
-                                        } else {
-                                            return Mono.just(document);
-                                        }
-                                    }
-                                }).map(this::convert));
+
+        return RxJava2Adapter.monoToSingle(Flux.fromIterable(increments)
+                .flatMapSequential(increment -> incrementAndGet(increment.getKey(), increment.getWeight(),
+                        increment.getSupplier().get(), now), increments.size())
+                .collectList());
     }
 
-    private String getRateLimitCollectionName() {
-        return prefix + RATE_LIMIT_COLLECTION;
+    /**
+     * Peeked counters are cached for <code>peekCacheTtl</code> ms, including the keys without any running window, and
+     * read with <code>peekReadPreference</code> (secondaries by default) so that dashboards do not load the primary.
+     */
+    @Override
+    public Maybe<RateLimit> peek(String key) {
+        final long now = System.currentTimeMillis();
+        final Peek cached = peeks.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.rateLimit == null ? Maybe.empty() : Maybe.just(cached.rateLimit);
+        }
+
+        return RxJava2Adapter.monoToMaybe(find(router.route(key), Collections.singletonList(key), now, peekReadPreference)
+                // Fixed windows and GCRA are over at their reset time, even if the document has not expired yet
+                .filter(rateLimit -> algorithm == RateLimitAlgorithm.SLIDING || rateLimit.getResetTime() > now)
+                .next()
+                // Also called without any rate-limit when the key has no running window
+                .doOnSuccess(rateLimit -> cache(key, rateLimit, now)));
+    }
+
+    /**
+     * Counters are grouped by the server. With a single backend, the groups are streamed as the server returns them;
+     * with several, a subscription (or plan) may have counters on each of them: each backend sorts its groups, and the
+     * sorted streams are merged as they are read, the adjacent groups of a same subscription (or plan) being combined.
+     * Only one group per backend is held in memory at a time, whatever the number of subscriptions.
+     *
+     * The plan is read from the first <code>:</code>-separated segment of the keys, i.e. it relies on the format of the
+     * keys built by the gateway: keys built differently are reported under whatever their first segment is. With the
+     * <code>digest</code> key encoding, keys can only be read back, and thus grouped by plan, when
+     * <code>verifyKeys</code> stores the original keys: otherwise all the counters of a subscription are reported under
+     * a <code>null</code> plan, with <code>null</code> keys. Not supported with partitioned storage.
+     */
+    @Override
+    public Flowable<RateLimitUsage> usage(Collection<String> subscriptions, boolean byPlan) {
+        if (partitions != null) {
+            return Flowable.error(new UnsupportedOperationException("Usage reports are not supported with partitioned storage"));
+        }
+
+        final long now = System.currentTimeMillis();
+        final boolean merged = router.getBackends().size() > 1;
+        final List<Bson> pipeline = usagePipeline(subscriptions, byPlan, merged, now);
+
+        final List<Flux<RateLimitUsage>> usages = router.getBackends()
+                .stream()
+                .map(backend -> Flux.from(backend.getMongoOperations()
+                        .getCollection(getRateLimitCollectionName())
+                        .aggregate(pipeline)
+                        .allowDiskUse(true)
+                        .batchSize(USAGE_BATCH_SIZE))
+                        .map(group -> usage(group, now)))
+                .collect(Collectors.toList());
+
+        if (!merged) {
+            return RxJava2Adapter.fluxToFlowable(usages.get(0));
+        }
+
+        return RxJava2Adapter.fluxToFlowable(Flux.defer(() -> {
+            final RateLimitUsage[] last = new RateLimitUsage[1];
+            return merge(usages)
+                    // A new subscription (or plan) starts a new buffer
+                    .bufferUntil(usage -> {
+                        final boolean changed = last[0] != null && USAGE_ORDER.compare(last[0], usage) != 0;
+                        last[0] = usage;
+                        return changed;
+                    }, true)
+                    .map(MongoRateLimitRepository::combine);
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Flux<RateLimitUsage> merge(List<Flux<RateLimitUsage>> usages) {
+        return Flux.mergeOrdered(USAGE_ORDER, usages.toArray(new Flux[0]));
+    }
+
+    private static RateLimitUsage combine(List<RateLimitUsage> usages) {
+        final RateLimitUsage first = usages.get(0);
+        for (int i = 1; i < usages.size(); i++) {
+            first.getRateLimits().addAll(usages.get(i).getRateLimits());
+        }
+        return first;
+    }
+
+    private static int compareCodePoints(String first, String other) {
+        int i = 0, j = 0;
+        while (i < first.length() && j < other.length()) {
+            final int firstCodePoint = first.codePointAt(i);
+            final int otherCodePoint = other.codePointAt(j);
+            if (firstCodePoint != otherCodePoint) {
+                return Integer.compare(firstCodePoint, otherCodePoint);
+            }
+            i += Character.charCount(firstCodePoint);
+            j += Character.charCount(otherCodePoint);
+        }
+        return Integer.compare(first.length() - i, other.length() - j);
+    }
+
+    private List<Bson> usagePipeline(Collection<String> subscriptions, boolean byPlan, boolean sorted, long now) {
+        // Repeating the filter of the partial index lets the server use it
+        final Document subscription = subscriptionFilter().get(FIELD_SUBSCRIPTION, Document.class);
+        if (!subscriptions.isEmpty()) {
+            subscription.append("$in", subscriptions);
+        }
+
+        final Document match = new Document(FIELD_SUBSCRIPTION, subscription)
+                .append(algorithm == RateLimitAlgorithm.SLIDING ? FIELD_EXPIRE_AT : FIELD_RESET_TIME,
+                        new Document("$gt", new Date(now)));
+
+        final Document key = new Document("$ifNull", Arrays.asList("$" + FIELD_ORIGINAL_KEY, "$" + FIELD_KEY));
+        final Document group = new Document(FIELD_SUBSCRIPTION, "$" + FIELD_SUBSCRIPTION);
+        if (byPlan) {
+            // Keys built by the gateway start with their plan, digests cannot be split
+            group.append(FIELD_PLAN, cond(
+                    new Document("$eq", Arrays.asList(new Document("$type", key), "string")),
+                    new Document("$arrayElemAt", Arrays.asList(new Document("$split", Arrays.asList(key, ":")), 0)),
+                    null));
+        }
+
+        final Document rateLimit = new Document(FIELD_ORIGINAL_KEY, key);
+        for (String field : Arrays.asList(FIELD_COUNTER, FIELD_PREVIOUS, FIELD_PERIOD, FIELD_LIMIT, FIELD_RESET_TIME)) {
+            rateLimit.append(field, "$" + field);
+        }
+
+        final List<Bson> pipeline = new ArrayList<>(3);
+        pipeline.add(new Document("$match", match));
+        pipeline.add(new Document("$group", new Document(FIELD_KEY, group)
+                .append(FIELD_RATE_LIMITS, new Document("$push", rateLimit))));
+        if (sorted) {
+            // The group identifiers share the same fields: they are sorted by subscription, then by plan
+            pipeline.add(new Document("$sort", new Document(FIELD_KEY, 1)));
+        }
+
+        return pipeline;
+    }
+
+    private static Document subscriptionFilter() {
+        return new Document(FIELD_SUBSCRIPTION, new Document("$type", "string"));
+    }
+
+    private RateLimitUsage usage(Document group, long now) {
+        final Document id = group.get(FIELD_KEY, Document.class);
+        final String subscription = id.getString(FIELD_SUBSCRIPTION);
+
+        final List<RateLimit> rateLimits = group.getList(FIELD_RATE_LIMITS, Document.class)
+                .stream()
+                .map(document -> {
+                    final Object key = document.get(FIELD_ORIGINAL_KEY);
+                    final long resetTime = document.getDate(FIELD_RESET_TIME).getTime();
+
+                    RateLimit rateLimit = new RateLimit(key instanceof String ? (String) key : null);
+                    rateLimit.setCounter(count(document.getLong(FIELD_COUNTER), document.get(FIELD_PREVIOUS, 0L),
+                            document.get(FIELD_PERIOD, 0L), resetTime, now));
+                    rateLimit.setLimit(document.getLong(FIELD_LIMIT));
+                    rateLimit.setResetTime(resetTime);
+                    rateLimit.setSubscription(subscription);
+                    return rateLimit;
+                })
+                .collect(Collectors.toList());
+
+        return new RateLimitUsage(subscription, id.getString(FIELD_PLAN), rateLimits);
+    }
+
+    /**
+     * When the cache is full, expired peeks are evicted first, then a tenth of the cache, starting with the peeks
+     * expiring first, so that the next inserts do not have to scan the cache again.
+     */
+    private void cache(String key, RateLimit rateLimit, long now) {
+        if (peeks.size() >= peekCacheSize) {
+            peeks.values().removeIf(peek -> peek.expiresAt <= now);
+            if (peeks.size() >= peekCacheSize) {
+                peeks.entrySet()
+                        .stream()
+                        .sorted(Comparator.comparingLong(entry -> entry.getValue().expiresAt))
+                        .limit(Math.max(peekCacheSize / 10, 1))
+                        .collect(Collectors.toList())
+                        .forEach(entry -> peeks.remove(entry.getKey(), entry.getValue()));
+            }
+        }
+        peeks.put(key, new Peek(rateLimit, now + peekCacheTtl));
+    }
+
+    @Override
+    public Flux<RateLimit> findAll(Collection<String> keys) {
+        final long now = System.currentTimeMillis();
+
+        return Flux.fromIterable(router.partition(keys, Function.identity()).entrySet())
+                .flatMap(partition -> find(partition.getKey(), partition.getValue(), now, ReadPreference.primary()));
+    }
+
+    private Flux<RateLimit> find(Backend backend, List<String> keys, long now, ReadPreference readPreference) {
+        final Map<Object, String> ids = new HashMap<>();
+        keys.forEach(key -> ids.put(keyEncoding.encode(key), key));
+
+        final Flux<RateLimit> rateLimits = convert(Flux.from(getRateLimitCollection(backend, now)
+                .withReadPreference(readPreference)
+                .find(Filters.in(FIELD_KEY, ids.keySet()))), ids, now);
+        final boolean handingOver = router.isHandingOver(now);
+        if (partitions == null && !verifyKeys && !handingOver) {
+            return rateLimits;
+        }
+
+        return rateLimits.collectList().flatMapMany(current -> {
+            final Set<String> found = current.stream().map(RateLimit::getKey).collect(Collectors.toSet());
+            final List<String> missing = keys.stream().filter(key -> !found.contains(key)).collect(Collectors.toList());
+            if (missing.isEmpty()) {
+                return Flux.fromIterable(current);
+            }
+
+            // Keys colliding with another key are stored under their plain identifier
+            final Map<Object, String> fallbackIds = new HashMap<>();
+            missing.forEach(key -> {
+                fallbackIds.put(keyEncoding.encode(key), key);
+                if (verifyKeys) {
+                    fallbackIds.put(key, key);
+                }
+            });
+
+            Flux<Document> fallback = Flux.empty();
+            if (partitions != null) {
+                // Keys not written yet in the current partition may still have a running window in the previous one
+                fallback = Flux.from(backend.getMongoOperations()
+                        .getCollection(partitions.previous(now))
+                        .withReadPreference(readPreference)
+                        .find(Filters.and(Filters.in(FIELD_KEY, fallbackIds.keySet()), Filters.gt(FIELD_RESET_TIME, new Date(now)))));
+            }
+            if (handingOver) {
+                // Keys which moved at the last activation may still have a running window on their previous backend
+                final Map<Backend, List<String>> moved = missing
+                        .stream()
+                        .filter(key -> router.previous(key, now) != null)
+                        .collect(Collectors.groupingBy(key -> router.previous(key, now)));
+                for (Map.Entry<Backend, List<String>> previous : moved.entrySet()) {
+                    final List<Object> previousIds = new ArrayList<>();
+                    previous.getValue().forEach(key -> {
+                        previousIds.add(keyEncoding.encode(key));
+                        if (verifyKeys) {
+                            previousIds.add(key);
+                        }
+                    });
+                    fallback = fallback.concatWith(getRateLimitCollection(previous.getKey(), now)
+                            .withReadPreference(readPreference)
+                            .find(Filters.and(Filters.in(FIELD_KEY, previousIds), Filters.gt(FIELD_RESET_TIME, new Date(now)))));
+                }
+            }
+            if (verifyKeys) {
+                fallback = fallback.concatWith(getRateLimitCollection(backend, now)
+                        .withReadPreference(readPreference)
+                        .find(Filters.in(FIELD_KEY, missing)));
+            }
+
+            return Flux.fromIterable(current).concatWith(convert(fallback, fallbackIds, now));
+        });
+    }
+
+    private Flux<RateLimit> convert(Flux<Document> documents, Map<Object, String> ids, long now) {
+        return documents.flatMap(document -> Mono.justOrEmpty(convert(document, ids.get(document.get(FIELD_KEY)), now)));
+    }
+
+    /**
+     * Carry the counter of a key over from the previous partition, or from the backend owning the key before the last
+     * activation, the first time the key is written in its current collection. Only one gateway wins the carry-over,
+     * the others simply read the resulting document.
+     */
+    private Mono<Document> carry(Backend backend, Backend previousOwner, Object id, String key, Date now) {
+        final MongoCollection<Document> current = getRateLimitCollection(backend, now.getTime());
+        final long start = System.nanoTime();
+
+        return Flux.fromIterable(carrySources(backend, previousOwner, now.getTime()))
+                .concatMap(source -> Mono.from(source.find(filter(id, key)).first())
+                        .filter(document -> document.getDate(FIELD_RESET_TIME).after(now)))
+                .next()
+                .map(document -> new Document("$inc", new Document(FIELD_COUNTER, document.getLong(FIELD_COUNTER)))
+                        .append("$set", new Document(FIELD_CARRIED, true)
+                                .append(FIELD_RESET_TIME, document.getDate(FIELD_RESET_TIME))
+                                .append(FIELD_LIMIT, document.getLong(FIELD_LIMIT))
+                                .append(FIELD_SUBSCRIPTION, document.getString(FIELD_SUBSCRIPTION))))
+                .defaultIfEmpty(new Document("$set", new Document(FIELD_CARRIED, true)))
+                .flatMap(update -> Mono.from(current.findOneAndUpdate(
+                        Filters.and(filter(id, key), Filters.eq(FIELD_CARRIED, false)), update, CARRY_OPTIONS)))
+                .switchIfEmpty(Mono.defer(() -> Mono.from(current.find(filter(id, key)).first())))
+                .doFinally(signal -> record(METRIC_CARRY, start, signal));
+    }
+
+    /**
+     * The collections where a key written for the first time in its current collection may still have a running
+     * window.
+     */
+    private List<MongoCollection<Document>> carrySources(Backend backend, Backend previousOwner, long now) {
+        final List<MongoCollection<Document>> sources = new ArrayList<>(3);
+        if (partitions != null) {
+            sources.add(backend.getMongoOperations().getCollection(partitions.previous(now)));
+        }
+        if (previousOwner != null) {
+            sources.add(getRateLimitCollection(previousOwner, now));
+            if (partitions != null) {
+                sources.add(previousOwner.getMongoOperations().getCollection(partitions.previous(now)));
+            }
+        }
+        return sources;
+    }
+
+    @Override
+    public Mono<UpdateResult> decrement(String key, long weight, long resetTime) {
+        return updateWindow(key, resetTime, new Document("$inc", new Document(FIELD_COUNTER, -weight)));
+    }
+
+    @Override
+    public Mono<UpdateResult> stripe(String key, int stripes, long resetTime) {
+        return updateWindow(key, resetTime, new Document("$set", new Document(FIELD_STRIPES, stripes)));
+    }
+
+    /**
+     * Update the document of the given key, only if its window (identified by its reset time) is still the current one.
+     */
+    private Mono<UpdateResult> updateWindow(String key, long resetTime, Bson update) {
+        final Mono<UpdateResult> result = updateWindow(keyEncoding.encode(key), key, resetTime, update);
+        if (!verifyKeys) {
+            return result;
+        }
+
+        return result.flatMap(updated -> updated.getMatchedCount() > 0 ?
+                Mono.just(updated) : updateWindow(key, key, resetTime, update));
     }
 
-    private RateLimit convert(Document document) {
+    private Mono<UpdateResult> updateWindow(Object id, String key, long resetTime, Bson update) {
+        return Mono.from(getRateLimitCollection(router.route(key), System.currentTimeMillis()).updateOne(
+                Filters.and(filter(id, key), Filters.eq(FIELD_RESET_TIME, new Date(resetTime))), update));
+    }
+
+    /**
+     * Ping every backend, completes once all of them have answered.
+     */
+    @Override
+    public Mono<Void> ping() {
+        return Flux.fromIterable(router.getBackends())
+                .flatMap(backend -> backend.getMongoOperations().executeCommand("{ ping: 1 }"))
+                .then();
+    }
+
+    /**
+     * Select the document of the given key. When keys are verified, a document owned by another key is never selected:
+     * an upsert then fails on a duplicate key.
+     */
+    private Bson filter(Object id, String key) {
+        final Object[] values = new Object[2];
+        values[SLOT_ID] = id;
+        values[SLOT_KEY] = key;
+
+        return filterTemplate.render(NO_NUMBERS, values);
+    }
+
+    private Document filterDocument() {
+        final Document filter = new Document(FIELD_KEY, BsonTemplate.value(SLOT_ID));
+        if (verifyKeys) {
+            filter.append(FIELD_ORIGINAL_KEY, new Document("$in", Arrays.asList(BsonTemplate.value(SLOT_KEY), null)));
+        }
+
+        return filter;
+    }
+
+    private List<RawBsonDocument> incrementPipeline(String key, long weight, RateLimit rateLimit, Date now,
+                                                    List<BsonTemplate> templates) {
+        final long period = Math.max(rateLimit.getResetTime() - now.getTime(), 1);
+        final double emissionInterval = (double) period / Math.max(rateLimit.getLimit(), 1);
+
+        final long[] numbers = new long[8];
+        numbers[SLOT_WEIGHT] = weight;
+        numbers[SLOT_NOW] = now.getTime();
+        numbers[SLOT_RESET_TIME] = rateLimit.getResetTime();
+        numbers[SLOT_LIMIT] = rateLimit.getLimit();
+        numbers[SLOT_PERIOD] = period;
+        numbers[SLOT_NOW_MILLIS] = now.getTime();
+        numbers[SLOT_INCREMENT] = Double.doubleToRawLongBits(weight * emissionInterval);
+        numbers[SLOT_EMISSION_INTERVAL] = Double.doubleToRawLongBits(emissionInterval);
+
+        final Object[] values = new Object[3];
+        values[SLOT_KEY] = key;
+        values[SLOT_SUBSCRIPTION] = rateLimit.getSubscription();
+
+        if (templates.size() == 1) {
+            return Collections.singletonList(templates.get(0).render(numbers, values));
+        }
+
+        final List<RawBsonDocument> pipeline = new ArrayList<>(templates.size());
+        for (BsonTemplate template : templates) {
+            pipeline.add(template.render(numbers, values));
+        }
+        return pipeline;
+    }
+
+    private static List<BsonTemplate> templates(List<Document> stages) {
+        return stages.stream().map(BsonTemplate::new).collect(Collectors.toList());
+    }
+
+    /**
+     * Build the templates of the aggregation pipeline used to increment a counter. Every algorithm is evaluated by the
+     * server, in a single atomic update. This requires MongoDB 4.2+.
+     *
+     * @param carried whether new documents have to be carried over from another collection (fixed windows only).
+     */
+    private List<Document> incrementStages(boolean carried) {
+        switch (algorithm) {
+            case SLIDING:
+                return slidingWindowStages();
+            case GCRA:
+                return gcraStages();
+            default:
+                return Collections.singletonList(fixedWindowStage(carried));
+        }
+    }
+
+    /**
+     * When the document does not exist yet or its <code>reset_time</code> is over, the counter restarts from
+     * <code>weight</code> and the window is re-initialized from the given rate-limit, otherwise the counter is simply
+     * incremented.
+     */
+    private Document fixedWindowStage(boolean carried) {
+        final Slot weight = BsonTemplate.int64(SLOT_WEIGHT);
+        final Document expired = expired();
+
+        final Document set = new Document()
+                .append(FIELD_COUNTER, cond(expired, weight, new Document("$add", Arrays.asList("$" + FIELD_COUNTER, weight))))
+                .append(FIELD_RESET_TIME, cond(expired, BsonTemplate.date(SLOT_RESET_TIME), "$" + FIELD_RESET_TIME))
+                .append(FIELD_RESETS, resets(expired))
+                // A striped window is no longer striped once over
+                .append(FIELD_STRIPES, cond(expired, "$$REMOVE", "$" + FIELD_STRIPES));
+        window(set, expired);
+
+        if (carried) {
+            // Documents created in a new collection have to be carried over from the previous one
+            set.append(FIELD_CARRIED, new Document("$ifNull", Arrays.asList("$" + FIELD_CARRIED, false)));
+        }
+
+        return new Document("$set", set);
+    }
+
+    /**
+     * Same as the fixed window, except that when a window ends the next one starts right away and the count of the
+     * ended window is kept as <code>previous</code>. The sliding count itself is computed when reading the document.
+     */
+    private List<Document> slidingWindowStages() {
+        final Slot weight = BsonTemplate.int64(SLOT_WEIGHT);
+        final Document expired = expired();
+
+        // The next window directly follows the one just ended (missing fields make the comparison false)
+        final Document next = new Document("$add", Arrays.asList("$" + FIELD_RESET_TIME, "$" + FIELD_PERIOD));
+        final Document adjacent = new Document("$gt", Arrays.asList(next, BsonTemplate.date(SLOT_NOW)));
+
+        final Document set = new Document()
+                .append(FIELD_COUNTER, cond(expired, weight, new Document("$add", Arrays.asList("$" + FIELD_COUNTER, weight))))
+                .append(FIELD_PREVIOUS, cond(expired,
+                        cond(adjacent, "$" + FIELD_COUNTER, 0L),
+                        new Document("$ifNull", Arrays.asList("$" + FIELD_PREVIOUS, 0L))))
+                .append(FIELD_RESET_TIME, cond(expired,
+                        cond(adjacent, next, BsonTemplate.date(SLOT_RESET_TIME)),
+                        "$" + FIELD_RESET_TIME))
+                .append(FIELD_PERIOD, cond(expired,
+                        cond(adjacent, "$" + FIELD_PERIOD, BsonTemplate.int64(SLOT_PERIOD)),
+                        "$" + FIELD_PERIOD))
+                .append(FIELD_RESETS, resets(expired));
+        window(set, expired);
+
+        return Arrays.asList(
+                new Document("$set", set),
+                new Document("$set", new Document(FIELD_EXPIRE_AT,
+                        new Document("$add", Arrays.asList("$" + FIELD_RESET_TIME, "$" + FIELD_PERIOD)))));
+    }
+
+    /**
+     * The theoretical arrival time (in ms, as a double to keep sub-millisecond emission intervals) moves forward by
+     * <code>weight</code> emission intervals. The counter is the number of emission intervals between now and the next
+     * theoretical arrival time: the call is within the limit when it does not exceed <code>limit</code>, and only then
+     * the theoretical arrival time is updated.
+     */
+    private List<Document> gcraStages() {
+        final Slot now = BsonTemplate.int64(SLOT_NOW_MILLIS);
+        final Slot limit = BsonTemplate.int64(SLOT_LIMIT);
+
+        final Document nextTat = new Document("$add", Arrays.asList(
+                new Document("$max", Arrays.asList(new Document("$ifNull", Arrays.asList("$" + FIELD_TAT, 0L)), now)),
+                BsonTemplate.float64(SLOT_INCREMENT)));
+
+        // Rounding errors must not turn an exact count into the next one
+        final Document counter = new Document("$toLong", new Document("$ceil", new Document("$subtract", Arrays.asList(
+                new Document("$divide", Arrays.asList(
+                        new Document("$subtract", Arrays.asList("$" + FIELD_NEXT_TAT, now)),
+                        BsonTemplate.float64(SLOT_EMISSION_INTERVAL))),
+                1e-9))));
+
+        final Document tat = cond(
+                new Document("$lte", Arrays.asList("$" + FIELD_COUNTER, limit)),
+                "$" + FIELD_NEXT_TAT,
+                new Document("$ifNull", Arrays.asList("$" + FIELD_TAT, now)));
+
+        final Document set = new Document()
+                .append(FIELD_TAT, tat)
+                .append(FIELD_RESET_TIME, new Document("$toDate", tat))
+                .append(FIELD_PERIOD, BsonTemplate.int64(SLOT_PERIOD))
+                .append(FIELD_LIMIT, limit)
+                .append(FIELD_SUBSCRIPTION, new Document("$literal", BsonTemplate.value(SLOT_SUBSCRIPTION)));
+        if (verifyKeys) {
+            set.append(FIELD_ORIGINAL_KEY, new Document("$literal", BsonTemplate.value(SLOT_KEY)));
+        }
+
+        return Arrays.asList(
+                new Document("$set", new Document(FIELD_NEXT_TAT, nextTat)),
+                new Document("$set", new Document(FIELD_COUNTER, counter)),
+                new Document("$set", set),
+                new Document("$unset", FIELD_NEXT_TAT));
+    }
+
+    /**
+     * A missing reset_time is handled as an expired window (ie. the document has just been upserted).
+     */
+    private static Document expired() {
+        return new Document("$lt", Arrays.asList(
+                new Document("$ifNull", Arrays.asList("$" + FIELD_RESET_TIME, new Date(0))),
+                BsonTemplate.date(SLOT_NOW)));
+    }
+
+    /**
+     * Count the windows started over an existing document, so that a window started by an upsert can be told apart from
+     * a window started by a reset when reading the document back.
+     */
+    private static Document resets(Document expired) {
+        final Document resets = new Document("$ifNull", Arrays.asList("$" + FIELD_RESETS, 0));
+        final Document inserted = new Document("$eq", Arrays.asList(new Document("$type", "$" + FIELD_RESET_TIME), "missing"));
+
+        return cond(expired, cond(inserted, 0, new Document("$add", Arrays.asList(resets, 1))), resets);
+    }
+
+    /**
+     * Re-initialize the limit and the subscription of an expired window, and keep track of the original key.
+     */
+    private void window(Document set, Document expired) {
+        set
+                .append(FIELD_LIMIT, cond(expired, BsonTemplate.int64(SLOT_LIMIT), "$" + FIELD_LIMIT))
+                .append(FIELD_SUBSCRIPTION, cond(expired, new Document("$literal", BsonTemplate.value(SLOT_SUBSCRIPTION)), "$" + FIELD_SUBSCRIPTION));
+
+        if (verifyKeys) {
+            set.append(FIELD_ORIGINAL_KEY, new Document("$literal", BsonTemplate.value(SLOT_KEY)));
+        }
+    }
+
+    private static Document cond(Document condition, Object then, Object otherwise) {
+        return new Document("$cond", Arrays.asList(condition, then, otherwise));
+    }
+
+    private void record(String metric, long start, SignalType signal) {
+        if (metrics == null) {
+            return;
+        }
+
+        metrics.record(metric, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (signal == SignalType.ON_ERROR) {
+            metrics.increment(metric + ".errors");
+        }
+    }
+
+    private MongoCollection<Document> getRateLimitCollection(Backend backend, long now) {
+        return backend.getMongoOperations().getCollection(getRateLimitCollectionName(now));
+    }
+
+    private String getRateLimitCollectionName(long now) {
+        return partitions == null ? getRateLimitCollectionName() : partitions.current(now);
+    }
+
+    /**
+     * @param key the key of the document, which cannot be read back from an encoded identifier.
+     * @return the rate-limit, or <code>null</code> if the document is owned by another key.
+     */
+    private RateLimit convert(Document document, String key, long now) {
         if (document == null) {
             return null;
         }
 
-        RateLimit rateLimit = new RateLimit(document.getString(FIELD_KEY));
-        rateLimit.setCounter(document.getLong(FIELD_COUNTER));
+        final String originalKey = document.getString(FIELD_ORIGINAL_KEY);
+        if (originalKey != null && !originalKey.equals(key)) {
+            return null;
+        }
+
+        final long resetTime = document.getDate(FIELD_RESET_TIME).getTime();
+
+        RateLimit rateLimit = rateLimit(key, document.get(FIELD_STRIPES, 0));
+        rateLimit.setCounter(count(document.getLong(FIELD_COUNTER), document.get(FIELD_PREVIOUS, 0L),
+                document.get(FIELD_PERIOD, 0L), resetTime, now));
         rateLimit.setLimit(document.getLong(FIELD_LIMIT));
-        rateLimit.setResetTime(document.getDate(FIELD_RESET_TIME).getTime());
+        rateLimit.setResetTime(resetTime);
         rateLimit.setSubscription(document.getString(FIELD_SUBSCRIPTION));
 
         return rateLimit;
     }
+
+    /**
+     * With sliding windows, the count of the previous window is weighed by the part of it still covered by a window
+     * of one period ending now. Other algorithms store the counter as is.
+     */
+    private long count(long counter, long previous, long period, long resetTime, long now) {
+        if (algorithm != RateLimitAlgorithm.SLIDING || period <= 0) {
+            return counter;
+        }
+
+        if (resetTime > now) {
+            return counter + (long) (previous * ((double) Math.min(resetTime - now, period) / period));
+        }
+
+        // The window of the document is over and has not been followed by a new one yet: it is the previous window
+        return (long) (counter * ((double) Math.max(resetTime + period - now, 0) / period));
+    }
+
+    private static RateLimit rateLimit(String key, int stripes) {
+        return stripes > 0 ? new StripedRateLimit(key, stripes) : new RateLimit(key);
+    }
+
+    private RateLimit decode(RawBsonDocument document, String key, long weight, long now) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+            return new RateLimitDecoder(key, weight, now).decode(reader, DECODER_CONTEXT);
+        }
+    }
+
+    /**
+     * Decode a counter document straight from its BSON bytes, and report whether the increment of <code>weight</code>
+     * started a new window.
+     */
+    private final class RateLimitDecoder implements Decoder<RateLimit> {
+
+        private final String key;
+
+        private final long weight;
+
+        private final long now;
+
+        private RateLimitDecoder(String key, long weight, long now) {
+            this.key = key;
+            this.weight = weight;
+            this.now = now;
+        }
+
+        @Override
+        public RateLimit decode(BsonReader reader, DecoderContext decoderContext) {
+            long counter = 0;
+            long previous = 0;
+            long period = 0;
+            long resets = 0;
+            long limit = 0;
+            long resetTime = 0;
+            String subscription = null;
+            int stripes = 0;
+
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                switch (reader.readName()) {
+                    case FIELD_COUNTER:
+                        counter = reader.readInt64();
+                        break;
+                    case FIELD_PREVIOUS:
+                        previous = reader.readInt64();
+                        break;
+                    case FIELD_PERIOD:
+                        period = reader.readInt64();
+                        break;
+                    case FIELD_RESETS:
+                        resets = reader.getCurrentBsonType() == BsonType.INT32 ? reader.readInt32() : reader.readInt64();
+                        break;
+                    case FIELD_LIMIT:
+                        limit = reader.readInt64();
+                        break;
+                    case FIELD_RESET_TIME:
+                        resetTime = reader.readDateTime();
+                        break;
+                    case FIELD_SUBSCRIPTION:
+                        if (reader.getCurrentBsonType() == BsonType.STRING) {
+                            subscription = reader.readString();
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case FIELD_STRIPES:
+                        stripes = reader.readInt32();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.readEndDocument();
+
+            // GCRA has no window: its documents are neither reset nor counted
+            if (metrics != null && algorithm != RateLimitAlgorithm.GCRA && weight > 0 && counter == weight) {
+                metrics.increment(resets == 0 ? METRIC_WINDOWS_INSERTED : METRIC_WINDOWS_RESET);
+            }
+
+            final RateLimit rateLimit = rateLimit(key, stripes);
+            rateLimit.setCounter(count(counter, previous, period, resetTime, now));
+            rateLimit.setLimit(limit);
+            rateLimit.setResetTime(resetTime);
+            rateLimit.setSubscription(subscription);
+            return rateLimit;
+        }
+    }
+
+    private static final class Peek {
+
+        private final RateLimit rateLimit;
+
+        private final long expiresAt;
+
+        private Peek(RateLimit rateLimit, long expiresAt) {
+            this.rateLimit = rateLimit;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static final class Builder {
+
+        private final RateLimitRouter router;
+
+        private String prefix = "";
+
+        private RateLimitPartitions partitions;
+
+        private RateLimitKeyEncoding keyEncoding = RateLimitKeyEncoding.PLAIN;
+
+        private boolean verifyKeys;
+
+        private RateLimitAlgorithm algorithm = RateLimitAlgorithm.FIXED;
+
+        private ReadPreference peekReadPreference = ReadPreference.secondaryPreferred();
+
+        private long peekCacheTtl = 1000L;
+
+        private int peekCacheSize = 10000;
+
+        private RepositoryMetrics metrics;
+
+        private Builder(RateLimitRouter router) {
+            this.router = router;
+        }
+
+        public Builder prefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * @param partitions where counters are stored when they are partitioned by period, <code>null</code> to store
+         *                   them in a single collection expired by a TTL index.
+         */
+        public Builder partitions(RateLimitPartitions partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * @param keyEncoding how keys are turned into document identifiers.
+         */
+        public Builder keyEncoding(RateLimitKeyEncoding keyEncoding) {
+            this.keyEncoding = keyEncoding;
+            return this;
+        }
+
+        /**
+         * @param verifyKeys whether the original key is stored along with its counter, so that two keys sharing the same
+         *                   encoded identifier are detected. A key colliding with another one falls back to its plain
+         *                   identifier. Only meaningful with {@link RateLimitKeyEncoding#DIGEST}.
+         */
+        public Builder verifyKeys(boolean verifyKeys) {
+            this.verifyKeys = verifyKeys;
+            return this;
+        }
+
+        /**
+         * @param algorithm how counters are computed. Partitioned storage only supports {@link RateLimitAlgorithm#FIXED}.
+         */
+        public Builder algorithm(RateLimitAlgorithm algorithm) {
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * @param peekReadPreference where {@link MongoRateLimitRepository#peek(String)} reads counters from.
+         */
+        public Builder peekReadPreference(ReadPreference peekReadPreference) {
+            this.peekReadPreference = peekReadPreference;
+            return this;
+        }
+
+        /**
+         * @param peekCacheTtl how long (ms) a peeked counter is served from memory.
+         */
+        public Builder peekCacheTtl(long peekCacheTtl) {
+            this.peekCacheTtl = peekCacheTtl;
+            return this;
+        }
+
+        /**
+         * @param peekCacheSize how many peeked counters are kept in memory.
+         */
+        public Builder peekCacheSize(int peekCacheSize) {
+            this.peekCacheSize = peekCacheSize;
+            return this;
+        }
+
+        /**
+         * @param metrics where the latencies and the outcomes of the store operations are reported, if any.
+         */
+        public Builder metrics(RepositoryMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public MongoRateLimitRepository build() {
+            return new MongoRateLimitRepository(this);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (partitions != null) {
+            partitions.close();
+        }
+        router.close();
+    }
 }
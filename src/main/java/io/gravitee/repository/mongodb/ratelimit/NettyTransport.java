@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.connection.StreamFactoryFactory;
+import com.mongodb.connection.netty.NettyStreamFactoryFactory;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ListableBeanFactory;
+
+/**
+ * Netty transport of the reactive rate-limit clients. The clients share the event loops of the gateway, so that their
+ * completions are delivered on the threads running the gateway pipeline instead of hopping from the driver's own
+ * threads, and read and write through pooled buffers.
+ *
+ * The event loops are taken from an {@link EventLoopGroup} bean if any, then from the Vert.x instance of the gateway
+ * through the internal <code>VertxInternal</code> API. When neither is available, e.g. because that internal API changed
+ * in the running Vert.x version, the clients run on a dedicated NIO event loop group, shut down by {@link #close()}.
+ *
+ * @author GraviteeSource Team
+ */
+final class NettyTransport implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+
+    private final StreamFactoryFactory streamFactoryFactory;
+
+    private final EventLoopGroup eventLoopGroup;
+
+    private final boolean dedicated;
+
+    /**
+     * @param socketChannelClass the channel matching the event loops, e.g. <code>io.netty.channel.epoll.EpollSocketChannel</code>
+     *                           when the gateway runs on the native epoll transport. Ignored with dedicated event loops,
+     *                           which always use NIO.
+     */
+    NettyTransport(ListableBeanFactory beanFactory, String socketChannelClass) {
+        final NettyStreamFactoryFactory.Builder builder = NettyStreamFactoryFactory.builder()
+                .allocator(PooledByteBufAllocator.DEFAULT);
+
+        final EventLoopGroup shared = sharedEventLoopGroup(beanFactory);
+        if (shared != null) {
+            try {
+                builder.socketChannelClass(Class.forName(socketChannelClass).asSubclass(SocketChannel.class));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Unknown Netty socket channel " + socketChannelClass, e);
+            }
+            eventLoopGroup = shared;
+            dedicated = false;
+        } else {
+            LOGGER.info("No event loop to share with the gateway, MongoDB rate-limit clients run their own NIO event loops");
+            builder.socketChannelClass(NioSocketChannel.class);
+            eventLoopGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("gio-ratelimit-netty", true));
+            dedicated = true;
+        }
+
+        streamFactoryFactory = builder.eventLoopGroup(eventLoopGroup).build();
+    }
+
+    StreamFactoryFactory streamFactoryFactory() {
+        return streamFactoryFactory;
+    }
+
+    EventLoopGroup eventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    boolean isDedicated() {
+        return dedicated;
+    }
+
+    /**
+     * Shuts the event loops down if they are dedicated to the rate-limit clients, the shared ones being left to the
+     * gateway.
+     */
+    @Override
+    public void close() {
+        if (dedicated) {
+            eventLoopGroup.shutdownGracefully();
+        }
+    }
+
+    private static EventLoopGroup sharedEventLoopGroup(ListableBeanFactory beanFactory) {
+        final EventLoopGroup eventLoopGroup = beanFactory.getBeanProvider(EventLoopGroup.class).getIfUnique();
+        if (eventLoopGroup != null) {
+            return eventLoopGroup;
+        }
+
+        final Vertx vertx = beanFactory.getBeanProvider(Vertx.class).getIfUnique();
+        if (vertx == null) {
+            return null;
+        }
+
+        try {
+            return ((VertxInternal) vertx).getEventLoopGroup();
+        } catch (ClassCastException | LinkageError e) {
+            LOGGER.warn("Unable to get the event loops of Vert.x {}, falling back to dedicated event loops: {}",
+                    vertx.getClass().getName(), e.toString());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Maybe;
+
+/**
+ * A {@link RateLimitRepository} able to read a counter without incrementing it, typically to display the remaining
+ * quota of a subscription.
+ *
+ * @author GraviteeSource Team
+ */
+public interface PeekableRateLimitRepository extends RateLimitRepository<RateLimit> {
+
+    /**
+     * Return the current state of the given key, or nothing if the key has no running window. The result may be
+     * slightly out of date, and reading it never writes to the rate-limit storage.
+     */
+    Maybe<RateLimit> peek(String key);
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+/**
+ * How a rate-limit counter is computed by {@link MongoRateLimitRepository}. The period of a key is derived from the
+ * reset time given by its supplier on each call.
+ *
+ * @author GraviteeSource Team
+ */
+public enum RateLimitAlgorithm {
+
+    /**
+     * Count the weight received since the window started. A client can send up to twice the limit around the end of a
+     * window.
+     */
+    FIXED,
+
+    /**
+     * Weigh the count of the previous window by the part of it still covered by a sliding window ending now, and add
+     * the count of the current window. Stores the current and previous counts.
+     */
+    SLIDING,
+
+    /**
+     * Generic cell rate algorithm, ie. a token bucket of <code>limit</code> tokens refilled at
+     * <code>limit / period</code>. Stores the theoretical arrival time: the returned counter is the number of tokens in
+     * use, and a call exceeding the limit does not consume any token.
+     */
+    GCRA
+}
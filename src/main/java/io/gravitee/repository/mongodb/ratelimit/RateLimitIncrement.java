@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+
+import java.util.function.Supplier;
+
+/**
+ * A single counter increment: the rate-limit key, the weight to add and the supplier used to initialize the
+ * rate-limit when its window is over (or does not exist yet).
+ *
+ * @author GraviteeSource Team
+ */
+public class RateLimitIncrement {
+
+    private final String key;
+
+    private final long weight;
+
+    private final Supplier<RateLimit> supplier;
+
+    public RateLimitIncrement(String key, long weight, Supplier<RateLimit> supplier) {
+        this.key = key;
+        this.weight = weight;
+        this.supplier = supplier;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public Supplier<RateLimit> getSupplier() {
+        return supplier;
+    }
+}
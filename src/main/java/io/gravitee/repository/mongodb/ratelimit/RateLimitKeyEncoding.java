@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.bson.types.Binary;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * How a rate-limit key is turned into the <code>_id</code> of its counter document.
+ *
+ * @author GraviteeSource Team
+ */
+public enum RateLimitKeyEncoding {
+
+    /**
+     * The key itself is the identifier.
+     */
+    PLAIN {
+        @Override
+        public Object encode(String key) {
+            return key;
+        }
+    },
+
+    /**
+     * The 16 bytes MD5 digest of the key is the identifier, whatever the length of the key. It is stored as a generic
+     * binary value, ie. <code>HexData(0, hex_md5(key))</code> in the mongo shell.
+     */
+    DIGEST {
+        @Override
+        public Object encode(String key) {
+            return new Binary(MD5.get().digest(key.getBytes(StandardCharsets.UTF_8)));
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("MD5 is not supported by this JVM", nsae);
+        }
+    });
+
+    public abstract Object encode(String key);
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-partitioned storage of the rate-limit counters: counters are written into collections named after the start of
+ * their time bucket (<code>ratelimit_&lt;epochMinute&gt;</code>) and expired buckets are dropped wholesale, instead of
+ * relying on the TTL monitor to delete each expired document.
+ *
+ * Only the current and the previous buckets are kept, so the partition period must be at least as long as the longest
+ * rate-limit window.
+ *
+ * @author GraviteeSource Team
+ */
+public class RateLimitPartitions {
+
+    private final Logger logger = LoggerFactory.getLogger(RateLimitPartitions.class);
+
+    private final String collectionPrefix;
+
+    private final long period;
+
+    private final RateLimitRouter router;
+
+    private ScheduledExecutorService executor;
+
+    public RateLimitPartitions(String collectionPrefix, long period, RateLimitRouter router) {
+        if (period <= 0 || period % TimeUnit.MINUTES.toMillis(1) != 0) {
+            throw new IllegalArgumentException("Rate-limit partition period must be a multiple of one minute");
+        }
+
+        this.collectionPrefix = collectionPrefix + '_';
+        this.period = period;
+        this.router = router;
+    }
+
+    public String current(long now) {
+        return name(now - Math.floorMod(now, period));
+    }
+
+    public String previous(long now) {
+        return name(now - Math.floorMod(now, period) - period);
+    }
+
+    private String name(long start) {
+        return collectionPrefix + TimeUnit.MILLISECONDS.toMinutes(start);
+    }
+
+    /**
+     * A partition can be dropped as soon as it is older than the previous one.
+     */
+    boolean isExpired(String collectionName, long now) {
+        if (!collectionName.startsWith(collectionPrefix)) {
+            return false;
+        }
+
+        try {
+            long start = TimeUnit.MINUTES.toMillis(Long.parseLong(collectionName.substring(collectionPrefix.length())));
+            return start < now - Math.floorMod(now, period) - period;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    public void startCleanup(long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-partitions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::dropExpired, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void dropExpired() {
+        final long now = System.currentTimeMillis();
+        router.getBackends().forEach(backend -> {
+            try {
+                backend.getMongoOperations()
+                        .getCollectionNames()
+                        .filter(collectionName -> isExpired(collectionName, now))
+                        .flatMap(collectionName -> backend.getMongoOperations()
+                                .dropCollection(collectionName)
+                                .doOnSuccess(ignore -> logger.debug("Rate-limit partition {} dropped from {}", collectionName, backend)))
+                        .onErrorResume(throwable -> {
+                            logger.warn("Unable to drop expired rate-limit partitions from {}", backend, throwable);
+                            return Flux.empty();
+                        })
+                        .blockLast();
+            } catch (Exception e) {
+                logger.error("Unexpected error while dropping expired rate-limit partitions", e);
+            }
+        });
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -15,19 +15,28 @@
  */
 package io.gravitee.repository.mongodb.ratelimit;
 
+import com.mongodb.ReadPreference;
+import com.mongodb.connection.StreamFactoryFactory;
 import io.gravitee.repository.Scope;
 import io.gravitee.repository.mongodb.common.MongoFactory;
+import io.gravitee.repository.mongodb.common.metrics.JmxRepositoryMetrics;
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
 import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.env.Environment;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author David BRASSELY (david.brassely at graviteesource.com)
@@ -35,7 +44,7 @@ import java.net.URI;
  */
 @Configuration
 @EnableReactiveMongoRepositories
-public class RateLimitRepositoryConfiguration {
+public class RateLimitRepositoryConfiguration implements DisposableBean {
 
 	@Autowired
 	private Environment environment;
@@ -44,13 +53,30 @@ public class RateLimitRepositoryConfiguration {
 	@Qualifier("rateLimitMongo")
 	private MongoFactory mongoFactory;
 
+	@Autowired
+	private ApplicationContext applicationContext;
+
+	private NettyTransport nettyTransport;
+
+	private final static String BACKENDS_PREFIX = "ratelimit.mongodb.backends";
+
 	protected String getDatabaseName() {
-		String uri = environment.getProperty("ratelimit.mongodb.uri");
+		return getDatabaseName("ratelimit.mongodb.");
+	}
+
+	private static void requireFixedWindows(RateLimitAlgorithm algorithm, String layer) {
+		if (algorithm != RateLimitAlgorithm.FIXED) {
+			throw new IllegalArgumentException("Rate-limit " + layer + " only supports fixed windows");
+		}
+	}
+
+	private String getDatabaseName(String propertyPrefix) {
+		String uri = environment.getProperty(propertyPrefix + "uri");
 		if (uri != null && ! uri.isEmpty()) {
 			return URI.create(uri).getPath().substring(1);
 		}
 
-		return environment.getProperty("ratelimit.mongodb.dbname", "gravitee");
+		return environment.getProperty(propertyPrefix + "dbname", "gravitee");
 	}
 
 	@Bean(name = "rateLimitMongo")
@@ -59,16 +85,161 @@ public class RateLimitRepositoryConfiguration {
 	}
 
 	@Bean(name = "rateLimitMongoTemplate")
+	@Lazy
 	public ReactiveMongoOperations mongoOperations() {
 		try {
-			return new ReactiveMongoTemplate(mongoFactory.getReactiveClient(), getDatabaseName());
+			return new ReactiveMongoTemplate(mongoFactory.getReactiveClient(rateLimitMetrics(), "", streamFactoryFactory()),
+					getDatabaseName());
 		} catch (Exception e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
+	@Bean(name = "rateLimitMetrics")
+	public JmxRepositoryMetrics rateLimitMetrics() {
+		return new JmxRepositoryMetrics(Scope.RATE_LIMIT.getName());
+	}
+
 	@Bean
-	public RateLimitRepository rateLimitRepository() {
-		return new MongoRateLimitRepository();
+	public RateLimitRepository rateLimitRepository(@Qualifier("rateLimitMetrics") RepositoryMetrics metrics) {
+		final String prefix = environment.getProperty("ratelimit.mongodb.prefix", "");
+		final RateLimitRouter router = router(metrics);
+
+		RateLimitPartitions partitions = null;
+		if ("partitioned".equals(environment.getProperty("ratelimit.mongodb.storage", "ttl"))) {
+			partitions = new RateLimitPartitions(prefix + "ratelimit",
+					environment.getProperty("ratelimit.mongodb.partition.period", Long.class, 3600000L), router);
+			partitions.startCleanup(environment.getProperty("ratelimit.mongodb.partition.cleanupInterval", Long.class, 60000L));
+		}
+
+		final RateLimitAlgorithm algorithm = RateLimitAlgorithm.valueOf(
+				environment.getProperty("ratelimit.mongodb.algorithm", "fixed").toUpperCase());
+
+		MongoRateLimitRepository mongoRateLimitRepository = MongoRateLimitRepository.builder(router)
+				.prefix(prefix)
+				.partitions(partitions)
+				.keyEncoding(RateLimitKeyEncoding.valueOf(environment.getProperty("ratelimit.mongodb.keyEncoding", "plain").toUpperCase()))
+				.verifyKeys(environment.getProperty("ratelimit.mongodb.verifyKeys", Boolean.class, false))
+				.algorithm(algorithm)
+				.peekReadPreference(ReadPreference.valueOf(environment.getProperty("ratelimit.mongodb.peek.readPreference", "secondaryPreferred")))
+				.peekCacheTtl(environment.getProperty("ratelimit.mongodb.peek.cacheTtl", Long.class, 1000L))
+				.peekCacheSize(environment.getProperty("ratelimit.mongodb.peek.cacheSize", Integer.class, 10000))
+				.metrics(metrics)
+				.build();
+		mongoRateLimitRepository.ensureTTLIndex();
+		mongoRateLimitRepository.ensureSubscriptionIndex();
+
+		BatchRateLimitRepository rateLimitRepository = mongoRateLimitRepository;
+
+		final boolean striping = environment.getProperty("ratelimit.mongodb.striping.enabled", Boolean.class, false);
+		final boolean coalescing = environment.getProperty("ratelimit.mongodb.coalescing.enabled", Boolean.class, false);
+
+		if (striping) {
+			requireFixedWindows(algorithm, "striping");
+			rateLimitRepository = new StripedRateLimitRepository(rateLimitRepository, mongoRateLimitRepository, metrics,
+					environment.getProperty("ratelimit.mongodb.striping.stripes", Integer.class, 8),
+					environment.getProperty("ratelimit.mongodb.striping.promoteThreshold", Long.class, 1000L),
+					environment.getProperty("ratelimit.mongodb.striping.demoteThreshold", Long.class, 200L),
+					environment.getProperty("ratelimit.mongodb.striping.refreshInterval", Long.class, 100L));
+		}
+
+		if (coalescing) {
+			requireFixedWindows(algorithm, "coalescing");
+			rateLimitRepository = new CoalescingRateLimitRepository(rateLimitRepository, metrics,
+					environment.getProperty("ratelimit.mongodb.coalescing.interval", Long.class, 10L),
+					environment.getProperty("ratelimit.mongodb.coalescing.maxPendingWeight", Long.class, 100L),
+					environment.getProperty("ratelimit.mongodb.coalescing.limitRatio", Double.class, 0.8));
+		}
+
+		if (environment.getProperty("ratelimit.mongodb.leasing.enabled", Boolean.class, false)) {
+			requireFixedWindows(algorithm, "leasing");
+			// Unused leases are given back to the key's own document, which striped or coalesced increments bypass
+			if (striping || coalescing) {
+				throw new IllegalArgumentException("Rate-limit leasing cannot be combined with striping or coalescing");
+			}
+			rateLimitRepository = new LeasingRateLimitRepository(rateLimitRepository, mongoRateLimitRepository, metrics,
+					environment.getProperty("ratelimit.mongodb.leasing.minLimit", Long.class, 1000L),
+					environment.getProperty("ratelimit.mongodb.leasing.minSize", Long.class, 10L),
+					environment.getProperty("ratelimit.mongodb.leasing.maxRatio", Double.class, 0.1),
+					environment.getProperty("ratelimit.mongodb.leasing.target", Long.class, 1000L),
+					environment.getProperty("ratelimit.mongodb.leasing.idleTimeout", Long.class, 5000L));
+		}
+
+		if (environment.getProperty("ratelimit.mongodb.breaker.enabled", Boolean.class, false)) {
+			requireFixedWindows(algorithm, "circuit breaker");
+			rateLimitRepository = new CircuitBreakerRateLimitRepository(rateLimitRepository, mongoRateLimitRepository, metrics,
+					environment.getProperty("ratelimit.mongodb.breaker.timeout", Long.class, 500L),
+					environment.getProperty("ratelimit.mongodb.breaker.failureThreshold", Integer.class, 5),
+					environment.getProperty("ratelimit.mongodb.breaker.nodes", Integer.class, 1),
+					environment.getProperty("ratelimit.mongodb.breaker.probeInterval", Long.class, 1000L));
+		}
+
+		if (environment.getProperty("ratelimit.mongodb.admission.enabled", Boolean.class, false)) {
+			rateLimitRepository = new AdmissionControlRateLimitRepository(rateLimitRepository, metrics,
+					environment.getProperty("ratelimit.mongodb.admission.maxInFlight", Integer.class, 1000),
+					environment.getProperty("ratelimit.mongodb.admission.maxQueued", Integer.class, 1000),
+					environment.getProperty("ratelimit.mongodb.admission.queueTimeout", Long.class, 50L),
+					environment.getProperty("ratelimit.mongodb.admission.failOpen", Boolean.class, true));
+		}
+
+		if (environment.getProperty("ratelimit.mongodb.heavyHitters.enabled", Boolean.class, false)) {
+			rateLimitRepository = new HeavyHitterRateLimitRepository(rateLimitRepository, Scope.RATE_LIMIT.getName(),
+					environment.getProperty("ratelimit.mongodb.heavyHitters.depth", Integer.class, 4),
+					environment.getProperty("ratelimit.mongodb.heavyHitters.width", Integer.class, 4096),
+					environment.getProperty("ratelimit.mongodb.heavyHitters.size", Integer.class, 20),
+					environment.getProperty("ratelimit.mongodb.heavyHitters.interval", Long.class, 10000L));
+		}
+
+		return rateLimitRepository;
+	}
+
+	/**
+	 * With <code>ratelimit.mongodb.transport: netty</code>, all the rate-limit clients share the same Netty transport.
+	 */
+	private synchronized StreamFactoryFactory streamFactoryFactory() {
+		if (nettyTransport == null && "netty".equals(environment.getProperty("ratelimit.mongodb.transport", "async"))) {
+			nettyTransport = new NettyTransport(applicationContext,
+					environment.getProperty("ratelimit.mongodb.netty.socketChannelClass", "io.netty.channel.socket.nio.NioSocketChannel"));
+		}
+
+		return nettyTransport == null ? null : nettyTransport.streamFactoryFactory();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (nettyTransport != null) {
+			nettyTransport.close();
+		}
+	}
+
+	/**
+	 * Without any <code>ratelimit.mongodb.backends</code>, all the keys are stored in the default rate-limit database.
+	 */
+	private RateLimitRouter router(RepositoryMetrics metrics) {
+		List<RateLimitRouter.Backend> backends = new ArrayList<>();
+		for (int i = 0; environment.getProperty(BACKENDS_PREFIX + "[" + i + "].name") != null; i++) {
+			String propertyPrefix = BACKENDS_PREFIX + "[" + i + "].";
+			String name = environment.getProperty(propertyPrefix + "name");
+			MongoFactory backendFactory = MongoFactory.withPropertyPrefix(environment, propertyPrefix);
+			try {
+				backends.add(new RateLimitRouter.Backend(
+						name,
+						new ReactiveMongoTemplate(backendFactory.getReactiveClient(metrics, "backend." + name + '.',
+								streamFactoryFactory()), getDatabaseName(propertyPrefix)),
+						environment.getProperty(propertyPrefix + "activeFrom", Long.class, 0L),
+						environment.getProperty(propertyPrefix + "weight", Integer.class, 1)));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		if (backends.isEmpty()) {
+			return RateLimitRouter.single(mongoOperations(), metrics);
+		}
+
+		RateLimitRouter router = new RateLimitRouter(backends,
+				environment.getProperty(BACKENDS_PREFIX + ".handover", Long.class, RateLimitRouter.DEFAULT_HANDOVER), metrics);
+		router.startHealthCheck(environment.getProperty(BACKENDS_PREFIX + ".healthCheckInterval", Long.class, 5000L));
+		return router;
 	}
 }
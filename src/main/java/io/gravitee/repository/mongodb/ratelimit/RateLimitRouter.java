@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Route the rate-limit keys over one or several independent MongoDB deployments (backends), using consistent hashing.
+ *
+ * A backend only joins the ring from its <code>activeFrom</code> time: adding a backend with an activation time in the
+ * future lets all the gateways switch to the new topology at the same instant, whenever they have been restarted.
+ * Consistent hashing guarantees that only the keys taken over by the new backend move. For <code>handover</code> ms
+ * after an activation, the previous owner of the keys which moved is still known (see {@link #previous(String, long)}),
+ * so that their running windows can be carried over to their new backend instead of starting over.
+ *
+ * @author GraviteeSource Team
+ */
+public class RateLimitRouter {
+
+    private final static int VIRTUAL_NODES = 160;
+
+    public final static long DEFAULT_HANDOVER = TimeUnit.DAYS.toMillis(1);
+
+    private final Logger logger = LoggerFactory.getLogger(RateLimitRouter.class);
+
+    private final List<Backend> backends;
+
+    /**
+     * Rings, by activation time.
+     */
+    private final NavigableMap<Long, TreeMap<Long, Backend>> rings = new TreeMap<>();
+
+    private final long handover;
+
+    private final RepositoryMetrics metrics;
+
+    private ScheduledExecutorService executor;
+
+    public RateLimitRouter(List<Backend> backends, RepositoryMetrics metrics) {
+        this(backends, DEFAULT_HANDOVER, metrics);
+    }
+
+    /**
+     * @param handover how long (ms) after an activation the previous owner of the keys is known, which should cover
+     *                 the longest rate-limit (or quota) window.
+     */
+    public RateLimitRouter(List<Backend> backends, long handover, RepositoryMetrics metrics) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one rate-limit backend is required");
+        }
+
+        this.backends = Collections.unmodifiableList(backends);
+        this.handover = handover;
+        this.metrics = metrics;
+
+        backends.stream().map(Backend::getActiveFrom).distinct().forEach(activation -> {
+            TreeMap<Long, Backend> ring = new TreeMap<>();
+            backends.stream()
+                    .filter(backend -> backend.getActiveFrom() <= activation)
+                    .forEach(backend -> {
+                        for (int i = 0; i < VIRTUAL_NODES * backend.getWeight(); i++) {
+                            ring.put(hash(backend.getName() + '#' + i), backend);
+                        }
+                    });
+            rings.put(activation, ring);
+        });
+
+        if (metrics != null) {
+            backends.forEach(backend -> metrics.gauge(backend.metric("up"), () -> backend.isUp() ? 1 : 0));
+        }
+    }
+
+    public static RateLimitRouter single(ReactiveMongoOperations mongoOperations, RepositoryMetrics metrics) {
+        return new RateLimitRouter(Collections.singletonList(new Backend("default", mongoOperations, 0, 1)), metrics);
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    public Backend route(String key) {
+        return route(key, System.currentTimeMillis());
+    }
+
+    public Backend route(String key, long now) {
+        if (backends.size() == 1) {
+            return backends.get(0);
+        }
+
+        Map.Entry<Long, TreeMap<Long, Backend>> ring = rings.floorEntry(now);
+        if (ring == null) {
+            ring = rings.firstEntry();
+        }
+
+        return owner(ring.getValue(), key);
+    }
+
+    /**
+     * @return whether some backends are activated after the others, so that keys move from one backend to another.
+     */
+    public boolean hasActivations() {
+        return rings.size() > 1;
+    }
+
+    /**
+     * @return whether the keys which moved at the last activation may still have running windows on their previous
+     * backend.
+     */
+    public boolean isHandingOver(long now) {
+        final Long activation = rings.floorKey(now);
+        return activation != null && activation > rings.firstKey() && now < activation + handover;
+    }
+
+    /**
+     * @return the backend owning the given key before the last activation, if the key moved and may still have a
+     * running window there, <code>null</code> otherwise.
+     */
+    public Backend previous(String key, long now) {
+        if (!isHandingOver(now)) {
+            return null;
+        }
+
+        final Long activation = rings.floorKey(now);
+        final Backend previous = owner(rings.lowerEntry(activation).getValue(), key);
+        return previous == owner(rings.get(activation), key) ? null : previous;
+    }
+
+    private static Backend owner(TreeMap<Long, Backend> ring, String key) {
+        Map.Entry<Long, Backend> node = ring.ceilingEntry(hash(key));
+        return (node != null ? node : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * Group the given items by the backend owning their key.
+     */
+    public <T> Map<Backend, List<T>> partition(Iterable<T> items, Function<T, String> key) {
+        Map<Backend, List<T>> partitions = new LinkedHashMap<>();
+        for (T item : items) {
+            partitions.computeIfAbsent(route(key.apply(item)), backend -> new ArrayList<>()).add(item);
+        }
+        return partitions;
+    }
+
+    /**
+     * Periodically ping each backend to expose its health.
+     */
+    public void startHealthCheck(long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::ping, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void ping() {
+        backends.forEach(backend -> {
+            final long start = System.nanoTime();
+            try {
+                backend.getMongoOperations().executeCommand("{ ping: 1 }").block(Duration.ofSeconds(5));
+                if (!backend.isUp()) {
+                    logger.info("Rate-limit backend {} is up", backend.getName());
+                }
+                backend.up = true;
+                if (metrics != null) {
+                    metrics.record(backend.metric("ping"), System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            } catch (Exception e) {
+                if (backend.isUp()) {
+                    logger.warn("Rate-limit backend {} is down", backend.getName(), e);
+                }
+                backend.up = false;
+            }
+        });
+    }
+
+    /**
+     * Report the outcome of an operation run on the given backend.
+     */
+    void record(Backend backend, long start, SignalType signal) {
+        if (metrics == null) {
+            return;
+        }
+
+        metrics.record(backend.latencyMetric, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (signal == SignalType.ON_ERROR) {
+            metrics.increment(backend.errorsMetric);
+        }
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a, followed by the MurmurHash3 finalizer to spread the keys over the ring.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static class Backend {
+
+        /**
+         * The current and the previous partitions, with some room for the partitions being switched.
+         */
+        private final static int RAW_COLLECTIONS = 4;
+
+        private final String name;
+
+        private final ReactiveMongoOperations mongoOperations;
+
+        private final long activeFrom;
+
+        private final int weight;
+
+        private final String latencyMetric;
+
+        private final String errorsMetric;
+
+        private volatile boolean up = true;
+
+        private final ConcurrentMap<String, MongoCollection<RawBsonDocument>> rawCollections = new ConcurrentHashMap<>();
+
+        public Backend(String name, ReactiveMongoOperations mongoOperations, long activeFrom, int weight) {
+            this.name = name;
+            this.mongoOperations = mongoOperations;
+            this.activeFrom = activeFrom;
+            this.weight = weight;
+            this.latencyMetric = metric("latency");
+            this.errorsMetric = metric("errors");
+        }
+
+        String metric(String name) {
+            return "backend." + this.name + '.' + name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ReactiveMongoOperations getMongoOperations() {
+            return mongoOperations;
+        }
+
+        public long getActiveFrom() {
+            return activeFrom;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+
+        /**
+         * The given collection, decoding documents as raw BSON. Collections are kept by name so that they are not looked
+         * up again on each call, including when the current and the previous partitions are used alternately. Expired
+         * partitions are forgotten once more than {@link #RAW_COLLECTIONS} collections have been requested.
+         */
+        MongoCollection<RawBsonDocument> getRawCollection(String collectionName) {
+            MongoCollection<RawBsonDocument> collection = rawCollections.get(collectionName);
+            if (collection == null) {
+                if (rawCollections.size() >= RAW_COLLECTIONS) {
+                    rawCollections.clear();
+                }
+                collection = rawCollections.computeIfAbsent(collectionName,
+                        name -> mongoOperations.getCollection(name).withDocumentClass(RawBsonDocument.class));
+            }
+            return collection;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.client.result.UpdateResult;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Direct access to the stored counters, for the layers which need more than increments.
+ *
+ * @author GraviteeSource Team
+ */
+interface RateLimitStore {
+
+    /**
+     * Read the current state of the given keys, without modifying them.
+     */
+    Flux<RateLimit> findAll(Collection<String> keys);
+
+    /**
+     * Give back <code>weight</code> to the counter of the given key, only if its window (identified by its reset time)
+     * is still the current one.
+     */
+    Mono<UpdateResult> decrement(String key, long weight, long resetTime);
+
+    /**
+     * Mark the window of the given key (identified by its reset time) as striped over <code>stripes</code> documents:
+     * the key's own document is then read back as a {@link StripedRateLimit} until the window is over.
+     */
+    Mono<UpdateResult> stripe(String key, int stripes, long resetTime);
+
+    /**
+     * Ping the storage, completes once it has answered.
+     */
+    Mono<Void> ping();
+}
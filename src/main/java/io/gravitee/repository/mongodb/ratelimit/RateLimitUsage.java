@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+
+import java.util.List;
+
+/**
+ * The running counters of a subscription, and of one of its plans when grouped by plan.
+ *
+ * @author GraviteeSource Team
+ */
+public class RateLimitUsage {
+
+    private final String subscription;
+
+    private final String plan;
+
+    private final List<RateLimit> rateLimits;
+
+    public RateLimitUsage(String subscription, String plan, List<RateLimit> rateLimits) {
+        this.subscription = subscription;
+        this.plan = plan;
+        this.rateLimits = rateLimits;
+    }
+
+    public String getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * @return the plan, or <code>null</code> when not grouped by plan.
+     */
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return the counters, whose key is <code>null</code> when it cannot be read back from a digest.
+     */
+    public List<RateLimit> getRateLimits() {
+        return rateLimits;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+
+/**
+ * The counter of a key's own document when its current window is striped (see {@link StripedRateLimitRepository}),
+ * so that every gateway incrementing the key learns that the counter is spread over several documents.
+ *
+ * @author GraviteeSource Team
+ */
+class StripedRateLimit extends RateLimit {
+
+    private final int stripes;
+
+    StripedRateLimit(String key, int stripes) {
+        super(key);
+        this.stripes = stripes;
+    }
+
+    /**
+     * @return the number of documents the counter is spread over, the key's own document included.
+     */
+    int getStripes() {
+        return stripes;
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.common.metrics.RepositoryMetrics;
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.adapter.rxjava.RxJava2Adapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Spread the increments of very hot keys over several documents (stripes) to avoid serializing them on a single
+ * document.
+ *
+ * A key is promoted to striped mode as soon as its throughput reaches <code>promoteThreshold</code> hits per second.
+ * The throughput of a key is the highest of the local hits and of the growth of its counter, so that a key hot across
+ * the gateways is promoted even if none of them receives enough hits on its own. The first stripe is the key's own
+ * document, others are stored under <code>&lt;key&gt;#&lt;stripe&gt;</code>.
+ *
+ * Striping is decided per window and shared by all the gateways through the store: promoting a key marks its current
+ * window as striped on the key's own document, and the stripes are only written while the window is known to be
+ * marked. Every gateway incrementing the key's own document gets the mark back and starts summing the stripes, even if
+ * it has not promoted the key itself. The mark is dropped with the window: each window is marked again as long as the
+ * throughput of the key stays over <code>demoteThreshold</code>, and a key is demoted once its last marked window is
+ * over, so that it does not flap between both modes.
+ *
+ * Each increment goes to a randomly picked stripe and the returned counter is the sum of this stripe and of the last
+ * known values of the other stripes, refreshed every <code>refreshInterval</code> ms. The returned counter therefore
+ * misses the increments made to the other stripes since their last refresh. For a key receiving <code>r</code> hits per
+ * second, the undercount is bounded by about <code>r * (refreshInterval + refresh latency) * (stripes - 1) / stripes</code>:
+ * with 8 stripes refreshed every 100 ms, a key at 10,000 hits/s may go about 900 hits over its limit before the
+ * gateways see it. Until a gateway gets the mark back, that is for the increments it sends while the mark is being
+ * written, it only sees the key's own document.
+ *
+ * @author GraviteeSource Team
+ */
+public class StripedRateLimitRepository extends DelegatingRateLimitRepository {
+
+    private final static String STRIPE_SEPARATOR = "#";
+
+    private final static long RATE_INTERVAL = 1000L;
+
+    private final Logger logger = LoggerFactory.getLogger(StripedRateLimitRepository.class);
+
+    private final RateLimitStore store;
+
+    private final RepositoryMetrics metrics;
+
+    private final int stripes;
+
+    private final long promoteThreshold;
+
+    private final long demoteThreshold;
+
+    private final ConcurrentMap<String, Stripes> striped = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Traffic> traffic = new ConcurrentHashMap<>();
+
+    private volatile long trafficSince = System.currentTimeMillis();
+
+    private final ScheduledExecutorService executor;
+
+    public StripedRateLimitRepository(RateLimitRepository<RateLimit> delegate, RateLimitStore store,
+                                      RepositoryMetrics metrics, int stripes, long promoteThreshold,
+                                      long demoteThreshold, long refreshInterval) {
+        super(delegate);
+        if (demoteThreshold >= promoteThreshold) {
+            throw new IllegalArgumentException("Rate-limit striping demote threshold must be lower than its promote threshold");
+        }
+
+        this.store = store;
+        this.metrics = metrics;
+        this.stripes = stripes;
+        this.promoteThreshold = promoteThreshold;
+        this.demoteThreshold = demoteThreshold;
+
+        metrics.gauge("striping.keys", striped::size);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gio-ratelimit-striping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::evaluate, RATE_INTERVAL, RATE_INTERVAL, TimeUnit.MILLISECONDS);
+        this.executor.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        final Traffic traffic = hit(key, weight);
+        final Stripes stripes = striped.get(key);
+        final int stripe = stripes == null ? 0 : stripes.pick(System.currentTimeMillis());
+
+        return delegate
+                .incrementAndGet(stripe == 0 ? key : stripes.keys[stripe], weight,
+                        stripe == 0 ? supplier : () -> stripes.template(supplier))
+                .flatMap(rateLimit -> counted(key, stripe, rateLimit))
+                .doOnSuccess(traffic::observe);
+    }
+
+    /**
+     * Increments of striped keys are sent to one of their stripes, within the same batch as the other increments.
+     */
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        final long now = System.currentTimeMillis();
+        final List<RateLimitIncrement> routed = new ArrayList<>(increments.size());
+        final Traffic[] trafficOf = new Traffic[increments.size()];
+        final int[] stripeOf = new int[increments.size()];
+
+        for (int i = 0; i < increments.size(); i++) {
+            final RateLimitIncrement increment = increments.get(i);
+            trafficOf[i] = hit(increment.getKey(), increment.getWeight());
+
+            final Stripes stripes = striped.get(increment.getKey());
+            final int stripe = stripes == null ? 0 : stripes.pick(now);
+            stripeOf[i] = stripe;
+            routed.add(stripe == 0 ? increment : new RateLimitIncrement(stripes.keys[stripe], increment.getWeight(),
+                    () -> stripes.template(increment.getSupplier())));
+        }
+
+        return super.incrementAndGet(routed).flatMap(rateLimits -> {
+            final List<Single<RateLimit>> results = new ArrayList<>(rateLimits.size());
+            for (int i = 0; i < rateLimits.size(); i++) {
+                final Traffic traffic = trafficOf[i];
+                results.add(counted(increments.get(i).getKey(), stripeOf[i], rateLimits.get(i)).doOnSuccess(traffic::observe));
+            }
+            return Single.concat(results).toList();
+        });
+    }
+
+    private Traffic hit(String key, long weight) {
+        final Traffic traffic = this.traffic.computeIfAbsent(key, k -> new Traffic());
+        traffic.hits.add(weight);
+        return traffic;
+    }
+
+    /**
+     * Turn the counter of a stripe into the counter of its key. The key's own document tells whether its window is
+     * striped, including for the keys this gateway has not promoted: their stripes are then read once before answering.
+     */
+    private Single<RateLimit> counted(String key, int stripe, RateLimit rateLimit) {
+        Stripes stripes = striped.get(key);
+        if (stripes == null) {
+            if (!(rateLimit instanceof StripedRateLimit)) {
+                return Single.just(rateLimit);
+            }
+            stripes = adopt(key, ((StripedRateLimit) rateLimit).getStripes());
+        }
+
+        final Stripes counted = stripes;
+        if (stripe == 0 && !(rateLimit instanceof StripedRateLimit) && counted.hot) {
+            // A new window started on the key's own document, which is still hot
+            mark(counted, rateLimit.getResetTime());
+        }
+        return counted.loaded.andThen(Single.fromCallable(() -> counted.update(stripe, rateLimit)));
+    }
+
+    /**
+     * Stripe a key whose window has been marked as striped by another gateway.
+     */
+    private Stripes adopt(String key, int count) {
+        return striped.computeIfAbsent(key, k -> {
+            final Stripes stripes = new Stripes(k, count, System.currentTimeMillis());
+            stripes.loaded = RxJava2Adapter
+                    .monoToCompletable(store.findAll(Arrays.asList(stripes.keys)).doOnNext(stripes::refresh).then())
+                    .onErrorComplete()
+                    .cache();
+            metrics.increment("striping.adoptions");
+            logger.debug("Rate-limit key {} striped by another gateway", k);
+            return stripes;
+        });
+    }
+
+    /**
+     * Mark the given window of a key as striped, once per window.
+     */
+    private void mark(Stripes stripes, long resetTime) {
+        if (!stripes.marking(resetTime, System.currentTimeMillis())) {
+            return;
+        }
+
+        store.stripe(stripes.key, stripes.keys.length, resetTime).subscribe(
+                result -> {
+                    if (result.getMatchedCount() > 0) {
+                        stripes.marked(resetTime);
+                    }
+                },
+                error -> logger.debug("Unable to mark rate-limit key {} as striped", stripes.key, error));
+    }
+
+    /**
+     * Promote or demote keys depending on their throughput during the last interval, and mark the current window of the
+     * hot ones.
+     */
+    void evaluate() {
+        try {
+            final long now = System.currentTimeMillis();
+            final long elapsed = Math.max(now - trafficSince, 1);
+            final Map<String, Long> rates = new HashMap<>();
+            trafficSince = now;
+
+            // Counters are reset rather than reallocated, idle keys are dropped
+            traffic.forEach((key, traffic) -> {
+                long rate = traffic.rate(elapsed);
+                if (rate < 0) {
+                    this.traffic.remove(key, traffic);
+                } else {
+                    rates.put(key, rate);
+                }
+            });
+
+            rates.forEach((key, rate) -> {
+                if (rate >= promoteThreshold && !striped.containsKey(key)) {
+                    striped.put(key, new Stripes(key, stripes, now));
+                    metrics.increment("striping.promotions");
+                    logger.debug("Rate-limit key {} promoted to striped mode ({} hits/s)", key, rate);
+                }
+            });
+
+            striped.forEach((key, stripes) -> {
+                long rate = rates.getOrDefault(key, 0L);
+                stripes.hot = rate >= demoteThreshold;
+                if (stripes.hot) {
+                    mark(stripes, traffic.get(key).resetTime());
+                } else if (stripes.isOver(now)) {
+                    // Demote only once the marked window is over so that no stripe is left behind
+                    striped.remove(key, stripes);
+                    metrics.increment("striping.demotions");
+                    logger.debug("Rate-limit key {} demoted from striped mode ({} hits/s)", key, rate);
+                }
+            });
+        } catch (Exception e) {
+            logger.error("Unexpected error while evaluating rate-limit stripes", e);
+        }
+    }
+
+    /**
+     * Read back all the stripes of the striped keys with a single query.
+     */
+    void refresh() {
+        if (striped.isEmpty()) {
+            return;
+        }
+
+        try {
+            final long start = System.nanoTime();
+            final Map<String, Stripes> byStripeKey = new HashMap<>();
+            final List<String> stripeKeys = new ArrayList<>();
+            striped.values().forEach(stripes -> {
+                for (String stripeKey : stripes.keys) {
+                    byStripeKey.put(stripeKey, stripes);
+                    stripeKeys.add(stripeKey);
+                }
+            });
+
+            store.findAll(stripeKeys)
+                    .doOnNext(rateLimit -> {
+                        Stripes stripes = byStripeKey.get(rateLimit.getKey());
+                        if (stripes != null) {
+                            stripes.refresh(rateLimit);
+                        }
+                    })
+                    .blockLast();
+
+            metrics.record("striping.refresh", System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            logger.debug("Unable to refresh rate-limit stripes", e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        super.destroy();
+    }
+
+    /**
+     * The hits of a key on this gateway, and the last counter returned for it, which includes the hits of all the
+     * gateways.
+     */
+    private static final class Traffic {
+
+        private final LongAdder hits = new LongAdder();
+
+        private long counter;
+
+        private long resetTime;
+
+        private long evaluatedCounter;
+
+        private long evaluatedResetTime;
+
+        synchronized void observe(RateLimit rateLimit) {
+            if (rateLimit.getResetTime() > resetTime || (rateLimit.getResetTime() == resetTime && rateLimit.getCounter() > counter)) {
+                counter = rateLimit.getCounter();
+                resetTime = rateLimit.getResetTime();
+            }
+        }
+
+        synchronized long resetTime() {
+            return resetTime;
+        }
+
+        /**
+         * @return the hits per second since the previous evaluation, or <code>-1</code> if the key got no hit.
+         */
+        synchronized long rate(long elapsed) {
+            final long local = hits.sumThenReset();
+            // Across windows, only the hits of the current one are known
+            final long growth = resetTime == evaluatedResetTime ? counter - evaluatedCounter : counter;
+            evaluatedCounter = counter;
+            evaluatedResetTime = resetTime;
+
+            return local == 0 ? -1 : Math.max(local, growth) * 1000 / elapsed;
+        }
+    }
+
+    private static final class Stripes {
+
+        private final String key;
+
+        private final String[] keys;
+
+        private final long[] counters;
+
+        private final long[] resetTimes;
+
+        private final long createdAt;
+
+        /** Reset time of the last window known to be marked as striped */
+        private volatile long markedUntil;
+
+        /** Reset time of the last window a mark has been sent for */
+        private long marking;
+
+        /** Whether the key is still hot enough for its next windows to be striped */
+        private volatile boolean hot = true;
+
+        /** Completes once the stripes are known, for the keys striped by another gateway */
+        private Completable loaded = Completable.complete();
+
+        private Stripes(String key, int count, long createdAt) {
+            this.key = key;
+            this.createdAt = createdAt;
+            this.keys = new String[count];
+            this.keys[0] = key;
+            for (int i = 1; i < count; i++) {
+                this.keys[i] = key + STRIPE_SEPARATOR + i;
+            }
+            this.counters = new long[count];
+            this.resetTimes = new long[count];
+        }
+
+        /**
+         * Stripes are only written while the window is known to be marked: until then, increments go to the key's own
+         * document, which tells whether the window is striped.
+         */
+        int pick(long now) {
+            return now < markedUntil ? ThreadLocalRandom.current().nextInt(keys.length) : 0;
+        }
+
+        /**
+         * Stripes share the reset time of the marked window.
+         */
+        RateLimit template(Supplier<RateLimit> supplier) {
+            RateLimit rateLimit = supplier.get();
+            rateLimit.setResetTime(markedUntil);
+            return rateLimit;
+        }
+
+        synchronized boolean marking(long resetTime, long now) {
+            if (resetTime <= now || resetTime <= marking || resetTime <= markedUntil) {
+                return false;
+            }
+            marking = resetTime;
+            return true;
+        }
+
+        synchronized void marked(long resetTime) {
+            markedUntil = Math.max(markedUntil, resetTime);
+        }
+
+        synchronized RateLimit update(int stripe, RateLimit stripeRateLimit) {
+            set(stripe, stripeRateLimit);
+
+            long now = System.currentTimeMillis();
+            long total = 0;
+            for (int i = 0; i < counters.length; i++) {
+                if (resetTimes[i] > now) {
+                    total += counters[i];
+                }
+            }
+
+            RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setCounter(total);
+            rateLimit.setLimit(stripeRateLimit.getLimit());
+            rateLimit.setResetTime(stripeRateLimit.getResetTime());
+            rateLimit.setSubscription(stripeRateLimit.getSubscription());
+            return rateLimit;
+        }
+
+        synchronized void refresh(RateLimit stripeRateLimit) {
+            int stripe = Arrays.asList(keys).indexOf(stripeRateLimit.getKey());
+            if (stripe >= 0) {
+                set(stripe, stripeRateLimit);
+            }
+        }
+
+        /**
+         * Answers may arrive out of order: a counter only replaces a lower one of the same window, or an older window.
+         */
+        private void set(int stripe, RateLimit stripeRateLimit) {
+            final long resetTime = stripeRateLimit.getResetTime();
+            if (resetTime > resetTimes[stripe] || (resetTime == resetTimes[stripe] && stripeRateLimit.getCounter() > counters[stripe])) {
+                counters[stripe] = stripeRateLimit.getCounter();
+                resetTimes[stripe] = resetTime;
+            }
+            if (stripe == 0 && stripeRateLimit instanceof StripedRateLimit) {
+                markedUntil = Math.max(markedUntil, resetTime);
+            }
+        }
+
+        /**
+         * Right after a promotion, the window is not marked yet and may still be running.
+         */
+        synchronized boolean isOver(long now) {
+            if (markedUntil > now) {
+                return false;
+            }
+            for (long resetTime : resetTimes) {
+                if (resetTime > now) {
+                    return false;
+                }
+            }
+            return markedUntil > 0 || now - createdAt > 2 * RATE_INTERVAL;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Flowable;
+
+import java.util.Collection;
+
+/**
+ * A {@link RateLimitRepository} able to report the running counters of subscriptions, typically for billing.
+ *
+ * @author GraviteeSource Team
+ */
+public interface UsageRateLimitRepository extends RateLimitRepository<RateLimit> {
+
+    /**
+     * Stream the running counters grouped by subscription, with backpressure, each subscription (or plan) being reported
+     * once. Keys are not bound to an API: the closest grouping is the plan, i.e. the first segment of the keys built by
+     * the gateway, so grouping by plan depends on that key format and on the keys being readable (not digested).
+     *
+     * @param subscriptions the subscriptions to report, or all of them when empty.
+     * @param byPlan whether the counters of a subscription are also grouped by plan.
+     */
+    Flowable<RateLimitUsage> usage(Collection<String> subscriptions, boolean byPlan);
+}
@@ -17,8 +17,9 @@ db.getCollection(`${prefix}applications`).reIndex();
 db.getCollection(`${prefix}events`).dropIndexes();
 db.getCollection(`${prefix}events`).createIndex( { "type" : 1 } );
 db.getCollection(`${prefix}events`).createIndex( { "updatedAt" : 1 } );
-db.getCollection(`${prefix}events`).createIndex( { "properties.api_id" : 1 } );
-db.getCollection(`${prefix}events`).createIndex( { "properties.api_id":1, "type":1} );
+db.getCollection(`${prefix}events`).createIndex( { "properties.api_id":1, "type":1, "updatedAt":-1} );
+db.getCollection(`${prefix}events`).createIndex( { "properties.api_id":1, "updatedAt":-1} );
+db.getCollection(`${prefix}events`).createIndex( { "payloadDigest":1 }, { sparse: true } );
 db.getCollection(`${prefix}events`).reIndex();
 
 // "plans" collection
@@ -0,0 +1,37 @@
+// Migrate the rate-limit counters to the digest key encoding (ratelimit.mongodb.keyEncoding: digest).
+// Run it once the gateways have been restarted with the digest encoding: the counters still stored under their plain key
+// are merged into the document identified by the MD5 digest of the key, then removed. Running it again is harmless.
+
+// Override this variable if you use prefixed collections
+const prefix = "";
+
+db.getCollectionNames()
+    .filter(name => name === `${prefix}ratelimit` || name.startsWith(`${prefix}ratelimit_`))
+    .forEach(name => {
+        const collection = db.getCollection(name);
+        const partitioned = name !== `${prefix}ratelimit`;
+        const now = new Date();
+        let migrated = 0;
+
+        print(`${name}: total index size before migration ${collection.stats().totalIndexSize} bytes`);
+
+        collection.find({ _id: { $type: "string" } }).forEach(counter => {
+            // Expired windows are simply dropped
+            if (counter.reset_time > now) {
+                const insert = { limit: counter.limit, subscription: counter.subscription, key: counter._id };
+                if (partitioned) {
+                    insert.carried = true;
+                }
+
+                collection.updateOne(
+                    { _id: HexData(0, hex_md5(counter._id)) },
+                    { $inc: { counter: counter.counter }, $max: { reset_time: counter.reset_time }, $setOnInsert: insert },
+                    { upsert: true });
+                migrated++;
+            }
+            collection.deleteOne({ _id: counter._id });
+        });
+
+        // Freed pages are reused by WiredTiger, run the "compact" command to give them back to the OS
+        print(`${name}: ${migrated} counters migrated, total index size after migration ${collection.stats().totalIndexSize} bytes`);
+    });
@@ -41,7 +41,7 @@ public class MongoTestRepositoryConfiguration extends AbstractRepositoryConfigur
 
     @Bean(destroyMethod = "stop")
     public MongoDBContainer mongoDBContainer() {
-        MongoDBContainer mongoDb = new MongoDBContainer(DockerImageName.parse("mongo:4.0.10"));
+        MongoDBContainer mongoDb = new MongoDBContainer(DockerImageName.parse("mongo:4.4"));
         mongoDb.start();
         return mongoDb;
     }
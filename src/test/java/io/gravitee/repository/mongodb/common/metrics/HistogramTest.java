@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class HistogramTest {
+
+    @Test
+    public void shouldCountSmallValuesExactly() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals(value, Histogram.index(value));
+            assertEquals(value, Histogram.highestEquivalentValue(Histogram.index(value)));
+        }
+    }
+
+    @Test
+    public void shouldFollowSmallValuesWithContiguousBuckets() {
+        assertEquals(64, Histogram.index(64));
+        assertEquals(64, Histogram.index(65));
+        assertEquals(65, Histogram.index(66));
+        assertEquals(95, Histogram.index(127));
+        assertEquals(96, Histogram.index(128));
+        assertEquals(65, Histogram.highestEquivalentValue(64));
+        assertEquals(127, Histogram.highestEquivalentValue(95));
+    }
+
+    @Test
+    public void shouldBoundRelativeError() {
+        int previous = -1;
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 / 2 + 1) {
+            final int index = Histogram.index(value);
+            final long highest = Histogram.highestEquivalentValue(index);
+
+            assertTrue("index of " + value, index >= previous);
+            assertTrue("highest of " + value, highest >= value);
+            assertTrue("error of " + value, (highest - value) * 32d <= value);
+            assertEquals(index, Histogram.index(highest));
+            previous = index;
+        }
+    }
+
+    @Test
+    public void shouldRoundTripEveryBucket() {
+        for (int index = 0; index < Histogram.index(Long.MAX_VALUE / 2); index++) {
+            assertEquals(index, Histogram.index(Histogram.highestEquivalentValue(index)));
+            assertEquals(index + 1, Histogram.index(Histogram.highestEquivalentValue(index) + 1));
+        }
+    }
+
+    @Test
+    public void shouldComputePercentiles() {
+        final Histogram histogram = new Histogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(5_000, histogram.percentile(50), 5_000 / 32d);
+        assertEquals(9_000, histogram.percentile(90), 9_000 / 32d);
+        assertEquals(9_900, histogram.percentile(99), 9_900 / 32d);
+        assertEquals(10_000, histogram.percentile(100), 10_000 / 32d);
+        assertEquals(1, histogram.percentile(0));
+    }
+
+    @Test
+    public void shouldReportZeroWhenEmptyOrReset() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(50));
+
+        histogram.record(1_000);
+        histogram.record(-1);
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(1_000, histogram.percentile(100), 1_000 / 32d);
+
+        histogram.reset();
+        assertEquals(0, histogram.percentile(100));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class JmxRepositoryMetricsTest {
+
+    @Test
+    public void shouldReportPercentilesOfLastCompleteInterval() throws InterruptedException {
+        final JmxRepositoryMetrics metrics = new JmxRepositoryMetrics("test", 100);
+        for (int i = 0; i < 100; i++) {
+            metrics.record("timer", 1, TimeUnit.SECONDS);
+        }
+
+        // The first interval is not complete yet
+        Map<String, Long> timers = metrics.getTimers();
+        assertEquals(100, (long) timers.get("timer.count"));
+        assertEquals(1_000_000, (long) timers.get("timer.mean"));
+        assertEquals(0, (long) timers.get("timer.p50"));
+        assertEquals(0, (long) timers.get("timer.max"));
+
+        Thread.sleep(150);
+        timers = metrics.getTimers();
+        assertEquals(1_000_000, timers.get("timer.p50"), 1_000_000 / 32d);
+        assertEquals(1_000_000, (long) timers.get("timer.max"));
+
+        for (int i = 0; i < 100; i++) {
+            metrics.record("timer", 10, TimeUnit.MILLISECONDS);
+        }
+
+        // Still reporting the previous interval
+        timers = metrics.getTimers();
+        assertEquals(1_000_000, timers.get("timer.p999"), 1_000_000 / 32d);
+
+        Thread.sleep(150);
+        timers = metrics.getTimers();
+        assertEquals(200, (long) timers.get("timer.count"));
+        assertEquals(505_000, (long) timers.get("timer.mean"));
+        assertEquals(10_000, timers.get("timer.p999"), 10_000 / 32d);
+        assertEquals(10_000, (long) timers.get("timer.max"));
+
+        // Nothing recorded during the last interval
+        Thread.sleep(150);
+        timers = metrics.getTimers();
+        assertEquals(200, (long) timers.get("timer.count"));
+        assertEquals(0, (long) timers.get("timer.p50"));
+        assertEquals(0, (long) timers.get("timer.max"));
+    }
+
+    @Test
+    public void shouldReportCountersAndGauges() {
+        final JmxRepositoryMetrics metrics = new JmxRepositoryMetrics("test");
+        metrics.increment("counter");
+        metrics.increment("counter", 2);
+        metrics.gauge("gauge", () -> 42);
+
+        assertEquals(3, (long) metrics.getCounters().get("counter"));
+        assertEquals(42, (long) metrics.getGauges().get("gauge"));
+    }
+}
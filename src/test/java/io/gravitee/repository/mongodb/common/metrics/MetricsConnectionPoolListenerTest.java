@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.common.metrics;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MetricsConnectionPoolListenerTest {
+
+    private final ClusterId clusterId = new ClusterId();
+
+    private final ServerId server1 = new ServerId(clusterId, new ServerAddress("host1", 27017));
+
+    private final ServerId server2 = new ServerId(clusterId, new ServerAddress("host2", 27017));
+
+    // A zero interval reports what was recorded since the previous read
+    private final JmxRepositoryMetrics metrics = new JmxRepositoryMetrics("test", 0);
+
+    private final MetricsConnectionPoolListener listener = new MetricsConnectionPoolListener(metrics, "test.");
+
+    @Test
+    public void shouldMatchWaitersInOrderPerServer() throws InterruptedException {
+        listener.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(server1));
+        Thread.sleep(50);
+        listener.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(server1));
+        listener.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(server2));
+        assertEquals(3, waiting());
+
+        // The oldest waiter of the server is served first
+        listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server1)));
+        Map<String, Long> timers = metrics.getTimers();
+        assertEquals(1, (long) timers.get("test.pool.wait.count"));
+        assertTrue(timers.get("test.pool.wait.max") >= 50_000);
+        assertEquals(2, waiting());
+
+        listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server1)));
+        timers = metrics.getTimers();
+        assertEquals(2, (long) timers.get("test.pool.wait.count"));
+        assertTrue(timers.get("test.pool.wait.max") < 50_000);
+        assertEquals(1, waiting());
+    }
+
+    @Test
+    public void shouldCountFailuresAndRemoveWaiter() {
+        listener.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(server1));
+        listener.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(server2));
+
+        listener.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(server2,
+                ConnectionCheckOutFailedEvent.Reason.TIMEOUT));
+
+        assertEquals(1, (long) metrics.getCounters().get("test.pool.errors"));
+        assertEquals(1, waiting());
+        assertFalse(metrics.getTimers().containsKey("test.pool.wait.count"));
+
+        // Waiters of the other server are left alone
+        listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server1)));
+        assertEquals(0, waiting());
+        assertEquals(1, (long) metrics.getTimers().get("test.pool.wait.count"));
+    }
+
+    @Test
+    public void shouldIgnoreUnmatchedCheckOuts() {
+        // e.g. the listener was registered while a check-out was in progress
+        listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server1)));
+        listener.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(server2,
+                ConnectionCheckOutFailedEvent.Reason.POOL_CLOSED));
+
+        assertEquals(0, waiting());
+        assertFalse(metrics.getTimers().containsKey("test.pool.wait.count"));
+        assertEquals(1, (long) metrics.getCounters().get("test.pool.errors"));
+    }
+
+    private long waiting() {
+        return metrics.getGauges().get("test.pool.waiting");
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.management.model.EventType;
+import io.gravitee.repository.mongodb.MongoTestRepositoryConfiguration;
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import io.gravitee.repository.mongodb.management.internal.model.EventPayloadMongo;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Event tests running against the disposable replica set of {@link MongoTestRepositoryConfiguration}, starting from
+ * empty event collections.
+ *
+ * @author GraviteeSource Team
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = MongoTestRepositoryConfiguration.class)
+// Leaves out the production configuration, picked up by the component scan
+@ActiveProfiles("test")
+public abstract class AbstractMongoEventTest {
+
+    @Autowired
+    protected MongoTemplate mongoTemplate;
+
+    @Autowired
+    protected MongoEventRepository eventRepository;
+
+    @Before
+    public void dropEvents() {
+        mongoTemplate.dropCollection(EventMongo.class);
+        mongoTemplate.dropCollection(EventPayloadMongo.class);
+        mongoTemplate.dropCollection(MongoEventFeed.FEEDS_COLLECTION);
+    }
+
+    protected static Event event(String id, EventType type, String api, String payload, long updatedAt) {
+        final Event event = new Event();
+        event.setId(id);
+        event.setType(type);
+        event.setPayload(payload);
+        final Map<String, String> properties = new HashMap<>();
+        if (api != null) {
+            properties.put("api_id", api);
+        }
+        event.setProperties(properties);
+        event.setCreatedAt(new Date(updatedAt));
+        event.setUpdatedAt(new Date(updatedAt));
+        return event;
+    }
+
+    /**
+     * Writes an event as stored by the payload store, whatever its setting.
+     */
+    protected void insertEvent(String id, EventType type, String api, String payloadDigest, long updatedAt) {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventMongo.class)).insertOne(new Document("_id", id)
+                .append("type", type.name())
+                .append("payloadDigest", payloadDigest)
+                .append("properties", Collections.singletonMap("api_id", api))
+                .append("createdAt", new Date(updatedAt))
+                .append("updatedAt", new Date(updatedAt)));
+    }
+
+    protected void insertPayload(String digest, String payload, long lastReferencedAt) {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventPayloadMongo.class)).insertOne(new Document("_id", digest)
+                .append("payload", payload)
+                .append("createdAt", new Date(lastReferencedAt))
+                .append("lastReferencedAt", new Date(lastReferencedAt)));
+    }
+
+    protected Document rawEvent(String id) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventMongo.class))
+                .find(new Document("_id", id)).first();
+    }
+
+    protected long payloadCount() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventPayloadMongo.class)).countDocuments();
+    }
+
+    protected boolean payloadExists(String digest) {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventPayloadMongo.class))
+                .countDocuments(new Document("_id", digest)) > 0;
+    }
+
+    /**
+     * Makes the stored payloads old enough to be released.
+     */
+    protected void agePayloads() {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventPayloadMongo.class)).updateMany(new Document(),
+                new Document("$set", new Document("lastReferencedAt", new Date(0))));
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class EventCompactionConditionTest {
+
+    @Test
+    public void shouldNotCreateCompactorByDefault() {
+        assertFalse(createsCompactor(null));
+    }
+
+    @Test
+    public void shouldCreateCompactorWhenEnabled() {
+        assertTrue(createsCompactor("true"));
+    }
+
+    @Test
+    public void shouldNotCreateCompactorWhenDisabled() {
+        assertFalse(createsCompactor("false"));
+    }
+
+    private static boolean createsCompactor(String enabled) {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
+            if (enabled != null) {
+                context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test",
+                        Collections.singletonMap(EventCompactionCondition.PROPERTY, enabled)));
+            }
+            context.register(CompactionConfiguration.class);
+            context.refresh();
+            return context.containsBean("compactor");
+        }
+    }
+
+    /**
+     * Not annotated, so that the component scan of the repository tests leaves it out.
+     */
+    static class CompactionConfiguration {
+
+        @Bean
+        @Conditional(EventCompactionCondition.class)
+        public String compactor() {
+            return "compactor";
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.gravitee.repository.management.api.search.EventCriteria;
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.management.model.EventType;
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import io.reactivex.subscribers.TestSubscriber;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+@TestPropertySource(properties = "management.mongodb.events.feed.pollInterval=200")
+public class MongoEventFeedTest extends AbstractMongoEventTest {
+
+    private static final EventCriteria ALL = new EventCriteria.Builder().build();
+
+    @Autowired
+    private MongoEventFeed feed;
+
+    private final List<TestSubscriber<Event>> subscribers = new ArrayList<>();
+
+    @After
+    public void cancelFeeds() {
+        subscribers.forEach(TestSubscriber::dispose);
+    }
+
+    @Test
+    public void shouldStreamNewEvents() throws Exception {
+        final TestSubscriber<Event> subscriber = subscribe("node1", Long.MAX_VALUE);
+        awaitState("node1", state -> true);
+
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("event2", EventType.START_API, "api1", "definition2", 2000));
+
+        awaitCount(subscriber, 2);
+        assertEquals(Arrays.asList("event1", "event2"), ids(subscriber));
+        assertEquals("definition1", subscriber.values().get(0).getPayload());
+        subscriber.assertNoErrors().assertNotComplete();
+    }
+
+    @Test
+    public void shouldResumeWhereConsumerStopped() throws Exception {
+        final TestSubscriber<Event> first = subscribe("node1", Long.MAX_VALUE);
+        awaitState("node1", state -> true);
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        awaitCount(first, 1);
+        awaitState("node1", state -> state.getList("lastIds", String.class).contains("event1"));
+
+        first.dispose();
+        eventRepository.create(event("event2", EventType.PUBLISH_API, "api2", "definition2", 2000));
+        eventRepository.create(event("event3", EventType.PUBLISH_API, "api3", "definition3", 3000));
+
+        final TestSubscriber<Event> second = subscribe("node1", Long.MAX_VALUE);
+        awaitCount(second, 2);
+        assertEquals(Arrays.asList("event2", "event3"), ids(second));
+
+        // Another consumer starts from now
+        final TestSubscriber<Event> other = subscribe("node2", Long.MAX_VALUE);
+        awaitState("node2", state -> true);
+        eventRepository.create(event("event4", EventType.PUBLISH_API, "api4", "definition4", 4000));
+        awaitCount(other, 1);
+        assertEquals(Collections.singletonList("event4"), ids(other));
+    }
+
+    @Test
+    public void shouldCatchUpFromBeginningWhenTokenIsLostBeforeAnyEvent() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("event2", EventType.PUBLISH_API, "api2", "definition2", 2000));
+
+        // A well-formed token from before the start of the oplog, as if it had been rolled over, saved without its date
+        mongoTemplate.getCollection(MongoEventFeed.FEEDS_COLLECTION).insertOne(new Document("_id", "node1")
+                .append("resumeToken", expiredToken())
+                .append("lastIds", Collections.emptyList()));
+
+        final TestSubscriber<Event> subscriber = subscribe("node1", Long.MAX_VALUE);
+        awaitCount(subscriber, 2);
+        assertEquals(Arrays.asList("event1", "event2"), ids(subscriber));
+
+        // Then back to the change stream
+        eventRepository.create(event("event3", EventType.PUBLISH_API, "api3", "definition3", 3000));
+        awaitCount(subscriber, 3);
+        assertEquals("event3", subscriber.values().get(2).getId());
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void shouldCatchUpFromSavedPositionWhenTokenIsLost() throws Exception {
+        final long savedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5);
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1",
+                savedAt - TimeUnit.MINUTES.toMillis(10)));
+        // Within the margin before the token was saved, it may not have been delivered yet
+        eventRepository.create(event("event2", EventType.PUBLISH_API, "api2", "definition2",
+                savedAt - TimeUnit.SECONDS.toMillis(30)));
+        eventRepository.create(event("event3", EventType.PUBLISH_API, "api3", "definition3",
+                savedAt + TimeUnit.MINUTES.toMillis(1)));
+
+        mongoTemplate.getCollection(MongoEventFeed.FEEDS_COLLECTION).insertOne(new Document("_id", "node1")
+                .append("resumeToken", expiredToken())
+                .append("lastIds", Collections.emptyList())
+                .append("updatedAt", new Date(savedAt)));
+
+        final TestSubscriber<Event> subscriber = subscribe("node1", Long.MAX_VALUE);
+        awaitCount(subscriber, 2);
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("event2", "event3"), ids(subscriber));
+
+        // Then back to the change stream
+        eventRepository.create(event("event4", EventType.PUBLISH_API, "api4", "definition4", System.currentTimeMillis()));
+        awaitCount(subscriber, 3);
+        assertEquals("event4", subscriber.values().get(2).getId());
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void shouldOnlyReadRequestedEvents() throws Exception {
+        final TestSubscriber<Event> subscriber = subscribe("node1", 0);
+        awaitState("node1", state -> true);
+        for (int i = 1; i <= 3; i++) {
+            eventRepository.create(event("event" + i, EventType.PUBLISH_API, "api" + i, "definition" + i, i * 1000));
+        }
+
+        Thread.sleep(1000);
+        subscriber.assertNoValues().assertNoErrors();
+
+        subscriber.request(1);
+        awaitCount(subscriber, 1);
+        Thread.sleep(500);
+        subscriber.assertValueCount(1);
+
+        subscriber.request(2);
+        awaitCount(subscriber, 3);
+        assertEquals(Arrays.asList("event1", "event2", "event3"), ids(subscriber));
+        subscriber.assertNoErrors();
+    }
+
+    @Test
+    public void shouldStopThreadWhenCancelled() throws Exception {
+        final TestSubscriber<Event> subscriber = subscribe("node-stop", Long.MAX_VALUE);
+        awaitState("node-stop", state -> true);
+        assertNotNull(feedThread("node-stop"));
+
+        subscriber.dispose();
+        awaitStopped("node-stop");
+
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        Thread.sleep(500);
+        subscriber.assertNoValues().assertNoErrors().assertNotComplete();
+    }
+
+    @Test
+    public void shouldFailWhenInterrupted() throws Exception {
+        final TestSubscriber<Event> subscriber = subscribe("node-interrupted", Long.MAX_VALUE);
+        awaitState("node-interrupted", state -> true);
+
+        feedThread("node-interrupted").interrupt();
+
+        assertTrue(subscriber.await(10, TimeUnit.SECONDS));
+        subscriber.assertError(InterruptedException.class);
+        awaitStopped("node-interrupted");
+    }
+
+    private TestSubscriber<Event> subscribe(String consumerId, long initialRequest) {
+        final TestSubscriber<Event> subscriber = feed.events(consumerId, ALL).test(initialRequest);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    private void awaitState(String consumerId, Predicate<Document> predicate) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Document state = mongoTemplate.getCollection(MongoEventFeed.FEEDS_COLLECTION)
+                    .find(new Document("_id", consumerId)).first();
+            if (state != null && predicate.test(state)) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail("State of event feed [" + consumerId + "] not saved");
+    }
+
+    private static void awaitCount(TestSubscriber<Event> subscriber, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && subscriber.valueCount() < count; i++) {
+            Thread.sleep(100);
+        }
+        subscriber.assertValueCount(count);
+    }
+
+    private static void awaitStopped(String consumerId) throws InterruptedException {
+        for (int i = 0; i < 100 && feedThread(consumerId) != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(feedThread(consumerId));
+    }
+
+    private static Thread feedThread(String consumerId) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("gio-event-feed-" + consumerId))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static List<String> ids(TestSubscriber<Event> subscriber) {
+        return subscriber.values().stream().map(Event::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Resume tokens start with their cluster time (a 0x82 type byte, then the timestamp), which is moved back to the
+     * very first second.
+     */
+    private BsonDocument expiredToken() {
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mongoTemplate
+                .getCollection(mongoTemplate.getCollectionName(EventMongo.class)).watch().cursor()) {
+            cursor.tryNext();
+            String data = cursor.getResumeToken().getString("_data").getValue();
+            return new BsonDocument("_data", new BsonString(data.substring(0, 2) + "0000000100000001" + data.substring(18)));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import io.gravitee.repository.management.api.search.EventCriteria;
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.management.model.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoEventRepositoryLatestByApiTest extends AbstractMongoEventTest {
+
+    @Before
+    public void createEvents() throws Exception {
+        eventRepository.create(event("api1-publish", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("api1-stop", EventType.STOP_API, "api1", "definition1", 2000));
+        eventRepository.create(event("api1-start", EventType.START_API, "api1", "definition1", 3000));
+        eventRepository.create(event("api2-publish", EventType.PUBLISH_API, "api2", "definition2", 1500));
+        eventRepository.create(event("api3-unpublish", EventType.UNPUBLISH_API, "api3", "definition3", 500));
+        // Not bound to any API
+        eventRepository.create(event("gateway-started", EventType.GATEWAY_STARTED, null, "node", 4000));
+    }
+
+    @Test
+    public void shouldReturnLatestEventOfEachApi() {
+        final List<Event> events = eventRepository.findLatestByApi(new EventCriteria.Builder().build());
+
+        assertEquals(Arrays.asList("api1-start", "api2-publish", "api3-unpublish"), ids(events));
+        assertEquals(EventType.START_API, events.get(0).getType());
+        assertEquals("definition1", events.get(0).getPayload());
+        assertEquals("api1", events.get(0).getProperties().get("api_id"));
+        assertEquals(3000, events.get(0).getUpdatedAt().getTime());
+    }
+
+    @Test
+    public void shouldReturnLatestEventOfEachApiAmongTypes() {
+        final List<Event> events = eventRepository.findLatestByApi(new EventCriteria.Builder()
+                .types(EventType.PUBLISH_API, EventType.STOP_API)
+                .build());
+
+        assertEquals(Arrays.asList("api1-stop", "api2-publish"), ids(events));
+    }
+
+    @Test
+    public void shouldReturnLatestEventOfFilteredApi() {
+        final List<Event> events = eventRepository.findLatestByApi(new EventCriteria.Builder()
+                .property("api_id", "api2")
+                .build());
+
+        assertEquals(Arrays.asList("api2-publish"), ids(events));
+    }
+
+    @Test
+    public void shouldReturnNothingWithoutMatchingEvent() {
+        assertTrue(eventRepository.findLatestByApi(new EventCriteria.Builder()
+                .types(EventType.GATEWAY_STOPPED)
+                .build()).isEmpty());
+    }
+
+    private static List<String> ids(List<Event> events) {
+        return events.stream().map(Event::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management;
+
+import io.gravitee.common.data.domain.Page;
+import io.gravitee.repository.management.api.search.EventCriteria;
+import io.gravitee.repository.management.api.search.builder.PageableBuilder;
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.management.model.EventType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoEventRepositorySearchWithoutPayloadTest extends AbstractMongoEventTest {
+
+    @Before
+    public void createEvents() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("event2", EventType.PUBLISH_API, "api2", "definition2", 2000));
+        eventRepository.create(event("event3", EventType.STOP_API, "api1", "definition1", 3000));
+    }
+
+    @Test
+    public void shouldSearchWithoutPayload() {
+        final List<Event> events = eventRepository.searchWithoutPayload(new EventCriteria.Builder().build());
+
+        // Same events, in the same order, as the search with payloads
+        assertEquals(ids(eventRepository.search(new EventCriteria.Builder().build())), ids(events));
+        assertEquals(Arrays.asList("event3", "event2", "event1"), ids(events));
+        events.forEach(event -> assertNull(event.getPayload()));
+
+        final Event event = events.get(0);
+        assertEquals(EventType.STOP_API, event.getType());
+        assertEquals("api1", event.getProperties().get("api_id"));
+        assertEquals(3000, event.getUpdatedAt().getTime());
+    }
+
+    @Test
+    public void shouldSearchPageWithoutPayload() {
+        final Page<Event> page = eventRepository.searchWithoutPayload(
+                new EventCriteria.Builder().types(EventType.PUBLISH_API).build(),
+                new PageableBuilder().pageNumber(0).pageSize(1).build());
+
+        assertEquals(2, page.getTotalElements());
+        assertEquals(1, page.getPageElements());
+        assertEquals("event2", page.getContent().get(0).getId());
+        assertNull(page.getContent().get(0).getPayload());
+    }
+
+    @Test
+    public void shouldFindPayloadById() {
+        assertEquals("definition2", eventRepository.findPayloadById("event2").orElse(null));
+        assertFalse(eventRepository.findPayloadById("unknown").isPresent());
+    }
+
+    @Test
+    public void shouldFindPayloadsByIds() {
+        final Map<String, String> payloads = eventRepository.findPayloadsByIds(Arrays.asList("event1", "event3", "unknown"));
+
+        assertEquals(2, payloads.size());
+        assertEquals("definition1", payloads.get("event1"));
+        assertEquals("definition1", payloads.get("event3"));
+        assertTrue(eventRepository.findPayloadsByIds(Collections.emptyList()).isEmpty());
+    }
+
+    private static List<String> ids(List<Event> events) {
+        return events.stream().map(Event::getId).collect(Collectors.toList());
+    }
+}
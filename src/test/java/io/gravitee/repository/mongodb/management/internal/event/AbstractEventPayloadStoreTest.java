@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management.internal.event;
+
+import io.gravitee.repository.management.api.search.EventCriteria;
+import io.gravitee.repository.management.model.Event;
+import io.gravitee.repository.management.model.EventType;
+import io.gravitee.repository.mongodb.management.AbstractMongoEventTest;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Event repository contract, which must hold whether the payload store is enabled or not.
+ *
+ * @author GraviteeSource Team
+ */
+public abstract class AbstractEventPayloadStoreTest extends AbstractMongoEventTest {
+
+    protected abstract boolean enabled();
+
+    @Test
+    public void shouldCreateAndFindById() throws Exception {
+        final Event created = eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+
+        assertEquals("definition1", created.getPayload());
+        final Event found = eventRepository.findById("event1").orElse(null);
+        assertNotNull(found);
+        assertEquals("definition1", found.getPayload());
+        assertEquals(EventType.PUBLISH_API, found.getType());
+        assertEquals("api1", found.getProperties().get("api_id"));
+
+        assertStored("event1", "definition1");
+    }
+
+    @Test
+    public void shouldStoreIdenticalPayloadsOnce() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("event2", EventType.PUBLISH_API, "api1", "definition1", 2000));
+        eventRepository.create(event("event3", EventType.PUBLISH_API, "api2", "definition2", 3000));
+
+        assertEquals(enabled() ? 2 : 0, payloadCount());
+        assertEquals("definition1", eventRepository.findById("event2").get().getPayload());
+    }
+
+    @Test
+    public void shouldUpdatePayload() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        agePayloads();
+
+        final Event updated = eventRepository.update(event("event1", EventType.START_API, "api1", "definition2", 2000));
+
+        assertEquals("definition2", updated.getPayload());
+        assertEquals(EventType.START_API, updated.getType());
+        assertEquals("definition2", eventRepository.findById("event1").get().getPayload());
+        assertStored("event1", "definition2");
+        // The previous payload is no longer referenced
+        assertEquals(enabled() ? 1 : 0, payloadCount());
+    }
+
+    @Test
+    public void shouldSearchWithPayloads() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        eventRepository.create(event("event2", EventType.STOP_API, "api2", "definition2", 2000));
+
+        final List<Event> events = eventRepository.search(new EventCriteria.Builder().build());
+
+        assertEquals(Arrays.asList("event2", "event1"), events.stream().map(Event::getId).collect(Collectors.toList()));
+        assertEquals("definition2", events.get(0).getPayload());
+        assertEquals("definition1", events.get(1).getPayload());
+
+        final List<Event> stopped = eventRepository.search(new EventCriteria.Builder().types(EventType.STOP_API).build());
+        assertEquals(1, stopped.size());
+        assertEquals("definition2", stopped.get(0).getPayload());
+    }
+
+    @Test
+    public void shouldReadInlineAndStoredPayloads() throws Exception {
+        // Written by a previous version, or with the store disabled
+        eventRepository.create(event("inline", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        mongoTemplate.getCollection("events").updateOne(new Document("_id", "inline"), new Document("$set",
+                new Document("payload", "definition1")).append("$unset", new Document("payloadDigest", "")));
+        // Written with the store enabled
+        insertEvent("stored", EventType.PUBLISH_API, "api2", EventPayloadStore.digest("definition2"), 2000);
+        insertPayload(EventPayloadStore.digest("definition2"), "definition2", System.currentTimeMillis());
+
+        assertEquals("definition1", eventRepository.findById("inline").get().getPayload());
+        assertEquals("definition2", eventRepository.findById("stored").get().getPayload());
+
+        final List<Event> events = eventRepository.search(new EventCriteria.Builder().build());
+        assertEquals("definition2", events.get(0).getPayload());
+        assertEquals("definition1", events.get(1).getPayload());
+
+        final Map<String, String> payloads = eventRepository.findPayloadsByIds(Arrays.asList("inline", "stored"));
+        assertEquals("definition1", payloads.get("inline"));
+        assertEquals("definition2", payloads.get("stored"));
+    }
+
+    @Test
+    public void shouldDeletePayloadWithLastReferencingEvent() throws Exception {
+        final String digest = EventPayloadStore.digest("definition1");
+        insertEvent("event1", EventType.PUBLISH_API, "api1", digest, 1000);
+        insertEvent("event2", EventType.START_API, "api1", digest, 2000);
+        insertPayload(digest, "definition1", 0);
+
+        eventRepository.delete("event1");
+        assertFalse(eventRepository.findById("event1").isPresent());
+        assertTrue(payloadExists(digest));
+        assertEquals("definition1", eventRepository.findById("event2").get().getPayload());
+
+        eventRepository.delete("event2");
+        assertFalse(eventRepository.findById("event2").isPresent());
+        assertFalse(payloadExists(digest));
+    }
+
+    @Test
+    public void shouldKeepRecentlyStoredPayload() throws Exception {
+        final String digest = EventPayloadStore.digest("definition1");
+        insertEvent("event1", EventType.PUBLISH_API, "api1", digest, 1000);
+        insertPayload(digest, "definition1", System.currentTimeMillis());
+
+        eventRepository.delete("event1");
+
+        // It may be about to be referenced by an event being created
+        assertTrue(payloadExists(digest));
+    }
+
+    @Test
+    public void shouldDeleteEvent() throws Exception {
+        eventRepository.create(event("event1", EventType.PUBLISH_API, "api1", "definition1", 1000));
+        agePayloads();
+
+        eventRepository.delete("event1");
+        eventRepository.delete("unknown");
+
+        assertFalse(eventRepository.findById("event1").isPresent());
+        assertEquals(0, payloadCount());
+    }
+
+    private void assertStored(String id, String payload) {
+        final Document raw = rawEvent(id);
+        if (enabled()) {
+            assertNull(raw.get("payload"));
+            assertEquals(EventPayloadStore.digest(payload), raw.getString("payloadDigest"));
+            assertTrue(payloadExists(EventPayloadStore.digest(payload)));
+        } else {
+            assertEquals(payload, raw.getString("payload"));
+            assertNull(raw.get("payloadDigest"));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.management.internal.event;
+
+import io.gravitee.repository.management.model.EventType;
+import io.gravitee.repository.mongodb.common.metrics.JmxRepositoryMetrics;
+import io.gravitee.repository.mongodb.management.AbstractMongoEventTest;
+import io.gravitee.repository.mongodb.management.internal.model.EventMongo;
+import org.bson.Document;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class EventCompactorTest extends AbstractMongoEventTest {
+
+    @Autowired
+    private EventPayloadStore payloadStore;
+
+    private final JmxRepositoryMetrics metrics = new JmxRepositoryMetrics("test");
+
+    @Test
+    public void shouldKeepNewestEventsOfEachApiAndType() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            insertEvent("api1-publish-" + i, EventType.PUBLISH_API, "api1", null, i * 1000);
+        }
+        for (int i = 1; i <= 3; i++) {
+            insertEvent("api1-start-" + i, EventType.START_API, "api1", null, i * 1000);
+        }
+        for (int i = 1; i <= 2; i++) {
+            insertEvent("api2-publish-" + i, EventType.PUBLISH_API, "api2", null, i * 1000);
+        }
+        // Not bound to any API
+        for (int i = 1; i <= 3; i++) {
+            eventRepository.create(event("gateway-" + i, EventType.GATEWAY_STARTED, null, "node", i * 1000));
+        }
+
+        compactor(2, 500, false).compact();
+
+        assertEquals(Arrays.asList(
+                "api1-publish-4", "api1-publish-5",
+                "api1-start-2", "api1-start-3",
+                "api2-publish-1", "api2-publish-2",
+                "gateway-1", "gateway-2", "gateway-3"), ids());
+        assertEquals(4, counter(EventCompactor.METRIC_DELETED));
+        assertEquals(2, counter(EventCompactor.METRIC_GROUPS));
+        assertEquals(1, counter(EventCompactor.METRIC_RUNS));
+        assertEquals(0, counter(EventCompactor.METRIC_ERRORS));
+    }
+
+    @Test
+    public void shouldDeleteByBatches() throws Exception {
+        for (int i = 1; i <= 7; i++) {
+            insertEvent("event-" + i, EventType.PUBLISH_API, "api1", null, i * 1000);
+        }
+
+        compactor(1, 2, false).compact();
+
+        assertEquals(Collections.singletonList("event-7"), ids());
+        assertEquals(6, counter(EventCompactor.METRIC_DELETED));
+        assertEquals(3, (long) metrics.getTimers().get(EventCompactor.METRIC_BATCH + ".count"));
+
+        // Nothing left to compact
+        compactor(1, 2, false).compact();
+        assertEquals(6, counter(EventCompactor.METRIC_DELETED));
+    }
+
+    @Test
+    public void shouldDeletePayloadsOfDeletedEvents() throws Exception {
+        final String old = EventPayloadStore.digest("old");
+        final String shared = EventPayloadStore.digest("shared");
+        final String current = EventPayloadStore.digest("current");
+        final String orphan = EventPayloadStore.digest("orphan");
+        insertEvent("event-1", EventType.PUBLISH_API, "api1", old, 1000);
+        insertEvent("event-2", EventType.PUBLISH_API, "api1", old, 2000);
+        insertEvent("event-3", EventType.PUBLISH_API, "api1", shared, 3000);
+        insertEvent("event-4", EventType.PUBLISH_API, "api1", shared, 4000);
+        insertEvent("event-5", EventType.PUBLISH_API, "api1", current, 5000);
+        for (String digest : Arrays.asList(old, shared, current, orphan)) {
+            insertPayload(digest, "payload", 0);
+        }
+
+        compactor(2, 500, false).compact();
+
+        assertEquals(Arrays.asList("event-4", "event-5"), ids());
+        assertFalse(payloadExists(old));
+        assertTrue(payloadExists(shared));
+        assertTrue(payloadExists(current));
+        // Only scanned for with orphanPayloads
+        assertTrue(payloadExists(orphan));
+        assertEquals(1, counter(EventCompactor.METRIC_PAYLOADS_DELETED));
+    }
+
+    @Test
+    public void shouldDeleteOrphanPayloads() throws Exception {
+        final String referenced = EventPayloadStore.digest("referenced");
+        final String orphan = EventPayloadStore.digest("orphan");
+        final String recent = EventPayloadStore.digest("recent");
+        insertEvent("event-1", EventType.PUBLISH_API, "api1", referenced, 1000);
+        insertPayload(referenced, "referenced", 0);
+        insertPayload(orphan, "orphan", 0);
+        // May be about to be referenced by an event being created
+        insertPayload(recent, "recent", System.currentTimeMillis());
+
+        compactor(2, 500, true).compact();
+
+        assertTrue(payloadExists(referenced));
+        assertFalse(payloadExists(orphan));
+        assertTrue(payloadExists(recent));
+        assertEquals(1, counter(EventCompactor.METRIC_PAYLOADS_DELETED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldKeepAtLeastOneEvent() {
+        compactor(0, 500, false);
+    }
+
+    private EventCompactor compactor(int keep, int batchSize, boolean orphanPayloads) {
+        return new EventCompactor(mongoTemplate, payloadStore, keep, batchSize, 0, orphanPayloads, metrics);
+    }
+
+    private long counter(String name) {
+        return metrics.getCounters().getOrDefault(name, 0L);
+    }
+
+    private List<String> ids() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(EventMongo.class))
+                .find()
+                .sort(new Document("_id", 1))
+                .map(event -> event.getString("_id"))
+                .into(new ArrayList<>());
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.utility.DockerImageName;
+import reactor.core.publisher.Mono;
+
+/**
+ * Rate-limit tests running against a disposable MongoDB, which must support pipeline updates (4.2+).
+ *
+ * @author GraviteeSource Team
+ */
+public abstract class AbstractMongoRateLimitTest {
+
+    @ClassRule
+    public static final MongoDBContainer MONGO = new MongoDBContainer(DockerImageName.parse("mongo:4.4"));
+
+    private MongoClient mongoClient;
+
+    protected ReactiveMongoOperations mongoOperations;
+
+    @Before
+    public void setUpMongo() {
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        mongoOperations = new ReactiveMongoTemplate(mongoClient, "test");
+        Mono.from(mongoOperations.getMongoDatabase().drop()).block();
+    }
+
+    @After
+    public void tearDownMongo() {
+        mongoClient.close();
+    }
+
+    /**
+     * Another (empty) database of the same server, standing for another backend.
+     */
+    protected ReactiveMongoOperations mongoOperations(String database) {
+        final ReactiveMongoOperations mongoOperations = new ReactiveMongoTemplate(mongoClient, database);
+        Mono.from(mongoOperations.getMongoDatabase().drop()).block();
+        return mongoOperations;
+    }
+
+    protected RateLimitRouter router() {
+        return RateLimitRouter.single(mongoOperations, null);
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.api.RateLimitRepository;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.SingleSubject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class AdmissionControlRateLimitRepositoryTest {
+
+    private static final long LIMIT = 10;
+
+    private GatedRateLimitRepository delegate;
+
+    private CountingMetrics metrics;
+
+    @Before
+    public void setUp() {
+        delegate = new GatedRateLimitRepository();
+        metrics = new CountingMetrics();
+    }
+
+    @Test
+    public void shouldBoundOperationsInFlight() {
+        final AdmissionControlRateLimitRepository repository = admission(2, 10, 10_000, false);
+
+        final TestObserver<RateLimit> first = increment(repository, "key1");
+        final TestObserver<RateLimit> second = increment(repository, "key2");
+        final TestObserver<RateLimit> third = increment(repository, "key3");
+
+        assertEquals(Arrays.asList("key1", "key2"), delegate.keys);
+        assertEquals(2, metrics.gauge("admission.inflight"));
+        assertEquals(1, metrics.gauge("admission.queued"));
+
+        delegate.open(0);
+        first.assertValue(rateLimit -> rateLimit.getCounter() == 1);
+        assertEquals(Arrays.asList("key1", "key2", "key3"), delegate.keys);
+        assertEquals(2, metrics.gauge("admission.inflight"));
+        assertEquals(0, metrics.gauge("admission.queued"));
+        assertEquals(1, metrics.count("admission.queue.wait.count"));
+
+        delegate.open(1);
+        delegate.open(2);
+        second.assertValueCount(1);
+        third.assertValueCount(1);
+        assertEquals(0, metrics.gauge("admission.inflight"));
+    }
+
+    @Test
+    public void shouldStartQueuedOperationsInOrder() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 10, 10_000, false);
+        final List<TestObserver<RateLimit>> observers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            observers.add(increment(repository, "key" + i));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, delegate.keys.size());
+            delegate.open(i);
+        }
+
+        assertEquals(Arrays.asList("key0", "key1", "key2", "key3"), delegate.keys);
+        observers.forEach(observer -> observer.assertValueCount(1));
+    }
+
+    @Test
+    public void shouldDrainFullQueueOfSynchronousOperations() {
+        final int maxQueued = 10_000;
+        final AdmissionControlRateLimitRepository repository = admission(1, maxQueued, 60_000, false);
+        increment(repository, "key");
+        final List<TestObserver<RateLimit>> observers = new ArrayList<>();
+        for (int i = 0; i < maxQueued; i++) {
+            observers.add(increment(repository, "key" + i));
+        }
+        assertEquals(maxQueued, metrics.gauge("admission.queued"));
+
+        // Each queued operation completes, and releases its permit, while it is being started
+        delegate.synchronous = true;
+        delegate.open(0);
+
+        observers.forEach(observer -> observer.assertValueCount(1));
+        assertEquals(maxQueued + 1, delegate.keys.size());
+        assertEquals(0, metrics.gauge("admission.inflight"));
+        assertEquals(0, metrics.gauge("admission.queued"));
+    }
+
+    @Test
+    public void shouldShedWhenQueueIsFull() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 1, 10_000, false);
+        increment(repository, "key1");
+        increment(repository, "key2");
+
+        final TestObserver<RateLimit> shed = increment(repository, "key3");
+
+        // Shed right away, over the limit
+        shed.assertValue(rateLimit -> rateLimit.getCounter() == LIMIT + 1 && rateLimit.getKey().equals("key3"));
+        assertEquals(1, metrics.count("admission.shed.full"));
+        assertEquals(Collections.singletonList("key1"), delegate.keys);
+        assertEquals(1, metrics.gauge("admission.queued"));
+    }
+
+    @Test
+    public void shouldShedWithinLimitWhenFailingOpen() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 0, 10_000, true);
+        increment(repository, "key1");
+
+        increment(repository, "key2").assertValue(rateLimit -> rateLimit.getCounter() == 0);
+        assertEquals(1, metrics.count("admission.shed.full"));
+    }
+
+    @Test
+    public void shouldShedAfterQueueTimeout() throws InterruptedException {
+        final AdmissionControlRateLimitRepository repository = admission(1, 10, 50, false);
+        increment(repository, "key1");
+
+        final TestObserver<RateLimit> queued = increment(repository, "key2");
+        queued.assertNoValues();
+
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        queued.assertValue(rateLimit -> rateLimit.getCounter() == LIMIT + 1);
+        assertEquals(1, metrics.count("admission.shed.timeout"));
+        assertEquals(0, metrics.gauge("admission.queued"));
+
+        // The expired operation never reaches the delegate
+        delegate.open(0);
+        assertEquals(Collections.singletonList("key1"), delegate.keys);
+        assertEquals(0, metrics.gauge("admission.inflight"));
+    }
+
+    @Test
+    public void shouldDropCancelledOperationsFromQueue() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 10, 10_000, false);
+        increment(repository, "key1");
+        final TestObserver<RateLimit> cancelled = increment(repository, "key2");
+        final TestObserver<RateLimit> next = increment(repository, "key3");
+
+        cancelled.dispose();
+        assertEquals(1, metrics.gauge("admission.queued"));
+
+        delegate.open(0);
+        assertEquals(Arrays.asList("key1", "key3"), delegate.keys);
+        delegate.open(1);
+        next.assertValueCount(1);
+        assertEquals(0, metrics.gauge("admission.inflight"));
+    }
+
+    @Test
+    public void shouldReleasePermitOnError() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 10, 10_000, false);
+        final TestObserver<RateLimit> failed = increment(repository, "key1");
+        increment(repository, "key2");
+
+        delegate.fail(0, new IllegalStateException("MongoDB is down"));
+
+        failed.assertError(IllegalStateException.class);
+        assertEquals(Arrays.asList("key1", "key2"), delegate.keys);
+        assertEquals(1, metrics.gauge("admission.inflight"));
+    }
+
+    @Test
+    public void shouldAdmitBatchAsOneOperation() {
+        final AdmissionControlRateLimitRepository repository = admission(1, 0, 10_000, false);
+
+        final TestObserver<List<RateLimit>> batch = repository.incrementAndGet(Arrays.asList(
+                increment("key1"), increment("key2"))).test();
+        // The increments of an admitted batch are not admitted again
+        assertEquals(Collections.singletonList("key1"), delegate.keys);
+
+        final TestObserver<List<RateLimit>> shed = repository.incrementAndGet(Arrays.asList(
+                increment("key3"), increment("key4"))).test();
+        shed.assertValue(rateLimits -> rateLimits.size() == 2 && rateLimits.stream()
+                .allMatch(rateLimit -> rateLimit.getCounter() == LIMIT + 1));
+
+        delegate.open(0);
+        delegate.open(1);
+        batch.assertValue(rateLimits -> rateLimits.size() == 2);
+        assertEquals(Arrays.asList("key1", "key2"), delegate.keys);
+        assertEquals(0, metrics.gauge("admission.inflight"));
+    }
+
+    private AdmissionControlRateLimitRepository admission(int maxInFlight, int maxQueued, long queueTimeout, boolean failOpen) {
+        return new AdmissionControlRateLimitRepository(delegate, metrics, maxInFlight, maxQueued, queueTimeout, failOpen);
+    }
+
+    private static TestObserver<RateLimit> increment(AdmissionControlRateLimitRepository repository, String key) {
+        return repository.incrementAndGet(key, 1, window(key, LIMIT, 60_000)).test();
+    }
+
+    private static RateLimitIncrement increment(String key) {
+        return new RateLimitIncrement(key, 1, window(key, LIMIT, 60_000));
+    }
+
+    /**
+     * Answers each increment only when told to, or right away once synchronous, and without batch support.
+     */
+    private static final class GatedRateLimitRepository implements RateLimitRepository<RateLimit> {
+
+        private final List<String> keys = Collections.synchronizedList(new ArrayList<>());
+
+        private final List<SingleSubject<Boolean>> gates = Collections.synchronizedList(new ArrayList<>());
+
+        private volatile boolean synchronous;
+
+        @Override
+        public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+            final SingleSubject<Boolean> gate = SingleSubject.create();
+            keys.add(key);
+            gates.add(gate);
+            if (synchronous) {
+                gate.onSuccess(true);
+            }
+            return gate.map(open -> {
+                RateLimit rateLimit = supplier.get();
+                rateLimit.setCounter(weight);
+                return rateLimit;
+            });
+        }
+
+        void open(int index) {
+            gates.get(index).onSuccess(true);
+        }
+
+        void fail(int index, RuntimeException error) {
+            gates.get(index).onError(error);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rendered templates must be byte for byte what the driver encodes for the same document.
+ *
+ * @author GraviteeSource Team
+ */
+public class BsonTemplateTest {
+
+    private static final long[] NUMBERS = {42L, 1_600_000_000_000L, Double.doubleToRawLongBits(0.25)};
+
+    @Test
+    public void shouldRenderAsciiString() {
+        assertRendersString("plan:key");
+    }
+
+    @Test
+    public void shouldRenderEmptyString() {
+        assertRendersString("");
+    }
+
+    @Test
+    public void shouldRenderTwoBytesCharacters() {
+        assertRendersString("clé:à");
+    }
+
+    @Test
+    public void shouldRenderThreeBytesCharacters() {
+        assertRendersString("€:中文");
+    }
+
+    @Test
+    public void shouldRenderFourBytesCharacters() {
+        assertRendersString("key:😀");
+    }
+
+    @Test
+    public void shouldReplaceLoneSurrogates() {
+        // The driver encodes lone surrogates as invalid UTF-8, they are replaced by '?' as String.getBytes does
+        assertArrayEquals(expected(document("a?b?c?")), bytes(render("a\ud83db\ude00c\ud83d")));
+        assertArrayEquals(expected(document("??")), bytes(render("\ude00\ud83d")));
+    }
+
+    @Test
+    public void shouldRenderNullSlot() {
+        assertRendersString(null);
+    }
+
+    @Test
+    public void shouldRenderBinarySlot() {
+        final Binary binary = new Binary((byte) 4, new byte[] {1, 2, 3, 4});
+        assertArrayEquals(expected(document(binary)), bytes(template().render(NUMBERS, new Object[] {binary})));
+    }
+
+    @Test
+    public void shouldPatchLengthOfNestedContainers() {
+        // Every container holding a slot grows with the rendered values
+        for (String value : Arrays.asList(null, "", "x", "a much longer value than the others: é€😀")) {
+            assertArrayEquals(String.valueOf(value), expected(document(value)), bytes(render(value)));
+        }
+    }
+
+    private static void assertRendersString(String value) {
+        assertArrayEquals(expected(document(value)), bytes(render(value)));
+    }
+
+    private static RawBsonDocument render(String value) {
+        return template().render(NUMBERS, new Object[] {value});
+    }
+
+    private static BsonTemplate template() {
+        return new BsonTemplate(document(
+                BsonTemplate.value(0), BsonTemplate.int64(0), BsonTemplate.date(1), BsonTemplate.float64(2)));
+    }
+
+    private static Document document(Object value) {
+        return document(value, 42L, new Date(1_600_000_000_000L), 0.25);
+    }
+
+    /**
+     * Slots are spread over nested documents and arrays, surrounded by constant values.
+     */
+    private static Document document(Object value, Object int64, Object date, Object float64) {
+        return new Document("before", "constant")
+                .append("value", value)
+                .append("$set", new Document("counter", new Document("$add", Arrays.asList("$counter", int64)))
+                        .append("nested", Arrays.asList(
+                                new Document("$literal", value),
+                                Arrays.asList(date, value, 1),
+                                true))
+                        .append("rate", float64))
+                .append("after", new Document("$literal", value));
+    }
+
+    private static byte[] expected(Document document) {
+        return bytes(new RawBsonDocument(document, new DocumentCodec()));
+    }
+
+    private static byte[] bytes(RawBsonDocument document) {
+        final ByteBuf buffer = document.getByteBuffer();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
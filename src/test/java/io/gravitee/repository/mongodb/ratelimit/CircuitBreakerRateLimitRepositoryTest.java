@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class CircuitBreakerRateLimitRepositoryTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final int NODES = 2;
+
+    private InMemoryRateLimitRepository delegate;
+
+    private CountingMetrics metrics;
+
+    private CircuitBreakerRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        delegate = new InMemoryRateLimitRepository();
+        metrics = new CountingMetrics();
+        // Probes are triggered by the tests
+        repository = new CircuitBreakerRateLimitRepository(delegate, delegate, metrics, 100, FAILURE_THRESHOLD, NODES, 60_000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    @Test
+    public void shouldCallDelegateWhileClosed() {
+        assertEquals(3, repository.incrementAndGet("key", 3, window("key", 1000, 60_000)).blockingGet().getCounter());
+
+        assertEquals(1, delegate.calls.get());
+        assertEquals(0, metrics.gauge("breaker.open"));
+    }
+
+    @Test
+    public void shouldCountFailedCallsLocally() {
+        delegate.failure = new IllegalStateException("down");
+
+        // The local counter is scaled up to the share of this node
+        assertEquals(NODES, repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet().getCounter());
+        assertEquals(2 * NODES, repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet().getCounter());
+        assertEquals(0, metrics.gauge("breaker.open"));
+    }
+
+    @Test
+    public void shouldOpenAfterConsecutiveFailures() {
+        open();
+
+        repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet();
+        repository.incrementAndGet(Arrays.asList(new RateLimitIncrement("key", 1, window("key", 1000, 60_000)))).blockingGet();
+
+        assertEquals(1, metrics.gauge("breaker.open"));
+        assertEquals(FAILURE_THRESHOLD, delegate.calls.get());
+        assertEquals(0, delegate.batches.get());
+        assertEquals(2, metrics.count("breaker.calls.local"));
+    }
+
+    @Test
+    public void shouldStayOpenWhileProbeFails() {
+        open();
+
+        repository.check();
+
+        assertEquals(1, metrics.gauge("breaker.open"));
+        assertEquals(1, delegate.pings.get());
+    }
+
+    @Test
+    public void shouldReconcileWeightCountedWhileOpen() {
+        open();
+        repository.incrementAndGet("key", 2, window("key", 1000, 60_000)).blockingGet();
+        repository.incrementAndGet("key", 3, window("key", 1000, 60_000)).blockingGet();
+
+        delegate.failure = null;
+        repository.check();
+
+        assertEquals(0, metrics.gauge("breaker.open"));
+        assertEquals(1, metrics.count("breaker.closed"));
+        assertEquals(1, delegate.batches.get());
+        assertEquals(5, delegate.counter("key"));
+        assertEquals(0, metrics.gauge("breaker.local.keys"));
+        assertEquals(6, repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldNotReconcileFailedCalls() {
+        delegate.failure = new IllegalStateException("down");
+        repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet();
+
+        delegate.failure = null;
+        repository.check();
+
+        // The failed write may have reached MongoDB, it is never written back
+        assertEquals(0, delegate.batches.get());
+        assertEquals(0, delegate.counter("key"));
+    }
+
+    @Test
+    public void shouldNotCountTimedOutCallsTwice() throws InterruptedException {
+        delegate.delay = 500;
+        final List<RateLimit> rateLimits = repository.incrementAndGet(Arrays.asList(
+                new RateLimitIncrement("key", 1, window("key", 1000, 60_000)))).blockingGet();
+        assertEquals(NODES, rateLimits.get(0).getCounter());
+        assertEquals(1, metrics.count("breaker.failures"));
+
+        delegate.delay = 0;
+        repository.check();
+
+        // The timed out write landed, and is not written back again
+        assertEquals(1, delegate.counter("key"));
+        assertEquals(1, delegate.batches.get());
+    }
+
+    @Test
+    public void shouldRetryFailedReconciliation() {
+        open();
+        repository.incrementAndGet("key", 4, window("key", 1000, 60_000)).blockingGet();
+
+        // The probe answers but the write back fails
+        delegate.failure = null;
+        delegate.writeFailure = new IllegalStateException("not primary");
+        repository.check();
+        assertEquals(1, metrics.count("breaker.reconciled.errors"));
+        assertEquals(1, metrics.gauge("breaker.local.keys"));
+
+        delegate.writeFailure = null;
+        repository.check();
+        assertEquals(4, delegate.counter("key"));
+        assertEquals(0, metrics.gauge("breaker.local.keys"));
+    }
+
+    @Test
+    public void shouldNotRetryTimedOutReconciliation() {
+        open();
+        repository.incrementAndGet("key", 4, window("key", 1000, 60_000)).blockingGet();
+
+        delegate.failure = null;
+        delegate.delay = 500;
+        repository.check();
+        delegate.delay = 0;
+        repository.check();
+
+        assertEquals(1, metrics.count("breaker.reconciled.timeouts"));
+        assertEquals(4, delegate.counter("key"));
+        assertEquals(1, delegate.batches.get());
+    }
+
+    private void open() {
+        delegate.failure = new IllegalStateException("down");
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            repository.incrementAndGet("other", 1, window("key", 1000, 60_000)).blockingGet();
+        }
+        assertEquals(1, metrics.gauge("breaker.open"));
+    }
+}
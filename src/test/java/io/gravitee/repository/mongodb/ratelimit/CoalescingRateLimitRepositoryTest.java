@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.function.Supplier;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class CoalescingRateLimitRepositoryTest {
+
+    private static final long INTERVAL = 10_000L;
+
+    private InMemoryRateLimitRepository delegate;
+
+    private CountingMetrics metrics;
+
+    private CoalescingRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        delegate = new InMemoryRateLimitRepository();
+        metrics = new CountingMetrics();
+        // Flushes are triggered by the tests
+        repository = new CoalescingRateLimitRepository(delegate, metrics, INTERVAL, 100, 0.8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    @Test
+    public void shouldCoalesceIncrementsOfRunningWindow() {
+        final Supplier<RateLimit> window = window("key", 1000, 60_000);
+
+        assertEquals(1, repository.incrementAndGet("key", 1, window).blockingGet().getCounter());
+        assertEquals(3, repository.incrementAndGet("key", 2, window).blockingGet().getCounter());
+        assertEquals(6, repository.incrementAndGet("key", 3, window).blockingGet().getCounter());
+
+        assertEquals(1, delegate.calls.get());
+        assertEquals(1, delegate.counter("key"));
+        assertEquals(5, metrics.gauge("coalescing.pending"));
+    }
+
+    @Test
+    public void shouldFlushThroughDelegateBatch() {
+        final Supplier<RateLimit> window = window("key", 1000, 60_000);
+        repository.incrementAndGet("key1", 1, window).blockingGet();
+        repository.incrementAndGet("key1", 4, window).blockingGet();
+        repository.incrementAndGet("key2", 1, window).blockingGet();
+        repository.incrementAndGet("key2", 2, window).blockingGet();
+
+        repository.flush();
+
+        assertEquals(1, delegate.batches.get());
+        assertEquals(5, delegate.counter("key1"));
+        assertEquals(3, delegate.counter("key2"));
+        assertEquals(0, metrics.gauge("coalescing.pending"));
+    }
+
+    @Test
+    public void shouldTakeOtherGatewaysIntoAccountAfterFlush() {
+        final Supplier<RateLimit> window = window("key", 1000, 60_000);
+        repository.incrementAndGet("key", 1, window).blockingGet();
+        repository.incrementAndGet("key", 1, window).blockingGet();
+
+        // Another gateway increments the same counter
+        delegate.incrementAndGet("key", 10, window).blockingGet();
+        repository.flush();
+
+        assertEquals(13, repository.incrementAndGet("key", 1, window).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldRetryFailedFlush() {
+        final Supplier<RateLimit> window = window("key", 1000, 60_000);
+        repository.incrementAndGet("key", 1, window).blockingGet();
+        repository.incrementAndGet("key", 2, window).blockingGet();
+
+        delegate.failure = new IllegalStateException("down");
+        repository.flush();
+        assertEquals(1, metrics.count("coalescing.flush.errors"));
+        assertEquals(2, metrics.gauge("coalescing.pending"));
+
+        delegate.failure = null;
+        repository.flush();
+        assertEquals(3, delegate.counter("key"));
+        assertEquals(0, metrics.gauge("coalescing.pending"));
+    }
+
+    @Test
+    public void shouldGoDirectAroundLimit() {
+        final Supplier<RateLimit> window = window("key", 10, 60_000);
+        for (int i = 0; i < 10; i++) {
+            repository.incrementAndGet("key", 1, window).blockingGet();
+        }
+
+        // 0.8 * 10: calls from the 8th one on go to the delegate
+        assertEquals(4, delegate.calls.get());
+        assertEquals(4, metrics.count("coalescing.calls.direct"));
+    }
+
+    @Test
+    public void shouldGoDirectAtEndOfWindow() {
+        // The window ends before the next flush: increments could not be flushed in time
+        final Supplier<RateLimit> window = window("key", 1000, INTERVAL / 2);
+        repository.incrementAndGet("key", 1, window).blockingGet();
+        repository.incrementAndGet("key", 1, window).blockingGet();
+        repository.incrementAndGet("key", 1, window).blockingGet();
+
+        assertEquals(3, delegate.calls.get());
+        assertEquals(3, delegate.counter("key"));
+        assertEquals(0, metrics.count("coalescing.calls.coalesced"));
+    }
+
+    @Test
+    public void shouldFlushPendingWeightOnDestroy() throws Exception {
+        final Supplier<RateLimit> window = window("key", 1000, 60_000);
+        repository.incrementAndGet("key", 1, window).blockingGet();
+        repository.incrementAndGet("key", 5, window).blockingGet();
+
+        repository.destroy();
+
+        assertEquals(6, delegate.counter("key"));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class HeavyHittersTest {
+
+    @Test
+    public void shouldEstimateWeightOfFewKeysExactly() {
+        final HeavyHitters heavyHitters = new HeavyHitters(4, 4096, 10);
+        for (int i = 0; i < 5; i++) {
+            heavyHitters.record("key1", 2, false);
+        }
+        heavyHitters.record("key2", 7, false);
+
+        final List<HeavyHitter> top = heavyHitters.rotate(1000);
+
+        assertEquals(Arrays.asList("key1", "key2"), keys(top));
+        assertEquals(10, top.get(0).getWeight());
+        assertEquals(7, top.get(1).getWeight());
+        assertEquals(10d, top.get(0).getRate(), 0.001);
+    }
+
+    @Test
+    public void shouldNeverUnderestimate() {
+        // A narrow sketch has many collisions
+        final HeavyHitters heavyHitters = new HeavyHitters(2, 16, 5);
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.record("light-" + i, 1, false);
+        }
+        heavyHitters.record("heavy", 100, false);
+
+        final List<HeavyHitter> top = heavyHitters.rotate(1000);
+
+        final HeavyHitter heavy = top.stream().filter(hitter -> hitter.getKey().equals("heavy")).findFirst().orElse(null);
+        assertNotNull(heavy);
+        assertTrue(heavy.getWeight() >= 100);
+    }
+
+    @Test
+    public void shouldKeepHeaviestKeysHeaviestFirst() {
+        final HeavyHitters heavyHitters = new HeavyHitters(4, 4096, 3);
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 50; i++) {
+                heavyHitters.record("light-" + i, 1, false);
+            }
+            heavyHitters.record("heavy-3", 2, false);
+            heavyHitters.record("heavy-1", 5, false);
+            heavyHitters.record("heavy-2", 3, false);
+        }
+
+        final List<HeavyHitter> top = heavyHitters.rotate(10_000);
+
+        assertEquals(Arrays.asList("heavy-1", "heavy-2", "heavy-3"), keys(top));
+        assertEquals(500, top.get(0).getWeight());
+        assertEquals(50d, top.get(0).getRate(), 0.001);
+    }
+
+    @Test
+    public void shouldCountLimitedCalls() {
+        final HeavyHitters heavyHitters = new HeavyHitters(4, 4096, 10);
+        heavyHitters.record("key", 1, false);
+        heavyHitters.record("key", 1, true);
+        heavyHitters.record("key", 1, true);
+
+        HeavyHitter hitter = heavyHitters.rotate(1000).get(0);
+        assertEquals(2, hitter.getLimitedCalls());
+        assertTrue(hitter.isLimited());
+
+        heavyHitters.record("key", 1, true);
+        heavyHitters.record("key", 1, false);
+        hitter = heavyHitters.rotate(1000).get(0);
+        assertEquals(1, hitter.getLimitedCalls());
+        assertFalse(hitter.isLimited());
+    }
+
+    @Test
+    public void shouldStartOverAfterRotation() {
+        final HeavyHitters heavyHitters = new HeavyHitters(4, 4096, 10);
+        heavyHitters.record("key", 100, false);
+        heavyHitters.rotate(1000);
+
+        assertTrue(heavyHitters.rotate(1000).isEmpty());
+
+        heavyHitters.record("key", 1, false);
+        assertEquals(1, heavyHitters.rotate(1000).get(0).getWeight());
+    }
+
+    private static List<String> keys(List<HeavyHitter> heavyHitters) {
+        return heavyHitters.stream().map(HeavyHitter::getKey).collect(Collectors.toList());
+    }
+}
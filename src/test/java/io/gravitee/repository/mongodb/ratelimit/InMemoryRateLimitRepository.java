@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.client.result.UpdateResult;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Fixed-window counters kept in memory, standing for MongoDB below the rate-limit layers, possibly shared by the layers
+ * of several gateways. Calls can be made to fail, or to answer late (the increment itself being applied right away, as
+ * a write reaching the server before a timeout).
+ *
+ * @author GraviteeSource Team
+ */
+class InMemoryRateLimitRepository implements BatchRateLimitRepository, RateLimitStore {
+
+    private final Map<String, RateLimit> counters = new HashMap<>();
+
+    final AtomicInteger calls = new AtomicInteger();
+
+    final AtomicInteger batches = new AtomicInteger();
+
+    final AtomicInteger decrements = new AtomicInteger();
+
+    final AtomicInteger pings = new AtomicInteger();
+
+    final List<String> keys = Collections.synchronizedList(new ArrayList<>());
+
+    volatile RuntimeException failure;
+
+    /** Only makes the increments fail */
+    volatile RuntimeException writeFailure;
+
+    volatile long delay;
+
+    @Override
+    public Single<RateLimit> incrementAndGet(String key, long weight, Supplier<RateLimit> supplier) {
+        calls.incrementAndGet();
+        return delayed(Single.fromCallable(() -> increment(key, weight, supplier)));
+    }
+
+    @Override
+    public Single<List<RateLimit>> incrementAndGet(List<RateLimitIncrement> increments) {
+        batches.incrementAndGet();
+        return delayed(Single.fromCallable(() -> {
+            List<RateLimit> rateLimits = new ArrayList<>(increments.size());
+            for (RateLimitIncrement increment : increments) {
+                rateLimits.add(increment(increment.getKey(), increment.getWeight(), increment.getSupplier()));
+            }
+            return rateLimits;
+        }));
+    }
+
+    @Override
+    public Flux<RateLimit> findAll(Collection<String> keys) {
+        return Flux.defer(() -> {
+            fail();
+            List<RateLimit> rateLimits = new ArrayList<>();
+            synchronized (counters) {
+                keys.stream().map(counters::get).filter(rateLimit -> rateLimit != null).forEach(rateLimit -> rateLimits.add(copy(rateLimit)));
+            }
+            return Flux.fromIterable(rateLimits);
+        });
+    }
+
+    @Override
+    public Mono<UpdateResult> decrement(String key, long weight, long resetTime) {
+        return Mono.fromCallable(() -> {
+            fail();
+            decrements.incrementAndGet();
+            synchronized (counters) {
+                RateLimit rateLimit = counters.get(key);
+                if (rateLimit == null || rateLimit.getResetTime() != resetTime) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                rateLimit.setCounter(rateLimit.getCounter() - weight);
+                return UpdateResult.acknowledged(1, 1L, null);
+            }
+        });
+    }
+
+    @Override
+    public Mono<UpdateResult> stripe(String key, int stripes, long resetTime) {
+        return Mono.fromCallable(() -> {
+            fail();
+            synchronized (counters) {
+                RateLimit rateLimit = counters.get(key);
+                if (rateLimit == null || rateLimit.getResetTime() != resetTime) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                RateLimit striped = new StripedRateLimit(key, stripes);
+                striped.setCounter(rateLimit.getCounter());
+                striped.setLimit(rateLimit.getLimit());
+                striped.setResetTime(rateLimit.getResetTime());
+                striped.setSubscription(rateLimit.getSubscription());
+                counters.put(key, striped);
+                return UpdateResult.acknowledged(1, 1L, null);
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> ping() {
+        return Mono.fromRunnable(() -> {
+            pings.incrementAndGet();
+            fail();
+        });
+    }
+
+    long counter(String key) {
+        synchronized (counters) {
+            RateLimit rateLimit = counters.get(key);
+            return rateLimit == null ? 0 : rateLimit.getCounter();
+        }
+    }
+
+    private RateLimit increment(String key, long weight, Supplier<RateLimit> supplier) {
+        fail();
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        keys.add(key);
+        synchronized (counters) {
+            RateLimit rateLimit = counters.get(key);
+            if (rateLimit == null || rateLimit.getResetTime() <= System.currentTimeMillis()) {
+                RateLimit window = supplier.get();
+                rateLimit = new RateLimit(key);
+                rateLimit.setLimit(window.getLimit());
+                rateLimit.setResetTime(window.getResetTime());
+                rateLimit.setSubscription(window.getSubscription());
+                counters.put(key, rateLimit);
+            }
+            rateLimit.setCounter(rateLimit.getCounter() + weight);
+            return copy(rateLimit);
+        }
+    }
+
+    private <T> Single<T> delayed(Single<T> single) {
+        return delay > 0 ? single.delay(delay, TimeUnit.MILLISECONDS) : single;
+    }
+
+    private void fail() {
+        RuntimeException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static RateLimit copy(RateLimit rateLimit) {
+        RateLimit copy = rateLimit instanceof StripedRateLimit ?
+                new StripedRateLimit(rateLimit.getKey(), ((StripedRateLimit) rateLimit).getStripes()) :
+                new RateLimit(rateLimit.getKey());
+        copy.setCounter(rateLimit.getCounter());
+        copy.setLimit(rateLimit.getLimit());
+        copy.setResetTime(rateLimit.getResetTime());
+        copy.setSubscription(rateLimit.getSubscription());
+        return copy;
+    }
+}
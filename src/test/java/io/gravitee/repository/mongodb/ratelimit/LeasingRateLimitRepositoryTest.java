@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class LeasingRateLimitRepositoryTest {
+
+    private InMemoryRateLimitRepository delegate;
+
+    private CountingMetrics metrics;
+
+    private LeasingRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        delegate = new InMemoryRateLimitRepository();
+        metrics = new CountingMetrics();
+        repository = leasing(60_000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    @Test
+    public void shouldNotLeaseLowLimits() {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, repository.incrementAndGet("key", 1, window("key", 50, 60_000)).blockingGet().getCounter());
+        }
+
+        assertEquals(5, delegate.calls.get());
+        assertEquals(5, delegate.counter("key"));
+    }
+
+    @Test
+    public void shouldServeHitsFromLease() {
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet().getCounter());
+        }
+
+        // A single increment reserved the minimum lease
+        assertEquals(1, delegate.calls.get());
+        assertEquals(10, delegate.counter("key"));
+        assertEquals(10, metrics.count("leasing.calls.leased"));
+    }
+
+    @Test
+    public void shouldAcquireNextLeaseOnceExhausted() {
+        for (int i = 1; i <= 10; i++) {
+            repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet();
+        }
+
+        assertEquals(11, repository.incrementAndGet("key", 1, window("key", 1000, 60_000)).blockingGet().getCounter());
+        assertEquals(2, delegate.calls.get());
+        assertTrue(delegate.counter("key") > 11);
+    }
+
+    @Test
+    public void shouldGiveBackUnusedLeaseOnceIdle() throws Exception {
+        repository.destroy();
+        repository = leasing(50);
+
+        repository.incrementAndGet("key", 3, window("key", 1000, 60_000)).blockingGet();
+        assertEquals(10, delegate.counter("key"));
+
+        Thread.sleep(200);
+        repository.releaseIdleLeases();
+
+        assertEquals(3, delegate.counter("key"));
+        assertEquals(1, delegate.decrements.get());
+        assertEquals(7, metrics.count("leasing.released.weight"));
+    }
+
+    @Test
+    public void shouldGiveBackUnusedLeaseOnDestroy() throws Exception {
+        repository.incrementAndGet("key", 4, window("key", 1000, 60_000)).blockingGet();
+
+        repository.destroy();
+
+        assertEquals(4, delegate.counter("key"));
+    }
+
+    private LeasingRateLimitRepository leasing(long idleTimeout) {
+        return new LeasingRateLimitRepository(delegate, delegate, metrics, 100, 10, 0.5, 1000, idleTimeout);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter.Backend;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoBatchRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    @Test
+    public void shouldReturnCountersInInputOrder() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+        repository.incrementAndGet("plan:b", 10, window("plan:b", 100, 60_000)).blockingGet();
+
+        final List<RateLimit> rateLimits = repository.incrementAndGet(Arrays.asList(
+                increment("plan:c", 3),
+                increment("plan:a", 1),
+                increment("plan:b", 2))).blockingGet();
+
+        assertEquals(Arrays.asList("plan:c", "plan:a", "plan:b"), keys(rateLimits));
+        assertEquals(3, rateLimits.get(0).getCounter());
+        assertEquals(1, rateLimits.get(1).getCounter());
+        assertEquals(12, rateLimits.get(2).getCounter());
+    }
+
+    @Test
+    public void shouldReturnOwnCounterForDuplicateKeys() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+
+        final List<RateLimit> rateLimits = repository.incrementAndGet(Arrays.asList(
+                increment("plan:a", 1),
+                increment("plan:b", 1),
+                increment("plan:a", 2))).blockingGet();
+
+        assertEquals(Arrays.asList("plan:a", "plan:b", "plan:a"), keys(rateLimits));
+        // Both increments of the key are applied, each one sees its own update whatever their order
+        final long first = rateLimits.get(0).getCounter();
+        final long second = rateLimits.get(2).getCounter();
+        assertTrue((first == 1 && second == 3) || (first == 3 && second == 2));
+        assertEquals(3, repository.incrementAndGet("plan:a", 0, window("plan:a", 100, 60_000)).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldNotCountConcurrentIncrementsOfOtherGateways() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+        final MongoRateLimitRepository other = MongoRateLimitRepository.builder(router()).build();
+
+        final List<RateLimitIncrement> increments = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            increments.add(increment("plan:key", 1));
+        }
+        final Single<List<RateLimit>> batch = repository.incrementAndGet(increments);
+        final Single<List<RateLimit>> otherBatch = other.incrementAndGet(increments);
+
+        final Set<Long> counters = new HashSet<>();
+        Single.merge(batch.subscribeOn(Schedulers.io()), otherBatch.subscribeOn(Schedulers.io()))
+                .blockingIterable()
+                .forEach(rateLimits -> rateLimits.forEach(rateLimit -> counters.add(rateLimit.getCounter())));
+
+        // Every increment got its own counter: no two of them were handed the same total
+        assertEquals(100, counters.size());
+        assertEquals(100, counters.stream().mapToLong(Long::longValue).max().getAsLong());
+    }
+
+    @Test
+    public void shouldSpreadBatchOverBackends() {
+        final ReactiveMongoOperations other = mongoOperations("test-other");
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", mongoOperations, 0, 1),
+                new Backend("rs2", other, 0, 1)), null)).build();
+
+        final List<RateLimitIncrement> increments = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            increments.add(increment("plan:key-" + i, i + 1));
+        }
+        final List<RateLimit> rateLimits = repository.incrementAndGet(increments).blockingGet();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("plan:key-" + i, rateLimits.get(i).getKey());
+            assertEquals(i + 1, rateLimits.get(i).getCounter());
+        }
+        assertTrue(count(mongoOperations) > 0);
+        assertTrue(count(other) > 0);
+        assertEquals(20, count(mongoOperations) + count(other));
+    }
+
+    @Test
+    public void shouldReturnEmptyBatch() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+
+        assertTrue(repository.incrementAndGet(Collections.emptyList()).blockingGet().isEmpty());
+    }
+
+    private static RateLimitIncrement increment(String key, long weight) {
+        return new RateLimitIncrement(key, weight, window(key, 100, 60_000));
+    }
+
+    private static long count(ReactiveMongoOperations mongoOperations) {
+        return Mono.from(mongoOperations.getCollection("ratelimit").countDocuments()).block();
+    }
+
+    private static List<String> keys(List<RateLimit> rateLimits) {
+        final List<String> keys = new ArrayList<>();
+        rateLimits.forEach(rateLimit -> keys.add(rateLimit.getKey()));
+        return keys;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter.Backend;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * Keys crossing the activation of a new backend.
+ *
+ * @author GraviteeSource Team
+ */
+public class MongoHandoverRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    private static final long ACTIVATION_DELAY = 1_000;
+
+    private ReactiveMongoOperations added;
+
+    private long activation;
+
+    private RateLimitRouter router;
+
+    private String key;
+
+    @Before
+    public void setUp() {
+        added = mongoOperations("test-added");
+        activation = System.currentTimeMillis() + ACTIVATION_DELAY;
+        router = new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", mongoOperations, 0, 1),
+                new Backend("rs2", added, activation, 1)), 60_000, null);
+
+        // A key taken over by the added backend
+        for (int i = 0; key == null; i++) {
+            if (router.route("plan:key-" + i, activation).getName().equals("rs2")) {
+                key = "plan:key-" + i;
+            }
+        }
+    }
+
+    @Test
+    public void shouldCarryRunningWindowOverToNewBackend() throws InterruptedException {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router).build();
+        final RateLimit before = repository.incrementAndGet(key, 5, window(key, 100, 60_000)).blockingGet();
+        assertEquals(1, count(mongoOperations));
+
+        awaitActivation();
+
+        final RateLimit after = repository.incrementAndGet(key, 1, window(key, 100, 60_000)).blockingGet();
+        assertEquals(6, after.getCounter());
+        assertEquals(before.getResetTime(), after.getResetTime());
+        assertEquals(1, count(added));
+
+        assertEquals(7, repository.incrementAndGet(key, 1, window(key, 100, 60_000)).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldReadRunningWindowFromPreviousBackend() throws InterruptedException {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router).build();
+        repository.incrementAndGet(key, 5, window(key, 100, 60_000)).blockingGet();
+
+        awaitActivation();
+
+        assertEquals(5, repository.findAll(Collections.singletonList(key)).blockFirst().getCounter());
+    }
+
+    @Test
+    public void shouldStartNewWindowWithoutRunningOne() throws InterruptedException {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router).build();
+        repository.incrementAndGet(key, 5, window(key, 100, 200)).blockingGet();
+
+        awaitActivation();
+
+        assertEquals(1, repository.incrementAndGet(key, 1, window(key, 100, 60_000)).blockingGet().getCounter());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOtherAlgorithmsWithActivations() {
+        MongoRateLimitRepository.builder(router).algorithm(RateLimitAlgorithm.GCRA).build();
+    }
+
+    private void awaitActivation() throws InterruptedException {
+        Thread.sleep(Math.max(activation - System.currentTimeMillis(), 0) + 50);
+    }
+
+    private static long count(ReactiveMongoOperations mongoOperations) {
+        return Mono.from(mongoOperations.getCollection("ratelimit").countDocuments()).block();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoKeyEncodingRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    private static final String KEY = "plan:key";
+
+    @Test
+    public void shouldRoundTripDigestKeys() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                .build();
+
+        repository.incrementAndGet(KEY, 2, window(KEY, 10, 60_000)).blockingGet();
+        final RateLimit rateLimit = repository.incrementAndGet(KEY, 1, window(KEY, 10, 60_000)).blockingGet();
+
+        assertEquals(KEY, rateLimit.getKey());
+        assertEquals(3, rateLimit.getCounter());
+
+        final Document document = document(RateLimitKeyEncoding.DIGEST.encode(KEY));
+        assertNotNull(document);
+        assertTrue(document.get("_id") instanceof Binary);
+        assertFalse(document.containsKey("key"));
+
+        final RateLimit found = repository.findAll(Collections.singletonList(KEY)).blockFirst();
+        assertEquals(KEY, found.getKey());
+        assertEquals(3, found.getCounter());
+        assertEquals(rateLimit.getResetTime(), found.getResetTime());
+    }
+
+    @Test
+    public void shouldRoundTripVerifiedDigestKeys() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                .verifyKeys(true)
+                .build();
+
+        repository.incrementAndGet(KEY, 2, window(KEY, 10, 60_000)).blockingGet();
+        assertEquals(3, repository.incrementAndGet(KEY, 1, window(KEY, 10, 60_000)).blockingGet().getCounter());
+
+        assertEquals(KEY, document(RateLimitKeyEncoding.DIGEST.encode(KEY)).getString("key"));
+        assertNull(document(KEY));
+
+        final RateLimit found = repository.findAll(Collections.singletonList(KEY)).blockFirst();
+        assertEquals(KEY, found.getKey());
+        assertEquals(3, found.getCounter());
+    }
+
+    @Test
+    public void shouldStoreCollidingKeyUnderPlainKey() {
+        final CountingMetrics metrics = new CountingMetrics();
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                .verifyKeys(true)
+                .metrics(metrics)
+                .build();
+
+        // Another key owning the same digest
+        final Object id = RateLimitKeyEncoding.DIGEST.encode(KEY);
+        Mono.from(mongoOperations.getCollection("ratelimit").insertOne(new Document("_id", id)
+                .append("key", "plan:other")
+                .append("counter", 42L)
+                .append("limit", 100L)
+                .append("reset_time", new Date(System.currentTimeMillis() + 60_000)))).block();
+
+        repository.incrementAndGet(KEY, 1, window(KEY, 10, 60_000)).blockingGet();
+        final RateLimit rateLimit = repository.incrementAndGet(KEY, 1, window(KEY, 10, 60_000)).blockingGet();
+
+        assertEquals(KEY, rateLimit.getKey());
+        assertEquals(2, rateLimit.getCounter());
+        assertTrue(metrics.count("store.collisions") > 0);
+
+        // The counter lands under the plain key, the other key keeps its own
+        assertEquals(2L, (long) document(KEY).getLong("counter"));
+        assertEquals(42L, (long) document(id).getLong("counter"));
+        assertEquals("plan:other", document(id).getString("key"));
+
+        assertEquals(2, repository.findAll(Collections.singletonList(KEY)).blockFirst().getCounter());
+    }
+
+    @Test
+    public void shouldRetryConcurrentUpsertsOfNewKey() {
+        final CountingMetrics metrics = new CountingMetrics();
+        final List<Single<RateLimit>> increments = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // One repository per gateway, all starting the same window at once
+            increments.add(MongoRateLimitRepository.builder(router())
+                    .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                    .verifyKeys(true)
+                    .metrics(metrics)
+                    .build()
+                    .incrementAndGet(KEY, 1, window(KEY, 100, 60_000))
+                    .subscribeOn(Schedulers.io()));
+        }
+
+        final Set<Long> counters = new HashSet<>();
+        Single.merge(increments).blockingIterable().forEach(rateLimit -> counters.add(rateLimit.getCounter()));
+
+        // Losing an upsert race is not a collision: every increment is counted under the encoded key
+        assertEquals(20, counters.size());
+        assertEquals(20, counters.stream().mapToLong(Long::longValue).max().getAsLong());
+        assertEquals(0, metrics.count("store.collisions"));
+        assertEquals(20L, (long) document(RateLimitKeyEncoding.DIGEST.encode(KEY)).getLong("counter"));
+        assertNull(document(KEY));
+    }
+
+    private Document document(Object id) {
+        return Mono.from(mongoOperations.getCollection("ratelimit").find(new Document("_id", id)).first()).block();
+    }
+}
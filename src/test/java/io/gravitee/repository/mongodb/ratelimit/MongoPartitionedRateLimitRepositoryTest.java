@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoPartitionedRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    private static final long PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    private RateLimitPartitions partitions;
+
+    private MongoRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        final RateLimitRouter router = router();
+        partitions = new RateLimitPartitions("ratelimit", PERIOD, router);
+        repository = MongoRateLimitRepository.builder(router).partitions(partitions).build();
+    }
+
+    @After
+    public void tearDown() {
+        partitions.close();
+    }
+
+    @Test
+    public void shouldWriteIntoCurrentPartition() {
+        final RateLimit rateLimit = repository.incrementAndGet("plan:key", 2, window("plan:key", 10, 60_000)).blockingGet();
+
+        assertEquals(2, rateLimit.getCounter());
+        final Document document = Mono.from(mongoOperations.getCollection(partitions.current(System.currentTimeMillis()))
+                .find(new Document("_id", "plan:key")).first()).block();
+        assertEquals(2L, (long) document.getLong("counter"));
+    }
+
+    @Test
+    public void shouldCarryRunningWindowOverFromPreviousPartition() {
+        final long now = System.currentTimeMillis();
+        final Date resetTime = new Date(now + 60_000);
+        Mono.from(mongoOperations.getCollection(partitions.previous(now)).insertOne(new Document("_id", "plan:key")
+                .append("counter", 5L)
+                .append("reset_time", resetTime)
+                .append("limit", 10L)
+                .append("subscription", "subscription"))).block();
+
+        final RateLimit rateLimit = repository.incrementAndGet("plan:key", 1, window("plan:key", 20, 120_000)).blockingGet();
+
+        assertEquals(6, rateLimit.getCounter());
+        assertEquals(10, rateLimit.getLimit());
+        assertEquals(resetTime.getTime(), rateLimit.getResetTime());
+        assertEquals(7, repository.incrementAndGet("plan:key", 1, window("plan:key", 20, 120_000)).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldNotCarryEndedWindowOver() {
+        final long now = System.currentTimeMillis();
+        Mono.from(mongoOperations.getCollection(partitions.previous(now)).insertOne(new Document("_id", "plan:key")
+                .append("counter", 5L)
+                .append("reset_time", new Date(now - 1_000))
+                .append("limit", 10L))).block();
+
+        assertEquals(1, repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 60_000)).blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() {
+        final long now = System.currentTimeMillis();
+        final String expired = "ratelimit_" + TimeUnit.MILLISECONDS.toMinutes(now - Math.floorMod(now, PERIOD) - 2 * PERIOD);
+        for (String collectionName : new String[] {expired, partitions.previous(now), partitions.current(now)}) {
+            mongoOperations.createCollection(collectionName).block();
+        }
+
+        partitions.dropExpired();
+
+        final List<String> collectionNames = mongoOperations.getCollectionNames().collectList().block();
+        assertFalse(collectionNames.contains(expired));
+        assertTrue(collectionNames.contains(partitions.previous(now)));
+        assertTrue(collectionNames.contains(partitions.current(now)));
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.Test;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoPeekRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    @Test
+    public void shouldPeekWithoutIncrementing() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).peekCacheTtl(0).build();
+        increment(repository, "plan:key", 3);
+
+        assertEquals(3, repository.peek("plan:key").blockingGet().getCounter());
+        assertEquals(3, repository.peek("plan:key").blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldServePeeksFromCache() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).peekCacheTtl(60_000).build();
+        increment(repository, "plan:key", 3);
+
+        assertEquals(3, repository.peek("plan:key").blockingGet().getCounter());
+        increment(repository, "plan:key", 1);
+        assertEquals(3, repository.peek("plan:key").blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldCacheMissingKeys() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).peekCacheTtl(60_000).build();
+
+        assertNull(repository.peek("plan:key").blockingGet());
+        increment(repository, "plan:key", 1);
+        assertNull(repository.peek("plan:key").blockingGet());
+    }
+
+    @Test
+    public void shouldRefreshExpiredPeeks() throws InterruptedException {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).peekCacheTtl(100).build();
+        increment(repository, "plan:key", 3);
+        repository.peek("plan:key").blockingGet();
+        increment(repository, "plan:key", 1);
+
+        Thread.sleep(200);
+
+        assertEquals(4, repository.peek("plan:key").blockingGet().getCounter());
+    }
+
+    @Test
+    public void shouldNotPeekEndedWindow() throws InterruptedException {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).peekCacheTtl(0).build();
+        repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 100)).blockingGet();
+
+        Thread.sleep(200);
+
+        assertNull(repository.peek("plan:key").blockingGet());
+    }
+
+    @Test
+    public void shouldKeepCachingOnceFull() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .peekCacheTtl(60_000)
+                .peekCacheSize(2)
+                .build();
+        repository.peek("plan:key1").blockingGet();
+        repository.peek("plan:key2").blockingGet();
+
+        // The cache is full of running peeks: the ones expiring first make room for the new one
+        assertNull(repository.peek("plan:key3").blockingGet());
+        increment(repository, "plan:key3", 1);
+        assertNull(repository.peek("plan:key3").blockingGet());
+
+        increment(repository, "plan:key1", 1);
+        assertEquals(1, repository.peek("plan:key1").blockingGet().getCounter());
+    }
+
+    private static void increment(MongoRateLimitRepository repository, String key, long weight) {
+        repository.incrementAndGet(key, weight, window(key, 10, 60_000)).blockingGet();
+    }
+}
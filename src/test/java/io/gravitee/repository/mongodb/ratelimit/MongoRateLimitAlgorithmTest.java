@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.Test;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoRateLimitAlgorithmTest extends AbstractMongoRateLimitTest {
+
+    private static final long PERIOD = 1_000L;
+
+    @Test
+    public void shouldWeighPreviousWindowWithSlidingWindows() throws InterruptedException {
+        final MongoRateLimitRepository repository = repository(RateLimitAlgorithm.SLIDING);
+
+        final RateLimit first = increment(repository, 10);
+        assertEquals(10, first.getCounter());
+
+        // Just after the end of the first window, most of it is still covered by the sliding window
+        sleepUntil(first.getResetTime() + 100);
+        final RateLimit second = increment(repository, 1);
+
+        assertEquals(first.getResetTime() + PERIOD, second.getResetTime());
+        assertTrue("counter " + second.getCounter(), second.getCounter() >= 1 + 5 && second.getCounter() <= 1 + 9);
+    }
+
+    @Test
+    public void shouldForgetNonAdjacentWindowWithSlidingWindows() throws InterruptedException {
+        final MongoRateLimitRepository repository = repository(RateLimitAlgorithm.SLIDING);
+
+        final RateLimit first = increment(repository, 10);
+        sleepUntil(first.getResetTime() + PERIOD + 100);
+
+        assertEquals(1, increment(repository, 1).getCounter());
+    }
+
+    @Test
+    public void shouldAccumulateWithinWindowWithSlidingWindows() {
+        final MongoRateLimitRepository repository = repository(RateLimitAlgorithm.SLIDING);
+
+        increment(repository, 2);
+        assertEquals(5, increment(repository, 3).getCounter());
+    }
+
+    @Test
+    public void shouldCountEmissionIntervalsWithGcra() {
+        final MongoRateLimitRepository repository = repository(RateLimitAlgorithm.GCRA);
+
+        // 10 calls per second: one emission interval every 100 ms
+        long counter = 0;
+        for (int i = 1; i <= 10; i++) {
+            counter = increment(repository, 1).getCounter();
+            assertTrue("call " + i + ": " + counter, counter <= i);
+        }
+        assertTrue(counter >= 9);
+
+        // Over the limit: the call does not consume any token
+        final RateLimit rejected = increment(repository, 1);
+        assertTrue(rejected.getCounter() > rejected.getLimit());
+        final RateLimit again = increment(repository, 1);
+        assertTrue(again.getCounter() <= rejected.getCounter());
+    }
+
+    @Test
+    public void shouldRefillTokensWithGcra() throws InterruptedException {
+        final MongoRateLimitRepository repository = repository(RateLimitAlgorithm.GCRA);
+        for (int i = 0; i < 10; i++) {
+            increment(repository, 1);
+        }
+
+        Thread.sleep(550);
+
+        // About 5 emission intervals have elapsed
+        final long counter = increment(repository, 1).getCounter();
+        assertTrue("counter " + counter, counter >= 4 && counter <= 7);
+    }
+
+    private MongoRateLimitRepository repository(RateLimitAlgorithm algorithm) {
+        return MongoRateLimitRepository.builder(router()).algorithm(algorithm).build();
+    }
+
+    private static RateLimit increment(MongoRateLimitRepository repository, long weight) {
+        return repository.incrementAndGet("plan:key", weight, window("plan:key", 10, PERIOD)).blockingGet();
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException {
+        Thread.sleep(Math.max(time - System.currentTimeMillis(), 0));
+    }
+}
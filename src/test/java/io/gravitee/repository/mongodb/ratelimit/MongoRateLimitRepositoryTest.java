@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    private MongoRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        repository = MongoRateLimitRepository.builder(router()).build();
+    }
+
+    @Test
+    public void shouldStartWindowOnFirstIncrement() {
+        final long before = System.currentTimeMillis();
+
+        RateLimit rateLimit = repository.incrementAndGet("plan:key", 3, window("plan:key", 10, 60_000)).blockingGet();
+
+        assertEquals("plan:key", rateLimit.getKey());
+        assertEquals(3, rateLimit.getCounter());
+        assertEquals(10, rateLimit.getLimit());
+        assertTrue(rateLimit.getResetTime() >= before + 60_000);
+    }
+
+    @Test
+    public void shouldIncrementRunningWindow() {
+        RateLimit first = repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 60_000)).blockingGet();
+        // The supplier is only used to start a window: its limit and reset time are ignored while the window runs
+        RateLimit second = repository.incrementAndGet("plan:key", 2, window("plan:key", 20, 120_000)).blockingGet();
+
+        assertEquals(3, second.getCounter());
+        assertEquals(10, second.getLimit());
+        assertEquals(first.getResetTime(), second.getResetTime());
+    }
+
+    @Test
+    public void shouldRollOverEndedWindow() throws InterruptedException {
+        RateLimit first = repository.incrementAndGet("plan:key", 5, window("plan:key", 10, 200)).blockingGet();
+        assertEquals(5, first.getCounter());
+
+        Thread.sleep(300);
+
+        RateLimit second = repository.incrementAndGet("plan:key", 1, window("plan:key", 20, 60_000)).blockingGet();
+
+        assertEquals(1, second.getCounter());
+        assertEquals(20, second.getLimit());
+        assertTrue(second.getResetTime() > first.getResetTime());
+    }
+
+    @Test
+    public void shouldKeepKeysApart() {
+        repository.incrementAndGet("plan:key1", 4, window("plan:key1", 10, 60_000)).blockingGet();
+        RateLimit other = repository.incrementAndGet("plan:key2", 1, window("plan:key2", 10, 60_000)).blockingGet();
+
+        assertEquals(1, other.getCounter());
+    }
+
+    @Test
+    public void shouldMarkWindowAsStripedUntilItIsOver() throws InterruptedException {
+        RateLimit first = repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 300)).blockingGet();
+        assertFalse(first instanceof StripedRateLimit);
+
+        assertEquals(1, repository.stripe("plan:key", 4, first.getResetTime()).block().getMatchedCount());
+
+        RateLimit striped = repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 300)).blockingGet();
+        assertTrue(striped instanceof StripedRateLimit);
+        assertEquals(4, ((StripedRateLimit) striped).getStripes());
+        assertEquals(2, striped.getCounter());
+        assertTrue(repository.findAll(Collections.singletonList("plan:key")).blockFirst() instanceof StripedRateLimit);
+
+        Thread.sleep(400);
+
+        // The next window is not striped until marked again
+        assertFalse(repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 300)).blockingGet() instanceof StripedRateLimit);
+    }
+
+    @Test
+    public void shouldNotMarkEndedWindow() {
+        RateLimit first = repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 60_000)).blockingGet();
+
+        assertEquals(0, repository.stripe("plan:key", 4, first.getResetTime() - 60_000).block().getMatchedCount());
+        assertFalse(repository.incrementAndGet("plan:key", 1, window("plan:key", 10, 60_000)).blockingGet() instanceof StripedRateLimit);
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter.Backend;
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class MongoUsageRateLimitRepositoryTest extends AbstractMongoRateLimitTest {
+
+    @Test
+    public void shouldGroupCountersBySubscription() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+        increment(repository, "plan1:a", "sub1", 1);
+        increment(repository, "plan1:b", "sub1", 2);
+        increment(repository, "plan2:c", "sub1", 3);
+        increment(repository, "plan1:d", "sub2", 4);
+        // Keyless plans have no subscription
+        increment(repository, "plan3:e", null, 5);
+
+        final Map<String, RateLimitUsage> usages = bySubscription(repository.usage(Collections.emptyList(), false)
+                .toList().blockingGet());
+
+        assertEquals(Arrays.asList("sub1", "sub2"), Arrays.asList(usages.keySet().toArray()));
+        assertNull(usages.get("sub1").getPlan());
+        assertEquals(6, sum(usages.get("sub1")));
+        assertEquals(3, usages.get("sub1").getRateLimits().size());
+        assertEquals(4, sum(usages.get("sub2")));
+        assertEquals("sub2", usages.get("sub2").getRateLimits().get(0).getSubscription());
+        assertEquals("plan1:d", usages.get("sub2").getRateLimits().get(0).getKey());
+    }
+
+    @Test
+    public void shouldGroupCountersByPlan() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+        increment(repository, "plan1:a", "sub1", 1);
+        increment(repository, "plan1:b", "sub1", 2);
+        increment(repository, "plan2:c", "sub1", 3);
+        increment(repository, "plan1:d", "sub2", 4);
+
+        final Map<String, RateLimitUsage> usages = byPlan(repository.usage(Collections.emptyList(), true)
+                .toList().blockingGet());
+
+        assertEquals(3, usages.size());
+        assertEquals(3, sum(usages.get("sub1/plan1")));
+        assertEquals(3, sum(usages.get("sub1/plan2")));
+        assertEquals(4, sum(usages.get("sub2/plan1")));
+    }
+
+    @Test
+    public void shouldReportRequestedSubscriptionsOnly() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router()).build();
+        increment(repository, "plan1:a", "sub1", 1);
+        increment(repository, "plan1:b", "sub2", 2);
+        increment(repository, "plan1:c", "sub3", 3);
+
+        final Map<String, RateLimitUsage> usages = bySubscription(repository.usage(Arrays.asList("sub1", "sub3"), false)
+                .toList().blockingGet());
+
+        assertEquals(Arrays.asList("sub1", "sub3"), Arrays.asList(usages.keySet().toArray()));
+    }
+
+    @Test
+    public void shouldMergeGroupsAcrossBackends() {
+        final ReactiveMongoOperations other = mongoOperations("test-other");
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", mongoOperations, 0, 1),
+                new Backend("rs2", other, 0, 1)), null)).build();
+        for (int i = 0; i < 20; i++) {
+            increment(repository, "plan1:key-" + i, "sub1", 1);
+            increment(repository, "plan2:key-" + i, "sub1", 2);
+        }
+        assertTrue(count(mongoOperations) > 0);
+        assertTrue(count(other) > 0);
+
+        final List<RateLimitUsage> bySubscription = repository.usage(Collections.emptyList(), false).toList().blockingGet();
+        assertEquals(1, bySubscription.size());
+        assertEquals(40, bySubscription.get(0).getRateLimits().size());
+        assertEquals(60, sum(bySubscription.get(0)));
+
+        final Map<String, RateLimitUsage> byPlan = byPlan(repository.usage(Collections.emptyList(), true)
+                .toList().blockingGet());
+        assertEquals(2, byPlan.size());
+        assertEquals(20, byPlan.get("sub1/plan1").getRateLimits().size());
+        assertEquals(40, sum(byPlan.get("sub1/plan2")));
+    }
+
+    @Test
+    public void shouldStreamMergedGroupsInOrder() {
+        final ReactiveMongoOperations other = mongoOperations("test-other");
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", mongoOperations, 0, 1),
+                new Backend("rs2", other, 0, 1)), null)).build();
+        // Characters outside the basic plane sort after the others on the server, not in between as UTF-16 would
+        final List<String> subscriptions = Arrays.asList("sub-a", "sub-b", "sub-\u00e9", "sub-\ufffd", "sub-\ud83d\ude00");
+        for (String subscription : subscriptions) {
+            for (int i = 0; i < 10; i++) {
+                increment(repository, "plan1:key-" + subscription + '-' + i, subscription, 1);
+                increment(repository, "plan2:key-" + subscription + '-' + i, subscription, 1);
+            }
+        }
+
+        final List<RateLimitUsage> usages = repository.usage(Collections.emptyList(), true).toList().blockingGet();
+
+        assertEquals(10, usages.size());
+        for (int i = 0; i < usages.size(); i++) {
+            assertEquals(subscriptions.get(i / 2), usages.get(i).getSubscription());
+            assertEquals(i % 2 == 0 ? "plan1" : "plan2", usages.get(i).getPlan());
+            assertEquals(10, usages.get(i).getRateLimits().size());
+        }
+    }
+
+    @Test
+    public void shouldNotReadPlanFromUnverifiedDigests() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                .build();
+        increment(repository, "plan1:a", "sub1", 1);
+        increment(repository, "plan2:b", "sub1", 2);
+
+        final List<RateLimitUsage> usages = repository.usage(Collections.emptyList(), true).toList().blockingGet();
+
+        assertEquals(1, usages.size());
+        assertNull(usages.get(0).getPlan());
+        assertEquals(3, sum(usages.get(0)));
+        assertNull(usages.get(0).getRateLimits().get(0).getKey());
+    }
+
+    @Test
+    public void shouldReadPlanFromVerifiedDigests() {
+        final MongoRateLimitRepository repository = MongoRateLimitRepository.builder(router())
+                .keyEncoding(RateLimitKeyEncoding.DIGEST)
+                .verifyKeys(true)
+                .build();
+        increment(repository, "plan1:a", "sub1", 1);
+        increment(repository, "plan2:b", "sub1", 2);
+
+        final Map<String, RateLimitUsage> usages = byPlan(repository.usage(Collections.emptyList(), true)
+                .toList().blockingGet());
+
+        assertEquals(1, sum(usages.get("sub1/plan1")));
+        assertEquals(2, sum(usages.get("sub1/plan2")));
+    }
+
+    private static void increment(MongoRateLimitRepository repository, String key, String subscription, long weight) {
+        final Supplier<RateLimit> window = window(key, 100, 60_000);
+        repository.incrementAndGet(key, weight, () -> {
+            RateLimit rateLimit = window.get();
+            rateLimit.setSubscription(subscription);
+            return rateLimit;
+        }).blockingGet();
+    }
+
+    private static Map<String, RateLimitUsage> bySubscription(List<RateLimitUsage> usages) {
+        final Map<String, RateLimitUsage> bySubscription = new TreeMap<>();
+        usages.forEach(usage -> assertNull(bySubscription.put(usage.getSubscription(), usage)));
+        return bySubscription;
+    }
+
+    private static Map<String, RateLimitUsage> byPlan(List<RateLimitUsage> usages) {
+        final Map<String, RateLimitUsage> byPlan = new TreeMap<>();
+        usages.forEach(usage -> assertNull(byPlan.put(usage.getSubscription() + '/' + usage.getPlan(), usage)));
+        return byPlan;
+    }
+
+    private static long sum(RateLimitUsage usage) {
+        return usage.getRateLimits().stream().mapToLong(RateLimit::getCounter).sum();
+    }
+
+    private static long count(ReactiveMongoOperations mongoOperations) {
+        return Mono.from(mongoOperations.getCollection("ratelimit").countDocuments()).block();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.vertx.core.Vertx;
+import org.junit.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class NettyTransportTest {
+
+    private static final String NIO = "io.netty.channel.socket.nio.NioSocketChannel";
+
+    @Test
+    public void shouldShareEventLoopGroupBean() {
+        final EventLoopGroup gateway = new NioEventLoopGroup(1);
+        try {
+            final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerSingleton("eventLoopGroup", gateway);
+
+            final NettyTransport transport = new NettyTransport(beanFactory, NIO);
+            assertFalse(transport.isDedicated());
+            assertSame(gateway, transport.eventLoopGroup());
+            assertNotNull(transport.streamFactoryFactory());
+
+            // The shared event loops are left to the gateway
+            transport.close();
+            assertFalse(gateway.isShuttingDown());
+        } finally {
+            gateway.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void shouldShareVertxEventLoops() {
+        final Vertx vertx = Vertx.vertx();
+        try {
+            final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerSingleton("vertx", vertx);
+
+            final NettyTransport transport = new NettyTransport(beanFactory, NIO);
+            assertFalse(transport.isDedicated());
+            assertNotNull(transport.eventLoopGroup());
+        } finally {
+            vertx.close();
+        }
+    }
+
+    @Test
+    public void shouldFallBackToDedicatedEventLoopsWithoutVertxInternal() {
+        // Any Vert.x implementation not exposing its event loops
+        final Vertx vertx = (Vertx) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Vertx.class},
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("vertx", vertx);
+
+        final NettyTransport transport = new NettyTransport(beanFactory, "io.netty.channel.epoll.EpollSocketChannel");
+        assertTrue(transport.isDedicated());
+        assertTrue(transport.eventLoopGroup() instanceof NioEventLoopGroup);
+        assertNotNull(transport.streamFactoryFactory());
+
+        transport.close();
+        assertTrue(transport.eventLoopGroup().isShuttingDown());
+    }
+
+    @Test
+    public void shouldRunDedicatedEventLoopsWithoutGateway() {
+        final NettyTransport transport = new NettyTransport(new DefaultListableBeanFactory(), NIO);
+        assertTrue(transport.isDedicated());
+
+        transport.close();
+        assertTrue(transport.eventLoopGroup().isShuttingDown());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownSocketChannel() {
+        final EventLoopGroup gateway = new NioEventLoopGroup(1);
+        try {
+            final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerSingleton("eventLoopGroup", gateway);
+            new NettyTransport(beanFactory, "io.netty.channel.Unknown");
+        } finally {
+            gateway.shutdownGracefully();
+        }
+    }
+}
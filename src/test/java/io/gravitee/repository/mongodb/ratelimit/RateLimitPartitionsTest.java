@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class RateLimitPartitionsTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final RateLimitPartitions partitions = new RateLimitPartitions("ratelimit", HOUR, null);
+
+    @Test
+    public void shouldNamePartitionsAfterTheirStartMinute() {
+        final long now = 10 * HOUR + 1_234;
+
+        assertEquals("ratelimit_600", partitions.current(now));
+        assertEquals("ratelimit_540", partitions.previous(now));
+    }
+
+    @Test
+    public void shouldSwitchPartitionAtPeriodBoundary() {
+        assertEquals("ratelimit_540", partitions.current(10 * HOUR - 1));
+        assertEquals("ratelimit_600", partitions.current(10 * HOUR));
+        assertEquals("ratelimit_540", partitions.previous(10 * HOUR));
+    }
+
+    @Test
+    public void shouldOnlyExpirePartitionsOlderThanPrevious() {
+        final long now = 10 * HOUR + 1_234;
+
+        assertFalse(partitions.isExpired("ratelimit_600", now));
+        assertFalse(partitions.isExpired("ratelimit_540", now));
+        assertTrue(partitions.isExpired("ratelimit_480", now));
+        assertFalse(partitions.isExpired("ratelimit", now));
+        assertFalse(partitions.isExpired("ratelimit_old", now));
+        assertFalse(partitions.isExpired("other_480", now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPeriodNotMultipleOfMinute() {
+        new RateLimitPartitions("ratelimit", 90_000, null);
+    }
+}
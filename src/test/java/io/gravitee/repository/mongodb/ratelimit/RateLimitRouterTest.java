@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.gravitee.repository.mongodb.ratelimit.RateLimitRouter.Backend;
+import org.bson.RawBsonDocument;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class RateLimitRouterTest {
+
+    private static final int KEYS = 10_000;
+
+    @Test
+    public void shouldSpreadKeysOverBackends() {
+        RateLimitRouter router = new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", null, 0, 1),
+                new Backend("rs2", null, 0, 1),
+                new Backend("rs3", null, 0, 1)), null);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(router.route("key-" + i).getName(), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(count > KEYS / 5));
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysToAddedBackend() {
+        Backend rs1 = new Backend("rs1", null, 0, 1);
+        Backend rs2 = new Backend("rs2", null, 0, 1);
+        Backend rs3 = new Backend("rs3", null, 0, 1);
+
+        RateLimitRouter before = new RateLimitRouter(Arrays.asList(rs1, rs2, rs3), null);
+        RateLimitRouter after = new RateLimitRouter(Arrays.asList(rs1, rs2, rs3, new Backend("rs4", null, 0, 1)), null);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key-" + i;
+            String owner = after.route(key).getName();
+            if (!owner.equals(before.route(key).getName())) {
+                assertEquals("rs4", owner);
+                moved++;
+            }
+        }
+
+        assertTrue(moved > KEYS / 8 && moved < KEYS / 3);
+    }
+
+    @Test
+    public void shouldIgnoreBackendUntilActivation() {
+        Backend rs1 = new Backend("rs1", null, 0, 1);
+        RateLimitRouter router = new RateLimitRouter(Arrays.asList(
+                rs1, new Backend("rs2", null, System.currentTimeMillis() + 3_600_000, 1)), null);
+
+        for (int i = 0; i < 1_000; i++) {
+            assertSame(rs1, router.route("key-" + i));
+        }
+    }
+
+    @Test
+    public void shouldKnowPreviousOwnerOfMovedKeysDuringHandover() {
+        final long activation = System.currentTimeMillis() - 1_000;
+        Backend rs1 = new Backend("rs1", null, 0, 1);
+        Backend rs2 = new Backend("rs2", null, 0, 1);
+        Backend rs3 = new Backend("rs3", null, activation, 1);
+        RateLimitRouter router = new RateLimitRouter(Arrays.asList(rs1, rs2, rs3), 60_000, null);
+        final long now = activation + 1_000;
+
+        assertTrue(router.hasActivations());
+        assertTrue(router.isHandingOver(now));
+
+        int moved = 0;
+        for (int i = 0; i < 1_000; i++) {
+            String key = "key-" + i;
+            Backend previous = router.previous(key, now);
+            if (router.route(key, now) == rs3) {
+                assertTrue(previous == rs1 || previous == rs2);
+                assertSame(previous, router.route(key, activation - 1));
+                moved++;
+            } else {
+                assertNull(previous);
+            }
+            // Once the handover is over, keys only have their current owner
+            assertNull(router.previous(key, activation + 60_000));
+        }
+
+        assertTrue(moved > 0);
+    }
+
+    @Test
+    public void shouldNotHandOverWithoutActivation() {
+        RateLimitRouter router = new RateLimitRouter(Arrays.asList(
+                new Backend("rs1", null, 0, 1),
+                new Backend("rs2", null, 0, 1)), 60_000, null);
+        final long now = System.currentTimeMillis();
+
+        assertFalse(router.hasActivations());
+        assertFalse(router.isHandingOver(now));
+        for (int i = 0; i < 1_000; i++) {
+            assertNull(router.previous("key-" + i, now));
+        }
+    }
+
+    @Test
+    public void shouldKeepRawCollectionsByName() {
+        MongoClient mongoClient = MongoClients.create("mongodb://localhost:27017");
+        try {
+            Backend backend = new Backend("rs1", new ReactiveMongoTemplate(mongoClient, "test"), 0, 1);
+
+            MongoCollection<RawBsonDocument> current = backend.getRawCollection("ratelimit_2");
+            MongoCollection<RawBsonDocument> previous = backend.getRawCollection("ratelimit_1");
+
+            // Partitions used alternately are not looked up again
+            assertSame(current, backend.getRawCollection("ratelimit_2"));
+            assertSame(previous, backend.getRawCollection("ratelimit_1"));
+            assertEquals("ratelimit_1", previous.getNamespace().getCollectionName());
+        } finally {
+            mongoClient.close();
+        }
+    }
+}
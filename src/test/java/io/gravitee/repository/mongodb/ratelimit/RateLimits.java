@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+
+import java.util.function.Supplier;
+
+/**
+ * Rate-limit windows given to the repositories under test.
+ *
+ * @author GraviteeSource Team
+ */
+final class RateLimits {
+
+    private RateLimits() {
+    }
+
+    /**
+     * A window of <code>limit</code> calls for <code>key</code>, ending <code>period</code> ms after the supplier is
+     * called.
+     */
+    static Supplier<RateLimit> window(String key, long limit, long period) {
+        return () -> {
+            RateLimit rateLimit = new RateLimit(key);
+            rateLimit.setLimit(limit);
+            rateLimit.setResetTime(System.currentTimeMillis() + period);
+            return rateLimit;
+        };
+    }
+}
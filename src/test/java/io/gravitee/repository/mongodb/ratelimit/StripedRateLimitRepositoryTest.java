@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2015 The Gravitee team (http://gravitee.io)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.gravitee.repository.mongodb.ratelimit;
+
+import io.gravitee.repository.ratelimit.model.RateLimit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static io.gravitee.repository.mongodb.ratelimit.RateLimits.window;
+import static org.junit.Assert.*;
+
+/**
+ * @author GraviteeSource Team
+ */
+public class StripedRateLimitRepositoryTest {
+
+    private static final int STRIPES = 4;
+
+    private InMemoryRateLimitRepository delegate;
+
+    private CountingMetrics metrics;
+
+    private StripedRateLimitRepository repository;
+
+    @Before
+    public void setUp() {
+        delegate = new InMemoryRateLimitRepository();
+        metrics = new CountingMetrics();
+        // Keys are evaluated and refreshed by the tests
+        repository = new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 1, 0, 60_000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    @Test
+    public void shouldStripeBatchIncrementsOfPromotedKeys() {
+        // Heavy enough to be promoted whatever the time elapsed since the start
+        repository.incrementAndGet("hot", 1000, window("hot", 1000, 60_000)).blockingGet();
+        repository.evaluate();
+        delegate.keys.clear();
+
+        final List<RateLimit> rateLimits = repository.incrementAndGet(Arrays.asList(
+                new RateLimitIncrement("hot", 1, window("hot", 1000, 60_000)),
+                new RateLimitIncrement("cold", 1, window("cold", 1000, 60_000)))).blockingGet();
+
+        assertEquals(1, delegate.batches.get());
+        assertEquals("hot", rateLimits.get(0).getKey());
+        assertEquals("cold", rateLimits.get(1).getKey());
+        assertTrue(delegate.keys.get(0).startsWith("hot"));
+        assertEquals("cold", delegate.keys.get(1));
+    }
+
+    @Test
+    public void shouldSumStripesOfBatchIncrements() {
+        // Heavy enough to be promoted whatever the time elapsed since the start
+        repository.incrementAndGet("hot", 1000, window("hot", 1000, 60_000)).blockingGet();
+        repository.evaluate();
+
+        long counter = 0;
+        for (int i = 0; i < 50; i++) {
+            counter = repository.incrementAndGet(Arrays.asList(new RateLimitIncrement("hot", 1, window("hot", 1000, 60_000))))
+                    .blockingGet().get(0).getCounter();
+        }
+        repository.refresh();
+
+        assertTrue(counter <= 1050);
+        assertEquals(1050, repository.incrementAndGet("hot", 0, window("hot", 1000, 60_000)).blockingGet().getCounter());
+        assertTrue(delegate.keys.stream().anyMatch(key -> key.startsWith("hot#")));
+    }
+
+    @Test
+    public void shouldNotDemoteRightAfterPromotion() throws Exception {
+        repository.destroy();
+        repository = new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 1000, 500, 60_000);
+
+        repository.incrementAndGet("hot", 100_000, window("hot", 1000, 60_000)).blockingGet();
+        repository.evaluate();
+        assertEquals(1, metrics.gauge("striping.keys"));
+
+        // No traffic any more, but the marked window still runs
+        repository.evaluate();
+        assertEquals(1, metrics.gauge("striping.keys"));
+        assertEquals(0, metrics.count("striping.demotions"));
+    }
+
+    @Test
+    public void shouldNotDemoteWhileWindowRuns() throws Exception {
+        repository.destroy();
+        repository = new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 1000, 500, 60_000);
+
+        repository.incrementAndGet("hot", 100_000, window("hot", 1000, 60_000)).blockingGet();
+        repository.evaluate();
+        repository.refresh();
+
+        Thread.sleep(2_100);
+        repository.evaluate();
+
+        assertEquals(1, metrics.gauge("striping.keys"));
+    }
+
+    @Test
+    public void shouldDemoteOnceWindowIsOver() throws Exception {
+        repository.destroy();
+        repository = new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 1000, 500, 60_000);
+
+        repository.incrementAndGet("hot", 100_000, window("hot", 1000, 200)).blockingGet();
+        repository.evaluate();
+        repository.refresh();
+        assertEquals(1, metrics.gauge("striping.keys"));
+
+        Thread.sleep(300);
+        repository.evaluate();
+
+        assertEquals(0, metrics.gauge("striping.keys"));
+        assertEquals(1, metrics.count("striping.demotions"));
+    }
+
+    @Test
+    public void shouldSumStripesOnEveryGateway() throws Exception {
+        // Another gateway sharing the same store, which never promotes keys itself
+        final CountingMetrics otherMetrics = new CountingMetrics();
+        final StripedRateLimitRepository other = new StripedRateLimitRepository(delegate, delegate, otherMetrics,
+                STRIPES, Long.MAX_VALUE, 0, 60_000);
+
+        try {
+            repository.incrementAndGet("hot", 1000, window("hot", 10_000, 60_000)).blockingGet();
+            repository.evaluate();
+            for (int i = 0; i < 100; i++) {
+                repository.incrementAndGet("hot", 1, window("hot", 10_000, 60_000)).blockingGet();
+            }
+            assertTrue(delegate.keys.stream().anyMatch(key -> key.startsWith("hot#")));
+
+            // The key's own document tells the other gateway that the window is striped
+            assertEquals(1101, other.incrementAndGet("hot", 1, window("hot", 10_000, 60_000)).blockingGet().getCounter());
+            assertEquals(1, otherMetrics.count("striping.adoptions"));
+            assertEquals(0, otherMetrics.count("striping.promotions"));
+
+            delegate.keys.clear();
+            for (int i = 0; i < 100; i++) {
+                other.incrementAndGet("hot", 1, window("hot", 10_000, 60_000)).blockingGet();
+            }
+            assertTrue(delegate.keys.stream().anyMatch(key -> key.startsWith("hot#")));
+
+            repository.refresh();
+            other.refresh();
+            assertEquals(1201, repository.incrementAndGet("hot", 0, window("hot", 10_000, 60_000)).blockingGet().getCounter());
+            assertEquals(1201, other.incrementAndGet("hot", 0, window("hot", 10_000, 60_000)).blockingGet().getCounter());
+        } finally {
+            other.destroy();
+        }
+    }
+
+    @Test
+    public void shouldPromoteKeyHotAcrossGateways() throws Exception {
+        repository.destroy();
+        // A single hit stays under the threshold whatever the time elapsed since the start
+        repository = new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 2000, 500, 60_000);
+
+        // The other gateways
+        delegate.incrementAndGet("hot", 100_000, window("hot", 1_000_000, 60_000)).blockingGet();
+
+        repository.incrementAndGet("hot", 1, window("hot", 1_000_000, 60_000)).blockingGet();
+        repository.evaluate();
+
+        assertEquals(1, metrics.count("striping.promotions"));
+        assertTrue(delegate.incrementAndGet("hot", 1, window("hot", 1_000_000, 60_000)).blockingGet() instanceof StripedRateLimit);
+    }
+
+    @Test
+    public void shouldOnlyStripeMarkedWindows() throws Exception {
+        // The window of the key is over before it can be marked
+        repository.incrementAndGet("hot", 1000, window("hot", 10_000, 100)).blockingGet();
+        Thread.sleep(200);
+        repository.evaluate();
+        delegate.keys.clear();
+
+        for (int i = 0; i < 20; i++) {
+            repository.incrementAndGet("hot", 1, window("hot", 10_000, 60_000)).blockingGet();
+        }
+
+        // The first increment starts a new window, which is then marked and striped
+        assertEquals("hot", delegate.keys.get(0));
+        assertTrue(delegate.keys.stream().anyMatch(key -> key.startsWith("hot#")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectDemoteThresholdOverPromoteThreshold() {
+        new StripedRateLimitRepository(delegate, delegate, metrics, STRIPES, 100, 100, 60_000);
+    }
+}